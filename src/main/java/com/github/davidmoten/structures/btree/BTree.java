@@ -4,22 +4,27 @@ import static com.google.common.base.Optional.absent;
 import static com.google.common.base.Optional.of;
 import static java.lang.Runtime.getRuntime;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * A standard BTree implementation as per wikipedia entry with some tweaks to
@@ -39,9 +44,17 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 		Iterable<T> {
 
 	/**
-	 * The root node. Mutable!
+	 * The number of nodes saved by each batch of a bulk load or export.
 	 */
-	private NodeRef<T> root;
+	private static final int BULK_BATCH_NODES = 256;
+
+	/**
+	 * The root node. Replaced (under writeMonitor) by each add. Volatile so
+	 * that readers, which do not lock, see a new root and every node built
+	 * for it: new nodes are only reachable from the new root and are not
+	 * changed once it is assigned.
+	 */
+	private volatile NodeRef<T> root;
 
 	/**
 	 * The maximum number of keys in a node plus one.
@@ -53,6 +66,11 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 	 */
 	private final Optional<File> metadataFile;
 
+	/**
+	 * Reads and writes the metadata file if present.
+	 */
+	private final Optional<Superblock> superblock;
+
 	/**
 	 * Manages allocation of file positions for nodes.
 	 */
@@ -70,16 +88,130 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 	 */
 	private final Object metadataMonitor = new Object();
 
+	/**
+	 * The position of the root last written to the metadata file. Guarded by
+	 * metadataMonitor.
+	 */
+	private Optional<Position> checkpointed = absent();
+
+	/**
+	 * If present the metadata is written once this many batches with a new
+	 * root have been committed since it was last written.
+	 */
+	private final Optional<Integer> checkpointCommits;
+
+	/**
+	 * If present the metadata is written when a batch with a new root is
+	 * committed at least this many milliseconds after it was last written.
+	 */
+	private final Optional<Long> checkpointIntervalMs;
+
+	/**
+	 * The number of batches with a new root committed since the metadata was
+	 * last written.
+	 */
+	private final AtomicInteger commitsSinceCheckpoint = new AtomicInteger();
+
+	/**
+	 * When the metadata was last written.
+	 */
+	private volatile long lastCheckpointTime = System.currentTimeMillis();
+
 	/**
 	 * Allows reduction in memory usage for large btrees.
 	 */
 	private final Optional<NodeCache<T>> nodeCache;
 
+	/**
+	 * Writes and reads key values in node records.
+	 */
+	private final KeySerializer<T> keySerializer;
+
 	/**
 	 * Queues nodes for saving.
 	 */
 	private final LinkedList<NodeRef<T>> saveQueue = new LinkedList<NodeRef<T>>();
 
+	/**
+	 * The last batch of saves submitted to storage. Guarded by writeMonitor.
+	 */
+	private Optional<Storage.Batch<T>> lastBatch = absent();
+
+	/**
+	 * This object is synchronized on to ensure that compactions happen one at
+	 * a time.
+	 */
+	private final Object compactMonitor = new Object();
+
+	/**
+	 * Chooses the sealed storage files to compact.
+	 */
+	private final CompactionPolicy compactionPolicy;
+
+	/**
+	 * Storage files compacted but not yet deleted keyed by file number with
+	 * the epoch of {@link #readers} the compaction advanced to. They are
+	 * deleted by a later compaction once no read that entered before that
+	 * epoch is in progress (or on close). Guarded by compactMonitor.
+	 */
+	private final Map<Long, Long> compactedFiles = Maps.newHashMap();
+
+	/**
+	 * The finds and iterators in progress, which may still reach compacted
+	 * files from an earlier root.
+	 */
+	private final Readers readers = new Readers();
+
+	/**
+	 * Runs compactions in the background if present.
+	 */
+	private final Optional<ScheduledExecutorService> compactor;
+
+	/**
+	 * If present then adds return once their saves are submitted and the
+	 * writer thread commits the submitted batches taken from this queue. An
+	 * absent element stops the writer.
+	 */
+	private final Optional<BlockingQueue<Optional<Storage.Batch<T>>>> writeBehindQueue;
+
+	/**
+	 * Commits batches taken from the write-behind queue if present.
+	 */
+	private final Optional<Thread> writer;
+
+	/**
+	 * Loads nodes ahead of iterators if present.
+	 */
+	private final Optional<Prefetcher> prefetcher;
+
+	/**
+	 * The first error thrown by the writer thread, rethrown by the next add,
+	 * flush or close.
+	 */
+	private volatile Optional<RuntimeException> writeBehindError = absent();
+
+	/**
+	 * The first error thrown by a periodic compaction since the last was
+	 * rethrown, rethrown by the next flush or close. Later compactions still
+	 * run.
+	 */
+	private volatile Optional<RuntimeException> compactionError = absent();
+
+	/**
+	 * The number of periodic compactions that have thrown an error.
+	 */
+	private final AtomicInteger compactionFailures = new AtomicInteger();
+
+	/**
+	 * The number of values sorted in memory for each run of a bulk import.
+	 */
+	private final int sortRunSize;
+
+	/**
+	 * The number of threads sorting and spilling runs in a bulk import.
+	 */
+	private final int sortThreads;
+
 	/**
 	 * Loads the node pointed to by the NodeRef from persistent storage.
 	 */
@@ -114,52 +246,193 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 		Preconditions.checkArgument(!builder.degree.isPresent()
 				|| builder.degree.get() >= 2, "degree must be >=2");
 
-		if (builder.cacheSize.isPresent())
-			nodeCache = of(new NodeCache<T>(builder.cacheSize.get()));
+		Preconditions.checkArgument(!builder.cacheSize.isPresent()
+				|| !builder.cacheBytes.isPresent(),
+				"cannot set both cacheSize and cacheBytes");
+
+		if (builder.cacheBytes.isPresent())
+			nodeCache = of(NodeCache.<T> withMaximumBytes(
+					builder.cacheBytes.get(), builder.pinnedLevels));
+		else if (builder.cacheSize.isPresent())
+			nodeCache = of(NodeCache.<T> withMaximumNodes(
+					builder.cacheSize.get(), builder.pinnedLevels));
 		else
 			nodeCache = absent();
 
 		this.metadataFile = builder.metadataFile;
+		this.keySerializer = builder.keySerializer;
+		this.compactionPolicy = builder.compactionPolicy;
+		this.checkpointCommits = builder.checkpointCommits;
+		this.checkpointIntervalMs = builder.checkpointIntervalMs;
+		this.sortRunSize = builder.sortRunSize;
+		this.sortThreads = builder.sortThreads;
 
 		if (metadataFile.isPresent()) {
-			if (metadataFile.get().exists()) {
-
-				Metadata metadata = readMetadata(builder.degree);
+			superblock = of(new Superblock(metadataFile.get(),
+					builder.memoryMapped));
+			Optional<Superblock.Metadata> m = superblock.get().read();
+			if (m.isPresent()) {
+				Superblock.Metadata metadata = m.get();
 				degree = metadata.degree;
-				root = new NodeRef<T>(loader, of(metadata.rootPosition),
-						degree, true);
+				String id = KeySerializers.id(keySerializer);
+				if (metadata.keySerializer.isPresent()
+						&& !metadata.keySerializer.get().equals(id)) {
+					superblock.get().close();
+					throw new IllegalArgumentException("b-tree "
+							+ metadataFile.get()
+							+ " was saved with key serializer "
+							+ metadata.keySerializer.get()
+							+ " but opened with " + id);
+				}
 
 				if (!builder.storage.isPresent())
-					this.storage = of(new Storage(new File(
-							metadata.storageDirectory), metadata.storageName));
+					this.storage = of(createStorage(builder, new File(
+							metadata.storageDirectory), metadata.storageName,
+							of(metadata.rootPosition)));
 				else {
 					this.storage = builder.storage;
 				}
+				// the metadata is only written by flush so the root recorded
+				// by the last batch saved is more recent
+				root = new NodeRef<T>(loader, of(storage.get()
+						.getLastCommittedRoot().or(metadata.rootPosition)),
+						degree, true);
 			} else {
 				degree = builder.degree.get();
-				root = new NodeRef<T>(loader, Optional.<Position> absent(),
-						degree, true);
 				if (!builder.storage.isPresent())
-					this.storage = of(new Storage(metadataFile.get()
-							.getParentFile(), metadataFile.get().getName()
-							+ ".storage"));
+					this.storage = of(createStorage(builder, metadataFile
+							.get().getParentFile(), metadataFile.get()
+							.getName() + ".storage",
+							Optional.<Position> absent()));
 				else {
 					this.storage = builder.storage;
 				}
+				// nodes may have been saved before a crash prevented the
+				// metadata being written
+				root = new NodeRef<T>(loader, storage.get()
+						.getLastCommittedRoot(), degree, true);
 			}
 		} else {
+			this.superblock = absent();
 			this.storage = absent();
 			this.degree = builder.degree.get();
 			root = new NodeRef<T>(loader, Optional.<Position> absent(), degree,
 					true);
 			addToSaveQueue(root);
 			flushSaves(saveQueue);
-			if (metadataFile.isPresent())
-				writeMetadata();
 		}
+		initHeights();
 		System.out.println("totalMemory=" + getRuntime().totalMemory()
 				+ ",maxMemory=" + getRuntime().maxMemory());
 
+		if (builder.compactionIntervalMs.isPresent() && storage.isPresent())
+			compactor = of(startCompactor(builder.compactionIntervalMs.get()));
+		else
+			compactor = absent();
+
+		if (builder.prefetchDepth.isPresent() && storage.isPresent())
+			prefetcher = of(new Prefetcher(builder.prefetchDepth.get(),
+					builder.prefetchThreads));
+		else
+			prefetcher = absent();
+
+		if (builder.writeBehindQueueSize.isPresent() && storage.isPresent()) {
+			BlockingQueue<Optional<Storage.Batch<T>>> queue = new ArrayBlockingQueue<Optional<Storage.Batch<T>>>(
+					builder.writeBehindQueueSize.get());
+			writeBehindQueue = of(queue);
+			writer = of(startWriter());
+		} else {
+			writeBehindQueue = absent();
+			writer = absent();
+		}
+	}
+
+	/**
+	 * Returns a started thread that commits the batches taken from the
+	 * write-behind queue until an absent element is taken. All batches
+	 * already in the queue are taken together so that they are usually
+	 * written by one group commit.
+	 * 
+	 * @return
+	 */
+	private Thread startWriter() {
+		Thread thread = new ThreadFactoryBuilder().setDaemon(true)
+				.setNameFormat("btree-writer-%d").build()
+				.newThread(new Runnable() {
+					@Override
+					public void run() {
+						List<Optional<Storage.Batch<T>>> batches = Lists
+								.newArrayList();
+						while (true) {
+							try {
+								batches.add(writeBehindQueue.get().take());
+							} catch (InterruptedException e) {
+								return;
+							}
+							writeBehindQueue.get().drainTo(batches);
+							for (Optional<Storage.Batch<T>> batch : batches) {
+								if (!batch.isPresent())
+									return;
+								try {
+									commitSaves(batch);
+								} catch (RuntimeException e) {
+									if (!writeBehindError.isPresent())
+										writeBehindError = of(e);
+								}
+							}
+							batches.clear();
+						}
+					}
+				});
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Returns an executor that compacts the storage periodically.
+	 * 
+	 * @param intervalMs
+	 * @return
+	 */
+	private ScheduledExecutorService startCompactor(long intervalMs) {
+		ScheduledExecutorService executor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+						.setDaemon(true).setNameFormat("btree-compactor-%d")
+						.build());
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					compact();
+				} catch (RuntimeException e) {
+					// don't let a failure stop later compactions
+					compactionFailures.incrementAndGet();
+					if (!compactionError.isPresent())
+						compactionError = of(e);
+				}
+			}
+		}, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+		return executor;
+	}
+
+	/**
+	 * Returns a new {@link Storage} configured from the builder.
+	 * 
+	 * @param builder
+	 * @param directory
+	 * @param name
+	 * @param recoverFrom
+	 *            where to start reading records to recover the last batch
+	 * @return
+	 */
+	private static Storage createStorage(Builder<?> builder, File directory,
+			String name, Optional<Position> recoverFrom) {
+		return Storage.builder(directory, name)
+				.memoryMapped(builder.memoryMapped)
+				.durability(builder.durability)
+				.segmentSize(builder.segmentSize)
+				.offHeapCacheBytes(builder.offHeapCacheBytes)
+				.recoverFrom(recoverFrom).build();
 	}
 
 	/**
@@ -173,7 +446,24 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 		private Optional<Integer> degree = of(100);
 		private Optional<File> metadataFile = absent();
 		private Optional<Long> cacheSize = absent();
+		private Optional<Long> cacheBytes = absent();
+		private int pinnedLevels = NodeCache.DEFAULT_PINNED_LEVELS;
 		private Optional<Storage> storage = absent();
+		private boolean memoryMapped = false;
+		private Durability durability = Durability.WRITE;
+		private long segmentSize = Storage.DEFAULT_SEGMENT_SIZE;
+		private long offHeapCacheBytes = 0;
+		private KeySerializer<R> keySerializer = KeySerializers.java();
+		private CompactionPolicy compactionPolicy = CompactionPolicies
+				.liveFractionBelow(0.5);
+		private Optional<Long> compactionIntervalMs = absent();
+		private Optional<Integer> writeBehindQueueSize = absent();
+		private Optional<Integer> prefetchDepth = absent();
+		private int prefetchThreads;
+		private Optional<Integer> checkpointCommits = absent();
+		private Optional<Long> checkpointIntervalMs = absent();
+		private int sortRunSize = 1000000;
+		private int sortThreads = getRuntime().availableProcessors();
 
 		/**
 		 * Constructor.
@@ -216,157 +506,469 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 			return this;
 		}
 
+		/**
+		 * Sets the memory budget of the node cache being the estimated heap
+		 * bytes retained by the nodes kept loaded in memory. Nodes are
+		 * weighed by their number of keys and the size of their saved
+		 * record, so nodes with many or large keys count for more. Cannot be
+		 * combined with {@link #cacheSize(long)}.
+		 * 
+		 * @param cacheBytes
+		 * @return
+		 */
+		public Builder<R> cacheBytes(long cacheBytes) {
+			Preconditions.checkArgument(cacheBytes > 0,
+					"cacheBytes must be positive");
+			this.cacheBytes = of(cacheBytes);
+			return this;
+		}
+
+		/**
+		 * Sets the number of levels at the top of the tree whose nodes the
+		 * node cache never unloads, because every lookup passes through
+		 * them. They count towards {@link #cacheSize(long)} or
+		 * {@link #cacheBytes(long)}. Default is 2.
+		 * 
+		 * @param pinnedLevels
+		 * @return
+		 */
+		public Builder<R> pinnedLevels(int pinnedLevels) {
+			Preconditions.checkArgument(pinnedLevels >= 0,
+					"pinnedLevels cannot be negative");
+			this.pinnedLevels = pinnedLevels;
+			return this;
+		}
+
 		public Builder<R> storage(Storage storage) {
 			this.storage = of(storage);
 			return this;
 		}
 
 		/**
-		 * Returns a new {@link BTree}.
+		 * Sets whether the storage files that are no longer being written to
+		 * are memory mapped for reading nodes (ignored if storage is set
+		 * explicitly) and whether the metadata file is written through a
+		 * memory mapping.
 		 * 
+		 * @param memoryMapped
 		 * @return
 		 */
-		public BTree<R> build() {
-			return new BTree<R>(this);
+		public Builder<R> memoryMapped(boolean memoryMapped) {
+			this.memoryMapped = memoryMapped;
+			return this;
 		}
-	}
 
-	/**
-	 * Notifies the nodeCache that a node has been loaded (or saved for the
-	 * first time).
-	 * 
-	 * @param position
-	 * @param node
-	 */
-	void loaded(long position, NodeRef<T> node) {
-		if (nodeCache.isPresent())
-			nodeCache.get().put(position, node);
-	}
+		/**
+		 * Sets how durable an add is when it returns. Ignored if storage is
+		 * set explicitly.
+		 * 
+		 * @param durability
+		 * @return
+		 */
+		public Builder<R> durability(Durability durability) {
+			this.durability = durability;
+			return this;
+		}
 
-	/**
-	 * Metdata for the btree.
-	 * 
-	 */
-	private static class Metadata {
+		/**
+		 * Sets the size in bytes that each storage file is preallocated to.
+		 * Ignored if storage is set explicitly.
+		 * 
+		 * @param segmentSize
+		 * @return
+		 */
+		public Builder<R> segmentSize(long segmentSize) {
+			this.segmentSize = segmentSize;
+			return this;
+		}
 
 		/**
-		 * The location of the root node in persistent storage.
+		 * Sets the bytes of direct memory used to cache the serialized
+		 * records of nodes read from disk, so that a small
+		 * {@link #cacheSize(long)} can be combined with most of the tree
+		 * held in memory outside the heap. Default is 0 (no cache). Ignored
+		 * if storage is set explicitly.
+		 * 
+		 * @param offHeapCacheBytes
+		 * @return
 		 */
-		final Position rootPosition;
+		public Builder<R> offHeapCacheBytes(long offHeapCacheBytes) {
+			this.offHeapCacheBytes = offHeapCacheBytes;
+			return this;
+		}
+
 		/**
-		 * The degree of the b-tree.
+		 * Sets the serializer for key values in saved nodes. The same
+		 * serializer must be used when the b-tree is reopened (it is recorded
+		 * in the metadata and a different one is rejected).
+		 * 
+		 * @param keySerializer
+		 * @return
 		 */
-		final int degree;
+		public Builder<R> keySerializer(KeySerializer<R> keySerializer) {
+			this.keySerializer = keySerializer;
+			return this;
+		}
+
 		/**
-		 * The maximum file number for storage.
+		 * Sets the fraction of a sealed storage file that must be live nodes
+		 * for the file not to be compacted. Default is 0.5.
+		 * 
+		 * @param compactionThreshold
+		 * @return
 		 */
-		final String storageDirectory;
+		public Builder<R> compactionThreshold(double compactionThreshold) {
+			return compactionPolicy(CompactionPolicies
+					.liveFractionBelow(compactionThreshold));
+		}
 
-		final String storageName;
+		/**
+		 * Sets the policy that chooses the sealed storage files to compact
+		 * from their live and total bytes. Default is
+		 * {@link CompactionPolicies#liveFractionBelow(double)} with a
+		 * threshold of 0.5.
+		 * 
+		 * @param compactionPolicy
+		 * @return
+		 */
+		public Builder<R> compactionPolicy(CompactionPolicy compactionPolicy) {
+			Preconditions.checkNotNull(compactionPolicy);
+			this.compactionPolicy = compactionPolicy;
+			return this;
+		}
 
 		/**
-		 * Constructor.
+		 * Sets the interval between compactions run in the background. If not
+		 * set then storage is only compacted by calling
+		 * {@link BTree#compact()}.
 		 * 
-		 * @param rootPosition
-		 * @param degree
+		 * @param interval
+		 * @param unit
+		 * @return
+		 */
+		public Builder<R> compactionInterval(long interval, TimeUnit unit) {
+			this.compactionIntervalMs = of(unit.toMillis(interval));
+			return this;
+		}
+
+		/**
+		 * Enables write-behind. An add returns as soon as the new root is
+		 * published and a writer thread commits the saves in the background.
+		 * At most <code>queueSize</code> batches of saves wait for the
+		 * writer; further adds wait for space. Adds are only as durable as
+		 * required by {@link #durability(Durability)} once
+		 * {@link BTree#flush()} or {@link BTree#close()} returns. Ignored
+		 * for a b-tree that is not persisted.
+		 * 
+		 * @param queueSize
+		 * @return
+		 */
+		public Builder<R> writeBehind(int queueSize) {
+			Preconditions.checkArgument(queueSize > 0,
+					"queueSize must be positive");
+			this.writeBehindQueueSize = of(queueSize);
+			return this;
+		}
+
+		/**
+		 * Enables prefetching for iterators. When an iterator descends into a
+		 * child of a node the next <code>depth</code> children of that node
+		 * are loaded in the background on a pool of <code>threads</code>
+		 * threads so that a scan of nodes not in memory does not wait for
+		 * each read in turn. Ignored for a b-tree that is not persisted.
+		 * 
+		 * @param depth
+		 * @param threads
+		 * @return
+		 */
+		public Builder<R> prefetch(int depth, int threads) {
+			Preconditions.checkArgument(depth > 0, "depth must be positive");
+			Preconditions.checkArgument(threads > 0,
+					"threads must be positive");
+			this.prefetchDepth = of(depth);
+			this.prefetchThreads = threads;
+			return this;
+		}
+
+		/**
+		 * Writes the metadata (including the root) whenever
+		 * <code>commits</code> batches of saves with a new root have been
+		 * committed since it was last written. The metadata is always written
+		 * by {@link BTree#flush()} and {@link BTree#close()}. A checkpoint is
+		 * only forced to disk between flushes if the durability is
+		 * {@link Durability#FSYNC}.
+		 * 
+		 * @param commits
+		 * @return
+		 */
+		public Builder<R> checkpointEvery(int commits) {
+			Preconditions.checkArgument(commits > 0,
+					"commits must be positive");
+			this.checkpointCommits = of(commits);
+			return this;
+		}
+
+		/**
+		 * Writes the metadata (including the root) when a batch of saves with
+		 * a new root is committed at least <code>interval</code> after the
+		 * metadata was last written. May be combined with
+		 * {@link #checkpointEvery(int)}.
+		 * 
+		 * @param interval
+		 * @param unit
+		 * @return
+		 */
+		public Builder<R> checkpointInterval(long interval, TimeUnit unit) {
+			this.checkpointIntervalMs = of(unit.toMillis(interval));
+			return this;
+		}
+
+		/**
+		 * Sets how {@link BTree#bulkImport(Iterator)} sorts its input.
+		 * Runs of <code>runSize</code> values are sorted in memory and
+		 * spilled to temporary files on a pool of <code>threads</code>
+		 * threads, so at most <code>(threads + 1) * runSize</code> values
+		 * are held in memory. Default is runs of 1,000,000 values on as many
+		 * threads as there are processors.
+		 * 
+		 * @param runSize
+		 * @param threads
+		 * @return
+		 */
+		public Builder<R> externalSort(int runSize, int threads) {
+			Preconditions.checkArgument(runSize > 0,
+					"runSize must be positive");
+			Preconditions.checkArgument(threads > 0,
+					"threads must be positive");
+			this.sortRunSize = runSize;
+			this.sortThreads = threads;
+			return this;
+		}
+
+		/**
+		 * Returns a new {@link BTree}.
+		 * 
+		 * @return
 		 */
-		public Metadata(Position rootPosition, int degree,
-				String storageDirectory, String storageName) {
-			super();
-			this.rootPosition = rootPosition;
-			this.degree = degree;
-			this.storageDirectory = storageDirectory;
-			this.storageName = storageName;
+		public BTree<R> build() {
+			return new BTree<R>(this);
 		}
 	}
 
 	/**
-	 * Reads the metadata information from the file including the position of
-	 * the root node.
+	 * Notifies the nodeCache that a node has been loaded (or saved for the
+	 * first time).
+	 * 
+	 * @param node
 	 */
-	private Metadata readMetadata(Optional<Integer> defaultDegree) {
-		try {
-			ObjectInputStream ois = new ObjectInputStream(new FileInputStream(
-					metadataFile.get()));
-			String storageDirectory = (String) ois.readObject();
-			String storageName = (String) ois.readObject();
-			long rootFileNumber = ois.readLong();
-			long rootPosition = ois.readLong();
-			int degree = ois.readInt();
-			ois.close();
-			return new Metadata(new Position(rootFileNumber, rootPosition),
-					degree, storageDirectory, storageName);
-		} catch (FileNotFoundException e) {
-			throw new RuntimeException(e);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		} catch (ClassNotFoundException e) {
-			throw new RuntimeException(e);
-		}
+	void loaded(NodeRef<T> node) {
+		if (nodeCache.isPresent())
+			nodeCache.get().put(node.getPosition().get(), node);
 	}
 
 	/**
 	 * Writes the metadata information to the file including the position of the
-	 * root node.
+	 * root node unless metadata for a later root has already been written.
+	 * 
+	 * @param root
+	 * @param force
+	 *            if true then the metadata is forced to disk
 	 */
-	private void writeMetadata() {
-		if (metadataFile.isPresent()) {
+	private void writeMetadata(NodeRef<T> root, boolean force) {
+		if (superblock.isPresent() && root.getPosition().isPresent()) {
+			Position position = root.getPosition().get();
 			synchronized (metadataMonitor) {
-				try {
-					if (!metadataFile.get().exists())
-						metadataFile.get().createNewFile();
-					FileOutputStream fos = new FileOutputStream(
-							metadataFile.get());
-					byte[] bytes = composeMetadata();
-					fos.write(bytes);
-					fos.close();
-				} catch (FileNotFoundException e) {
-					throw new RuntimeException(e);
-				} catch (IOException e) {
-					throw new RuntimeException(e);
-				}
+				// roots are saved in the order they replace each other so a
+				// checkpoint racing a later one must not overwrite it
+				if (checkpointed.isPresent()
+						&& position.isBefore(checkpointed.get()))
+					return;
+				superblock.get().write(
+						new Superblock.Metadata(position, degree, storage.get()
+								.getDirectory().getAbsolutePath(), storage
+								.get().getName(), of(KeySerializers
+								.id(keySerializer))), force);
+				checkpointed = of(position);
+				commitsSinceCheckpoint.set(0);
+				lastCheckpointTime = System.currentTimeMillis();
 			}
 		}
 	}
 
 	/**
-	 * Writes metadata for the b-tree to persistent storage.
+	 * Returns true if the metadata should be written now that another batch
+	 * with a new root has been committed according to the checkpoint policy
+	 * set by {@link Builder#checkpointEvery(int)} and
+	 * {@link Builder#checkpointInterval(long, TimeUnit)}.
 	 * 
 	 * @return
 	 */
-	public BTree<T> flush() {
-		writeMetadata();
-		return this;
+	private boolean isCheckpointDue() {
+		int commits = commitsSinceCheckpoint.incrementAndGet();
+		return checkpointCommits.isPresent()
+				&& commits >= checkpointCommits.get()
+				|| checkpointIntervalMs.isPresent()
+				&& System.currentTimeMillis() - lastCheckpointTime >= checkpointIntervalMs
+						.get();
 	}
 
 	/**
-	 * Returns the bytes containing the metadata information for this BTree.
+	 * Waits for submitted saves to be committed, forces them to disk as
+	 * required by {@link Durability} and writes metadata for the b-tree to
+	 * persistent storage. Then rethrows the first error thrown by a periodic
+	 * compaction since the last flush if any.
 	 * 
 	 * @return
-	 * @throws IOException
 	 */
-	private byte[] composeMetadata() throws IOException {
-		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-		ObjectOutputStream oos = new ObjectOutputStream(bytes);
-		oos.writeObject(storage.get().getDirectory().getAbsolutePath());
-		oos.writeObject(storage.get().getName());
-		oos.writeLong(root.getPosition().get().getFileNumber());
-		oos.writeLong(root.getPosition().get().getPosition());
-		oos.writeInt(degree);
-		oos.close();
-		return bytes.toByteArray();
+	public BTree<T> flush() {
+		checkWriteBehindError();
+		NodeRef<T> r;
+		Optional<Storage.Batch<T>> batch;
+		synchronized (writeMonitor) {
+			r = root;
+			batch = lastBatch;
+		}
+		// batches are committed in order so once the last is committed all
+		// are
+		if (batch.isPresent())
+			storage.get().commit(batch.get());
+		checkWriteBehindError();
+		if (storage.isPresent())
+			storage.get().flush();
+		writeMetadata(r, storage.isPresent()
+				&& storage.get().getDurability() != Durability.NONE);
+		checkCompactionError();
+		return this;
 	}
 
 	/**
 	 * Creates a {@link Builder}.
 	 * 
 	 * @param cls
-	 *            - used for type inference only.
+	 *            - used for type inference and to choose the default key
+	 *            serializer from {@link KeySerializers#forClass(Class)}.
 	 * @return
 	 */
 	public static <R extends Comparable<R> & Serializable> Builder<R> builder(
 			Class<R> cls) {
-		return new Builder<R>();
+		return new Builder<R>().keySerializer(KeySerializers.forClass(cls));
+	}
+
+	/**
+	 * Loads the values from <code>sortedInput</code> (which must be in
+	 * ascending order) into this empty b-tree with nodes filled as much as
+	 * the degree allows. See {@link #bulkLoad(Iterator, double)}.
+	 * 
+	 * @param sortedInput
+	 * @return
+	 */
+	public BTree<T> bulkLoad(Iterator<T> sortedInput) {
+		return bulkLoad(sortedInput, 1.0);
+	}
+
+	/**
+	 * Loads the values from <code>sortedInput</code> (which must be in
+	 * ascending order) into this empty b-tree much faster than adding them
+	 * one at a time. Leaves are packed left to right with
+	 * <code>fillFactor</code> of the keys a node can hold (but at most two
+	 * less than the degree) and the levels above are built bottom-up. Every
+	 * node is saved exactly once in sequential order and the metadata is
+	 * written once at the end. Nodes are unloaded once saved so at most
+	 * {@value #BULK_BATCH_NODES} nodes and the node being built at each level
+	 * are held in memory. Adds wait until the load has finished.
+	 * 
+	 * A lower fill factor leaves room in the nodes for later adds without
+	 * splitting. The degree must be at least 3.
+	 * 
+	 * @param sortedInput
+	 * @param fillFactor
+	 *            greater than 0 and at most 1
+	 * @return
+	 */
+	public BTree<T> bulkLoad(Iterator<T> sortedInput, double fillFactor) {
+		checkWriteBehindError();
+		int capacity = BulkLoader.capacity(degree, fillFactor);
+		synchronized (writeMonitor) {
+			Preconditions.checkState(root.countKeys() == 0,
+					"bulk load requires an empty b-tree");
+			BulkLoader<T> bulkLoader = new BulkLoader<T>(loader, degree,
+					capacity, saveQueue);
+			while (sortedInput.hasNext()) {
+				bulkLoader.add(sortedInput.next());
+				if (saveQueue.size() >= BULK_BATCH_NODES) {
+					// intermediate batches record no root
+					Optional<Storage.Batch<T>> batch = submitSaves(saveQueue,
+							Collections.<NodeRef<T>> emptyList(),
+							Optional.<NodeRef<T>> absent());
+					commitSaves(batch);
+					// only the positions of saved nodes are needed (by their
+					// parents) so unload them to hold at most a batch of
+					// nodes in memory
+					if (batch.isPresent())
+						for (NodeRef<T> saved : batch.get().getNodes())
+							saved.unload();
+				}
+			}
+			Optional<NodeRef<T>> node = bulkLoader.finish();
+			if (node.isPresent()) {
+				List<NodeRef<T>> obsolete = Lists.newArrayList();
+				if (root.getPosition().isPresent())
+					obsolete.add(root);
+				commitSaves(submitSaves(saveQueue, obsolete, node));
+				root = node.get();
+				rootHeightChanged();
+			}
+		}
+		return flush();
+	}
+
+	/**
+	 * Loads the values from <code>unsortedInput</code> into this empty
+	 * b-tree with nodes filled as much as the degree allows. See
+	 * {@link #bulkImport(Iterator, double)}.
+	 * 
+	 * @param unsortedInput
+	 * @return
+	 */
+	public BTree<T> bulkImport(Iterator<T> unsortedInput) {
+		return bulkImport(unsortedInput, 1.0);
+	}
+
+	/**
+	 * Loads the values from <code>unsortedInput</code> (which may be larger
+	 * than memory) into this empty b-tree. The values are sorted with an
+	 * external merge sort as configured by
+	 * {@link Builder#externalSort(int, int)}, spilling sorted runs to
+	 * temporary files in the storage directory, and the merged output is
+	 * passed to {@link #bulkLoad(Iterator, double)}. The temporary files are
+	 * deleted before returning.
+	 * 
+	 * @param unsortedInput
+	 * @param fillFactor
+	 *            greater than 0 and at most 1
+	 * @return
+	 */
+	public BTree<T> bulkImport(Iterator<T> unsortedInput, double fillFactor) {
+		// fail before sorting rather than after
+		BulkLoader.capacity(degree, fillFactor);
+		Preconditions.checkState(root.countKeys() == 0,
+				"bulk load requires an empty b-tree");
+		Optional<File> directory;
+		String prefix;
+		if (storage.isPresent()) {
+			directory = of(storage.get().getDirectory());
+			prefix = storage.get().getName() + ".sort";
+		} else {
+			directory = absent();
+			prefix = "btree.sort";
+		}
+		ExternalSorter<T> sorter = new ExternalSorter<T>(keySerializer,
+				directory, prefix, sortRunSize, sortThreads);
+		try {
+			return bulkLoad(sorter.sort(unsortedInput), fillFactor);
+		} finally {
+			sorter.close();
+		}
 	}
 
 	/**
@@ -382,44 +984,421 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 	}
 
 	/**
-	 * Adds a value to the root node and replaces the root node and updates
-	 * metadata file if present.
+	 * Adds a value to the root node and replaces the root node. The new root
+	 * is published and its saves submitted while holding the write lock but
+	 * the wait for the saves to be committed happens outside the lock so that
+	 * concurrent adds are committed as a group. In write-behind mode the
+	 * saves are instead handed to the writer thread (waiting only if the
+	 * write-behind queue is full).
 	 * 
 	 * @param t
 	 */
 	private void addOne(T t) {
-		KeyNodes<T> keyNodes = root.add(KeyNodes.create(new Key<T>(t)));
-		for (NodeRef<T> node : keyNodes.getSaveQueue()) {
-			saveQueue.add(node);
+		checkWriteBehindError();
+		Optional<Storage.Batch<T>> batch;
+		synchronized (writeMonitor) {
+			KeyNodes<T> keyNodes = root.add(KeyNodes.create(new Key<T>(t)));
+			for (NodeRef<T> node : keyNodes.getSaveQueue()) {
+				saveQueue.add(node);
+			}
+			NodeRef<T> node;
+			if (keyNodes.getKey().isPresent()) {
+				node = NodeRef.create(loader, degree, true,
+						root.getHeight() + 1,
+						Collections.singletonList(keyNodes.getKey().get()));
+				saveQueue.add(node);
+			} else
+				node = keyNodes.getSaveQueue().getLast();
+
+			batch = submitSaves(saveQueue, keyNodes.getObsolete(), of(node));
+			root = node;
+			if (keyNodes.getKey().isPresent())
+				rootHeightChanged();
 		}
-		NodeRef<T> node;
-		if (keyNodes.getKey().isPresent()) {
-			node = new NodeRef<T>(loader, Optional.<Position> absent(), degree,
-					true);
-			node.setFirst(of(keyNodes.getKey().get()));
-			saveQueue.add(node);
-		} else
-			node = keyNodes.getSaveQueue().getLast();
+		if (writeBehindQueue.isPresent())
+			// the new nodes stay in memory until committed because only
+			// committed nodes are put in the node cache (and so unloaded)
+			putWriteBehind(batch);
+		else
+			commitSaves(batch);
+	}
 
-		flushSaves(saveQueue);
-		root = node;
-		// TODO decide on flush strategy for metadataFile
-		// if (metadataFile.isPresent())
-		// writeMetadata();
+	/**
+	 * Puts an element on the write-behind queue waiting for space if full.
+	 * 
+	 * @param element
+	 */
+	private void putWriteBehind(Optional<Storage.Batch<T>> element) {
+		try {
+			writeBehindQueue.get().put(element);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Throws the first error thrown by a periodic compaction since the last
+	 * was thrown, if any.
+	 */
+	private void checkCompactionError() {
+		Optional<RuntimeException> error = compactionError;
+		if (error.isPresent()) {
+			compactionError = absent();
+			throw error.get();
+		}
+	}
+
+	/**
+	 * Returns the number of periodic compactions (see
+	 * {@link Builder#compactionInterval(long, TimeUnit)}) that have failed.
+	 * The first failure since the last flush or close is rethrown by the next
+	 * flush or close.
+	 * 
+	 * @return
+	 */
+	public int getCompactionFailures() {
+		return compactionFailures.get();
+	}
+
+	/**
+	 * Throws the first error thrown by the writer thread if any.
+	 */
+	private void checkWriteBehindError() {
+		if (writeBehindError.isPresent())
+			throw writeBehindError.get();
 	}
 
 	/**
 	 * Flushes queued saves to disk if storage present.
 	 * 
-	 * @param saveQueue2
+	 * @param saveQueue
 	 */
 	private void flushSaves(LinkedList<NodeRef<T>> saveQueue) {
+		commitSaves(submitSaves(saveQueue,
+				Collections.<NodeRef<T>> emptyList(),
+				Optional.<NodeRef<T>> absent()));
+	}
+
+	/**
+	 * Submits queued saves to storage if present and clears the queue. Must be
+	 * called while holding writeMonitor so batches are submitted in the order
+	 * their nodes were created.
+	 * 
+	 * @param saveQueue
+	 * @param obsolete
+	 *            the nodes replaced by those in the save queue
+	 * @param newRoot
+	 *            the root once the saves are committed, absent if the save
+	 *            queue is empty
+	 * @return
+	 */
+	private Optional<Storage.Batch<T>> submitSaves(
+			LinkedList<NodeRef<T>> saveQueue, List<NodeRef<T>> obsolete,
+			Optional<NodeRef<T>> newRoot) {
+		Optional<Storage.Batch<T>> batch;
 		if (storage.isPresent()) {
-			storage.get().save(saveQueue);
-			for (NodeRef<T> node : saveQueue)
-				loaded(node.getPosition().get().getPosition(), node);
-		}
+			batch = of(storage.get().submit(saveQueue, obsolete,
+					newRoot, keySerializer));
+			lastBatch = batch;
+		} else
+			batch = absent();
 		saveQueue.clear();
+		return batch;
+	}
+
+	/**
+	 * Returns the bytes of the records of the nodes reachable from the root
+	 * keyed by storage file number.
+	 * 
+	 * @return
+	 */
+	@VisibleForTesting
+	Map<Long, Long> liveBytes() {
+		flush();
+		return Compactor.liveBytes(root);
+	}
+
+	@VisibleForTesting
+	NodeRef<T> getRoot() {
+		return root;
+	}
+
+	@VisibleForTesting
+	Optional<NodeCache<T>> getNodeCache() {
+		return nodeCache;
+	}
+
+	/**
+	 * Sets the height of the root and of the nodes on the leftmost path and
+	 * their children, which are loaded before the height of the root is
+	 * known. The heights of the other nodes are set from their parents when
+	 * loaded.
+	 */
+	private void initHeights() {
+		List<NodeRef<T>> path = Lists.newArrayList();
+		NodeRef<T> node = root;
+		path.add(node);
+		while (!node.children().isEmpty()) {
+			node = node.children().get(0).get();
+			path.add(node);
+		}
+		int height = path.size() - 1;
+		for (NodeRef<T> n : path) {
+			n.setHeight(height);
+			for (Optional<NodeRef<T>> child : n.children())
+				if (child.isPresent())
+					child.get().setHeight(height - 1);
+			height--;
+		}
+		rootHeightChanged();
+	}
+
+	/**
+	 * Tells the node cache the height of the tree so that it pins the top
+	 * levels.
+	 */
+	private void rootHeightChanged() {
+		if (nodeCache.isPresent())
+			nodeCache.get().setTreeHeight(root.getHeight() + 1);
+	}
+
+	/**
+	 * Waits for the batch to be committed, notifies the node cache of the
+	 * newly saved and replaced nodes and writes the metadata if a checkpoint is due.
+	 * 
+	 * @param batch
+	 */
+	private void commitSaves(Optional<Storage.Batch<T>> batch) {
+		if (batch.isPresent()) {
+			storage.get().commit(batch.get());
+			for (NodeRef<T> node : batch.get().getNodes())
+				loaded(node);
+			if (nodeCache.isPresent())
+				for (NodeRef<T> node : batch.get().getObsolete())
+					nodeCache.get().remove(node);
+			if (batch.get().getRoot().isPresent() && isCheckpointDue())
+				// only durable now if the batch was forced
+				writeMetadata(batch.get().getRoot().get(), storage.get()
+						.getDurability() == Durability.FSYNC);
+		}
+	}
+
+	/**
+	 * Stops background compaction, waits for saves to be committed, writes
+	 * the metadata, stops the writer and prefetch threads, deletes compacted
+	 * storage files and releases the files held open by the storage. Then
+	 * rethrows the first error thrown by a periodic compaction since the
+	 * last flush if any.
+	 */
+	public void close() {
+		if (compactor.isPresent()) {
+			compactor.get().shutdown();
+			try {
+				compactor.get().awaitTermination(Long.MAX_VALUE,
+						TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+		// rethrown once everything is closed
+		Optional<RuntimeException> error = compactionError;
+		compactionError = absent();
+		flush();
+		if (writer.isPresent()) {
+			putWriteBehind(Optional.<Storage.Batch<T>> absent());
+			try {
+				writer.get().join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+		if (prefetcher.isPresent())
+			prefetcher.get().shutdown();
+		if (storage.isPresent()) {
+			synchronized (compactMonitor) {
+				deleteCompactedFiles(true);
+			}
+			storage.get().close();
+		}
+		if (superblock.isPresent())
+			superblock.get().close();
+		if (error.isPresent())
+			throw error.get();
+	}
+
+	/**
+	 * Copies the live nodes out of the sealed storage files chosen by the
+	 * {@link CompactionPolicy} from {@link Storage#getFileStats()}, replacing
+	 * the root, and writes the metadata. The compacted files are deleted by a
+	 * later compaction once no find or iterator that started before this
+	 * compaction is in progress, or on close. Returns the number of files
+	 * compacted.
+	 * 
+	 * The tree is walked to find the nodes to move without holding the write
+	 * lock. Adds are only blocked while the moved nodes and their ancestors
+	 * are copied.
+	 * 
+	 * @return
+	 */
+	public int compact() {
+		if (!storage.isPresent())
+			return 0;
+		synchronized (compactMonitor) {
+			deleteCompactedFiles(false);
+			NodeRef<T> r;
+			Optional<Storage.Batch<T>> batch;
+			Position end;
+			synchronized (writeMonitor) {
+				r = root;
+				batch = lastBatch;
+				end = storage.get().getEndPosition();
+			}
+			// every node reachable from r is saved once the batch is
+			commitSaves(batch);
+			if (!r.getPosition().isPresent())
+				// nothing saved yet
+				return 0;
+			if (!storage.get().hasFileStats())
+				storage.get().resetFileStats(Compactor.liveBytes(r));
+			Set<Long> victims = compactionPolicy.choose(storage.get()
+					.getFileStatsBefore(end.getFileNumber()));
+			if (victims.isEmpty())
+				return 0;
+			Set<Position> moving = Compactor.findMoving(r, victims);
+			synchronized (writeMonitor) {
+				commitSaves(lastBatch);
+				List<NodeRef<T>> obsolete = Lists.newArrayList();
+				Optional<NodeRef<T>> node = Compactor.relocate(root, victims,
+						moving, end, saveQueue, obsolete);
+				batch = submitSaves(saveQueue, obsolete, node);
+				if (node.isPresent())
+					root = node.get();
+			}
+			commitSaves(batch);
+			// reads that enter from now on read the new root (or a later
+			// one) which does not reach the victims
+			long epoch = readers.advance();
+			// the metadata must refer to the new root before the compacted
+			// files are deleted
+			flush();
+			for (long number : victims)
+				compactedFiles.put(number, epoch);
+			return victims.size();
+		}
+	}
+
+	/**
+	 * Writes a copy of this b-tree as of now to new storage in
+	 * <code>directory</code> holding only the nodes reachable from the root,
+	 * densely packed in post-order (children before parents), and returns
+	 * the metadata file to open the copy with. The metadata file has the same
+	 * name as the metadata file of this b-tree (or <code>btree</code> if it
+	 * has none) and must not already exist.
+	 * 
+	 * Adds can continue while exporting because the copy is of the root when
+	 * the export started. Compactions wait until the export has finished.
+	 * 
+	 * @param directory
+	 * @return
+	 */
+	public File exportTo(File directory) {
+		String name = metadataFile.isPresent() ? metadataFile.get().getName()
+				: "btree";
+		File exported = new File(directory, name);
+		Preconditions.checkArgument(!exported.exists(), exported
+				+ " already exists");
+		directory.mkdirs();
+		Storage target;
+		if (storage.isPresent())
+			target = storage.get()
+					.builderLike(directory, name + ".storage").build();
+		else
+			target = Storage.builder(directory, name + ".storage").build();
+		try {
+			// prevent the deletion of compacted files still used by r
+			synchronized (compactMonitor) {
+				NodeRef<T> r;
+				synchronized (writeMonitor) {
+					r = root;
+				}
+				LinkedList<NodeRef<T>> queue = Lists.newLinkedList();
+				NodeRef<T> copy = export(r, target, queue);
+				target.commit(target.submit(queue,
+						Collections.<NodeRef<T>> emptyList(), of(copy),
+						keySerializer));
+				target.flush();
+				Superblock superblock = new Superblock(exported, false);
+				try {
+					superblock.write(new Superblock.Metadata(copy
+							.getPosition().get(), degree, directory
+							.getAbsolutePath(), target.getName(),
+							of(KeySerializers.id(keySerializer))), target
+							.getDurability() != Durability.NONE);
+				} finally {
+					superblock.close();
+				}
+			}
+		} finally {
+			target.close();
+		}
+		return exported;
+	}
+
+	/**
+	 * Adds to <code>queue</code> copies of the nodes reachable from
+	 * <code>node</code> in post-order, saving the queue to
+	 * <code>target</code> whenever it is full, and returns the copy of
+	 * <code>node</code>. Saved copies are unloaded so that only the copies of
+	 * the nodes on the current path and the queue are held in memory.
+	 * 
+	 * @param node
+	 * @param target
+	 * @param queue
+	 * @return
+	 */
+	private NodeRef<T> export(NodeRef<T> node, Storage target,
+			LinkedList<NodeRef<T>> queue) {
+		List<Optional<NodeRef<T>>> children = node.children();
+		for (int i = 0; i < children.size(); i++)
+			children.set(i, of(export(children.get(i).get(), target, queue)));
+		if (queue.size() >= BULK_BATCH_NODES) {
+			// the root copy is always left for the last batch
+			Storage.Batch<T> batch = target.submit(queue,
+					Collections.<NodeRef<T>> emptyList(),
+					Optional.<NodeRef<T>> absent(), keySerializer);
+			target.commit(batch);
+			queue.clear();
+			// only the positions of saved copies are needed (by their
+			// parents) and they must never be loaded because their loader
+			// reads the storage of this b-tree
+			for (NodeRef<T> saved : batch.getNodes())
+				saved.unload();
+		}
+		NodeRef<T> copy = node.copyWithChildren(children);
+		queue.add(copy);
+		return copy;
+	}
+
+	/**
+	 * Deletes the compacted files that no read in progress can reach, or all
+	 * of them if <code>all</code> is true. Must be called while holding
+	 * compactMonitor.
+	 * 
+	 * @param all
+	 */
+	private void deleteCompactedFiles(boolean all) {
+		Iterator<Map.Entry<Long, Long>> it = compactedFiles.entrySet()
+				.iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long, Long> entry = it.next();
+			if (all || !readers.isReadingBefore(entry.getValue())) {
+				storage.get().deleteFile(entry.getKey());
+				it.remove();
+			}
+		}
 	}
 
 	/**
@@ -429,11 +1408,21 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 	 * @return
 	 */
 	public Optional<T> find(T t) {
-		return root.find(t);
+		Readers.Reader reader = readers.enter();
+		try {
+			return root.find(t);
+		} finally {
+			readers.exit(reader);
+		}
 	}
 
 	public Iterable<T> findAll(T t) {
-		return root.findAll(t);
+		Readers.Reader reader = readers.enter();
+		try {
+			return root.findAll(t);
+		} finally {
+			readers.exit(reader);
+		}
 	}
 
 	/**
@@ -489,7 +1478,52 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 
 	@Override
 	public Iterator<T> iterator() {
-		return root.iterator();
+		return new ReadingIterator();
+	}
+
+	/**
+	 * Iterates over the values from the root when created and is registered
+	 * with {@link #readers} until the last value has been returned or it is
+	 * garbage collected so that the files it may reach are not deleted.
+	 */
+	private final class ReadingIterator implements Iterator<T> {
+
+		private final Readers.Reader reader;
+
+		private final Iterator<T> it;
+
+		ReadingIterator() {
+			reader = readers.enter(this);
+			try {
+				it = new NodeIterator<T>(root, prefetcher);
+			} catch (RuntimeException e) {
+				readers.exit(reader);
+				throw e;
+			}
+			exitIfFinished();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return it.hasNext();
+		}
+
+		@Override
+		public T next() {
+			T t = it.next();
+			exitIfFinished();
+			return t;
+		}
+
+		@Override
+		public void remove() {
+			it.remove();
+		}
+
+		private void exitIfFinished() {
+			if (!it.hasNext())
+				readers.exit(reader);
+		}
 	}
 
 	/**
@@ -508,8 +1542,8 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 	 */
 	private void load(NodeRef<T> node) {
 		if (storage.isPresent()) {
-			storage.get().load(node);
-			loaded(node.getPosition().get().getPosition(), node);
+			storage.get().load(node, keySerializer);
+			loaded(node);
 		}
 	}
 
@@ -517,26 +1551,17 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 	 * Writes information about the current file to stdout.
 	 */
 	public void displayFile() {
-		try {
-			System.out.println("------------ File contents ----------------");
-			System.out.println(storage.get().getFile());
-			long length = storage.get().getFile().length();
-			System.out.println("length=" + length);
-			FileInputStream fis = new FileInputStream(storage.get().getFile());
-			int pos = 0;
-			while (pos < length) {
-				NodeRef<T> ref = new NodeRef<T>(loader,
-						Optional.<Position> absent(), degree, false);
-				Node<T> node = new Node<T>(loader, ref, false);
-				long size = node.load(fis);
-				displayNode(pos, node);
-				pos += size;
-				System.out.println("pos=" + pos);
-			}
-			System.out.println("------------");
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+		System.out.println("------------ File contents ----------------");
+		System.out.println(storage.get().getFile());
+		long number = storage.get().getFileNumber();
+		// the file is preallocated so stop where the records end
+		System.out.println("length=" + storage.get().findEndOfRecords(number));
+		for (long pos : storage.get().findNodePositions(number)) {
+			NodeRef<T> ref = new NodeRef<T>(loader, of(new Position(number,
+					pos)), degree, false);
+			displayNode(pos, ref.node());
 		}
+		System.out.println("------------");
 	}
 
 	/**
@@ -0,0 +1,165 @@
+package com.github.davidmoten.structures.btree;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+
+/**
+ * A pool of direct {@link ByteBuffer}s so that node records can be encoded
+ * straight into memory that a channel writes from without copying and
+ * without allocating a direct buffer for every save.
+ *
+ * Buffers are pooled by capacity in powers of two. Requests larger than the
+ * largest pooled capacity get a heap buffer that is not pooled.
+ *
+ * @author dxm
+ *
+ */
+final class BufferPool {
+
+	/**
+	 * The smallest pooled capacity is 2 to this power.
+	 */
+	private static final int MIN_SHIFT = 12;
+
+	/**
+	 * The largest pooled capacity is 2 to this power.
+	 */
+	private final int maxShift;
+
+	/**
+	 * The maximum number of free buffers kept of each capacity.
+	 */
+	private final int maxFreePerCapacity;
+
+	/**
+	 * The free buffers of each capacity from the smallest.
+	 */
+	private final List<Queue<ByteBuffer>> free = Lists.newArrayList();
+
+	/**
+	 * The number of free buffers of each capacity.
+	 */
+	private final List<AtomicInteger> freeCounts = Lists.newArrayList();
+
+	private final AtomicLong acquisitions = new AtomicLong();
+
+	private final AtomicLong allocations = new AtomicLong();
+
+	private final AtomicLong allocatedBytes = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxShift
+	 *            the largest pooled capacity is 2 to this power
+	 * @param maxFreePerCapacity
+	 */
+	BufferPool(int maxShift, int maxFreePerCapacity) {
+		this.maxShift = maxShift;
+		this.maxFreePerCapacity = maxFreePerCapacity;
+		for (int shift = MIN_SHIFT; shift <= maxShift; shift++) {
+			free.add(new ConcurrentLinkedQueue<ByteBuffer>());
+			freeCounts.add(new AtomicInteger());
+		}
+	}
+
+	/**
+	 * Returns a buffer with position 0 and limit <code>length</code>. The
+	 * buffer should be passed to {@link #release(ByteBuffer)} once no longer
+	 * used.
+	 *
+	 * @param length
+	 * @return
+	 */
+	ByteBuffer acquire(int length) {
+		acquisitions.incrementAndGet();
+		int shift = shift(length);
+		ByteBuffer bb;
+		if (shift > maxShift) {
+			allocations.incrementAndGet();
+			allocatedBytes.addAndGet(length);
+			bb = ByteBuffer.allocate(length);
+		} else {
+			int index = shift - MIN_SHIFT;
+			bb = free.get(index).poll();
+			if (bb == null) {
+				allocations.incrementAndGet();
+				allocatedBytes.addAndGet(1 << shift);
+				bb = ByteBuffer.allocateDirect(1 << shift);
+			} else
+				freeCounts.get(index).decrementAndGet();
+			bb.clear();
+		}
+		bb.limit(length);
+		return bb;
+	}
+
+	/**
+	 * Returns a buffer obtained from {@link #acquire(int)} to the pool. The
+	 * buffer must not be used afterwards.
+	 *
+	 * @param bb
+	 */
+	void release(ByteBuffer bb) {
+		if (!bb.isDirect())
+			return;
+		int index = shift(bb.capacity()) - MIN_SHIFT;
+		if (freeCounts.get(index).incrementAndGet() <= maxFreePerCapacity)
+			free.get(index).offer(bb);
+		else
+			// let it be garbage collected
+			freeCounts.get(index).decrementAndGet();
+	}
+
+	/**
+	 * Returns the number of buffers acquired.
+	 *
+	 * @return
+	 */
+	@VisibleForTesting
+	long acquisitions() {
+		return acquisitions.get();
+	}
+
+	/**
+	 * Returns the number of buffers allocated because none of the capacity
+	 * was free (or the length was too large to pool).
+	 *
+	 * @return
+	 */
+	@VisibleForTesting
+	long allocations() {
+		return allocations.get();
+	}
+
+	/**
+	 * Returns the total capacity in bytes of the buffers allocated.
+	 *
+	 * @return
+	 */
+	@VisibleForTesting
+	long allocatedBytes() {
+		return allocatedBytes.get();
+	}
+
+	/**
+	 * Returns the power of two of the smallest pooled capacity that is at
+	 * least <code>length</code>.
+	 *
+	 * @param length
+	 * @return
+	 */
+	private static int shift(int length) {
+		int shift = MIN_SHIFT;
+		while (shift < 30 && (1 << shift) < length)
+			shift++;
+		return shift;
+	}
+}
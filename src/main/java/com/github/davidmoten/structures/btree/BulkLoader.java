@@ -0,0 +1,221 @@
+package com.github.davidmoten.structures.btree;
+
+import static com.google.common.base.Optional.absent;
+import static com.google.common.base.Optional.of;
+
+import java.io.Serializable;
+import java.util.List;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * Builds a b-tree bottom-up from values in sorted order. Leaves are packed
+ * left to right and each level above is built as the nodes of the level
+ * below are completed, so only one node per level is being built at a time.
+ *
+ * Each level holds back the key that would follow a full node until another
+ * key arrives so that the last node of a level is never left without keys.
+ * The held back key is added to the last node if none arrives, which is why
+ * nodes are filled to at most two less than the degree.
+ *
+ * Completed nodes are added to the save queue in the order they are
+ * completed, children before parents and the root last. The caller keeps
+ * memory bounded by saving and unloading the queued nodes as it grows.
+ *
+ * @author dxm
+ *
+ * @param <T>
+ */
+final class BulkLoader<T extends Serializable & Comparable<T>> {
+
+	private final NodeLoader<T> loader;
+
+	private final int degree;
+
+	/**
+	 * The number of keys in each node apart from the last of each level.
+	 */
+	private final int capacity;
+
+	private final List<NodeRef<T>> saveQueue;
+
+	/**
+	 * The node being built at each level from the leaves up.
+	 */
+	private final List<Level> levels = Lists.newArrayList();
+
+	/**
+	 * The last value added.
+	 */
+	private Optional<T> last = absent();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param loader
+	 * @param degree
+	 * @param capacity
+	 *            the number of keys in each node apart from the last of each
+	 *            level which may have one more or fewer
+	 * @param saveQueue
+	 *            completed nodes are added to this
+	 */
+	BulkLoader(NodeLoader<T> loader, int degree, int capacity,
+			List<NodeRef<T>> saveQueue) {
+		Preconditions.checkArgument(capacity >= 1 && capacity <= degree - 2,
+				"capacity must be between 1 and degree - 2");
+		this.loader = loader;
+		this.degree = degree;
+		this.capacity = capacity;
+		this.saveQueue = saveQueue;
+		levels.add(new Level(0));
+	}
+
+	/**
+	 * Returns the number of keys per node for a fill factor between 0 and 1.
+	 *
+	 * @param degree
+	 * @param fillFactor
+	 * @return
+	 */
+	static int capacity(int degree, double fillFactor) {
+		Preconditions.checkArgument(degree >= 3,
+				"bulk load requires degree >= 3");
+		Preconditions.checkArgument(fillFactor > 0 && fillFactor <= 1,
+				"fillFactor must be > 0 and <= 1");
+		return Math.max(1,
+				Math.min(degree - 2, (int) Math.round(fillFactor * (degree - 1))));
+	}
+
+	/**
+	 * Adds a value which must not be less than the value added before.
+	 *
+	 * @param t
+	 */
+	void add(T t) {
+		if (last.isPresent() && t.compareTo(last.get()) < 0)
+			throw new IllegalArgumentException("values must be sorted but " + t
+					+ " follows " + last.get());
+		last = of(t);
+		levels.get(0).add(Optional.<NodeRef<T>> absent(), t);
+	}
+
+	/**
+	 * Completes the last node of every level and returns the root, which is
+	 * the last node added to the save queue. Returns absent if no values were
+	 * added.
+	 *
+	 * @return
+	 */
+	Optional<NodeRef<T>> finish() {
+		if (!last.isPresent())
+			return absent();
+		Optional<NodeRef<T>> child = absent();
+		for (int i = 0; i < levels.size(); i++)
+			child = of(levels.get(i).finish(child, i == levels.size() - 1));
+		return child;
+	}
+
+	/**
+	 * The node being built at one level.
+	 */
+	private final class Level {
+
+		/**
+		 * The height of the nodes of this level, 0 for leaves.
+		 */
+		private final int height;
+
+		/**
+		 * The values of the keys of the node being built.
+		 */
+		private final List<T> values = Lists.newArrayList();
+
+		/**
+		 * The children of the node being built, one fewer than the values
+		 * until the node is completed (all absent at the leaf level).
+		 */
+		private final List<Optional<NodeRef<T>>> children = Lists
+				.newArrayList();
+
+		/**
+		 * The child and value held back once the node is full.
+		 */
+		private Optional<NodeRef<T>> pendingChild = absent();
+		private Optional<T> pendingValue = absent();
+
+		Level(int height) {
+			this.height = height;
+		}
+
+		/**
+		 * Adds the value following <code>child</code>, completing the node
+		 * if full and a value is already held back.
+		 *
+		 * @param child
+		 * @param t
+		 */
+		void add(Optional<NodeRef<T>> child, T t) {
+			if (values.size() < capacity) {
+				children.add(child);
+				values.add(t);
+			} else if (!pendingValue.isPresent()) {
+				pendingChild = child;
+				pendingValue = of(t);
+			} else {
+				children.add(pendingChild);
+				NodeRef<T> node = complete(false);
+				parent().add(of(node), pendingValue.get());
+				pendingValue = absent();
+				children.add(child);
+				values.add(t);
+			}
+		}
+
+		/**
+		 * Completes the node with <code>child</code> as its last child and
+		 * returns it.
+		 *
+		 * @param child
+		 * @param isRoot
+		 * @return
+		 */
+		NodeRef<T> finish(Optional<NodeRef<T>> child, boolean isRoot) {
+			if (pendingValue.isPresent()) {
+				children.add(pendingChild);
+				values.add(pendingValue.get());
+				pendingValue = absent();
+			}
+			children.add(child);
+			return complete(isRoot);
+		}
+
+		private Level parent() {
+			if (height == levels.size() - 1)
+				levels.add(new Level(height + 1));
+			return levels.get(height + 1);
+		}
+
+		/**
+		 * Creates the node from the values and children, adds it to the save
+		 * queue and starts a new node.
+		 *
+		 * @param isRoot
+		 * @return
+		 */
+		private NodeRef<T> complete(boolean isRoot) {
+			List<Key<T>> keys = Lists.newArrayListWithCapacity(values.size());
+			for (int i = 0; i < values.size(); i++)
+				keys.add(new Key<T>(values.get(i), children.get(i), children
+						.get(i + 1), false));
+			NodeRef<T> node = NodeRef.create(loader, degree, isRoot, height,
+					keys);
+			saveQueue.add(node);
+			values.clear();
+			children.clear();
+			return node;
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package com.github.davidmoten.structures.btree;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import com.google.common.base.Optional;
+
+/**
+ * The record written after the node records of each batch saved to storage.
+ * It holds the position of the root of the b-tree once the batch is saved
+ * and a checksum of the batch so that after a crash the last completely
+ * written batch (and so the latest root) can be found by reading backwards
+ * from the end of the newest storage file. The format is:
+ *
+ * <pre>
+ * short  magic
+ * byte   version
+ * byte   flags (has root)
+ * int    length of the record in bytes
+ * int    length in bytes of the batch before the record
+ * long   root file number
+ * long   root position
+ * int    CRC32 of the batch and of the record up to here
+ * int    trailer
+ * </pre>
+ *
+ * The trailer is never zero so that the last record written to a
+ * preallocated (zero filled) file ends with a non-zero byte.
+ *
+ * @author dxm
+ *
+ */
+final class CommitRecord {
+
+	static final int LENGTH = 36;
+
+	private static final short MAGIC = (short) 0xC033;
+	private static final byte VERSION = 1;
+	private static final int FLAG_HAS_ROOT = 1;
+	private static final int LENGTH_OFFSET = 4;
+	private static final int CRC_OFFSET = 28;
+	private static final int TRAILER = 0xC0117EED;
+	private static final int CHUNK_BYTES = 4096;
+
+	/**
+	 * The position of the commit record.
+	 */
+	private final Position position;
+
+	/**
+	 * The root of the b-tree once the batch was saved.
+	 */
+	private final Optional<Position> root;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param position
+	 * @param root
+	 */
+	private CommitRecord(Position position, Optional<Position> root) {
+		this.position = position;
+		this.root = root;
+	}
+
+	Position getPosition() {
+		return position;
+	}
+
+	Optional<Position> getRoot() {
+		return root;
+	}
+
+	/**
+	 * Returns the position just after the record.
+	 *
+	 * @return
+	 */
+	Position getEnd() {
+		return new Position(position.getFileNumber(), position.getPosition()
+				+ LENGTH);
+	}
+
+	/**
+	 * Returns true if and only if the record at the current position of the
+	 * buffer is a commit record.
+	 *
+	 * @param bb
+	 * @return
+	 */
+	static boolean isCommitRecord(ByteBuffer bb) {
+		return bb.getShort(bb.position()) == MAGIC;
+	}
+
+	/**
+	 * Writes a commit record at the current position of the buffer for the
+	 * batch that starts at position <code>batchStart</code> of the buffer and
+	 * ends at the current position.
+	 *
+	 * @param bb
+	 * @param batchStart
+	 * @param root
+	 */
+	static void write(ByteBuffer bb, int batchStart, Optional<Position> root) {
+		int start = bb.position();
+		bb.putShort(MAGIC);
+		bb.put(VERSION);
+		bb.put((byte) (root.isPresent() ? FLAG_HAS_ROOT : 0));
+		bb.putInt(LENGTH);
+		bb.putInt(start - batchStart);
+		bb.putLong(root.isPresent() ? root.get().getFileNumber()
+				: Node.CHILD_ABSENT);
+		bb.putLong(root.isPresent() ? root.get().getPosition()
+				: Node.CHILD_ABSENT);
+		bb.putInt((int) checksum(bb, batchStart, start + CRC_OFFSET));
+		bb.putInt(TRAILER);
+	}
+
+	/**
+	 * Returns the length in bytes of the batch before the commit record at
+	 * the current position of the buffer, or absent if the bytes there are not
+	 * the start of a commit record.
+	 *
+	 * @param bb
+	 * @return
+	 */
+	static Optional<Integer> batchLength(ByteBuffer bb) {
+		int start = bb.position();
+		if (bb.remaining() < LENGTH || bb.getShort(start) != MAGIC
+				|| bb.get(start + 2) != VERSION
+				|| bb.getInt(start + LENGTH_OFFSET) != LENGTH
+				|| bb.getInt(start + LENGTH - 4) != TRAILER)
+			return Optional.absent();
+		else
+			return Optional.of(bb.getInt(start + LENGTH_OFFSET + 4));
+	}
+
+	/**
+	 * Returns true if the commit record at the current position of the buffer
+	 * records a root.
+	 * 
+	 * @param bb
+	 * @return
+	 */
+	static boolean hasRoot(ByteBuffer bb) {
+		return (bb.get(bb.position() + 3) & FLAG_HAS_ROOT) != 0;
+	}
+
+	/**
+	 * Returns the commit record at the end of the buffer if its checksum
+	 * matches, where the buffer holds the batch followed by the commit record
+	 * from its position to its limit.
+	 *
+	 * @param bb
+	 * @param position
+	 *            the position in the file of the commit record
+	 * @return
+	 */
+	static Optional<CommitRecord> read(ByteBuffer bb, Position position) {
+		int batchStart = bb.position();
+		int start = bb.limit() - LENGTH;
+		int crc = bb.getInt(start + CRC_OFFSET);
+		if (crc != (int) checksum(bb, batchStart, start + CRC_OFFSET))
+			return Optional.absent();
+		Optional<Position> root;
+		if ((bb.get(start + 3) & FLAG_HAS_ROOT) != 0)
+			root = Optional.of(new Position(bb.getLong(start + 12), bb
+					.getLong(start + 20)));
+		else
+			root = Optional.absent();
+		return Optional.of(new CommitRecord(position, root));
+	}
+
+	/**
+	 * Returns the CRC32 of the bytes of the buffer from <code>from</code>
+	 * (inclusive) to <code>to</code> (exclusive). The position of the buffer
+	 * is not changed.
+	 *
+	 * @param bb
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	private static long checksum(ByteBuffer bb, int from, int to) {
+		CRC32 crc = new CRC32();
+		if (bb.hasArray())
+			crc.update(bb.array(), bb.arrayOffset() + from, to - from);
+		else {
+			// a direct buffer so copy through a small array
+			byte[] chunk = new byte[Math.min(CHUNK_BYTES, to - from)];
+			ByteBuffer dup = bb.duplicate();
+			dup.limit(to);
+			dup.position(from);
+			while (dup.hasRemaining()) {
+				int n = Math.min(chunk.length, dup.remaining());
+				dup.get(chunk, 0, n);
+				crc.update(chunk, 0, n);
+			}
+		}
+		return crc.getValue();
+	}
+}
@@ -0,0 +1,88 @@
+package com.github.davidmoten.structures.btree;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Standard {@link CompactionPolicy} implementations.
+ * 
+ * @author dxm
+ * 
+ */
+public final class CompactionPolicies {
+
+	private CompactionPolicies() {
+		// prevent instantiation
+	}
+
+	/**
+	 * Returns a policy that compacts every sealed file whose live fraction is
+	 * less than <code>threshold</code>.
+	 * 
+	 * @param threshold
+	 *            between 0 and 1
+	 * @return
+	 */
+	public static CompactionPolicy liveFractionBelow(final double threshold) {
+		Preconditions.checkArgument(threshold >= 0 && threshold <= 1,
+				"threshold must be between 0 and 1");
+		return new CompactionPolicy() {
+			@Override
+			public Set<Long> choose(List<FileStats> sealedFiles) {
+				Set<Long> set = Sets.newHashSet();
+				for (FileStats stats : sealedFiles)
+					if (stats.getLiveFraction() < threshold)
+						set.add(stats.getFileNumber());
+				return set;
+			}
+		};
+	}
+
+	/**
+	 * Returns a policy that compacts the files with the best ratio of space
+	 * reclaimed to bytes copied, <code>(1 - u) / (1 + u)</code> where u is the
+	 * live fraction, as long as that ratio is at least
+	 * <code>minBenefitToCost</code>. At most <code>maxFiles</code> files are
+	 * chosen per compaction.
+	 * 
+	 * @param minBenefitToCost
+	 * @param maxFiles
+	 * @return
+	 */
+	public static CompactionPolicy costBenefit(final double minBenefitToCost,
+			final int maxFiles) {
+		Preconditions.checkArgument(maxFiles > 0, "maxFiles must be > 0");
+		return new CompactionPolicy() {
+			@Override
+			public Set<Long> choose(List<FileStats> sealedFiles) {
+				List<FileStats> candidates = Lists.newArrayList();
+				for (FileStats stats : sealedFiles)
+					if (benefitToCost(stats) >= minBenefitToCost)
+						candidates.add(stats);
+				Collections.sort(candidates, new Comparator<FileStats>() {
+					@Override
+					public int compare(FileStats a, FileStats b) {
+						return Double.compare(benefitToCost(b),
+								benefitToCost(a));
+					}
+				});
+				Set<Long> set = Sets.newHashSet();
+				for (FileStats stats : candidates.subList(0,
+						Math.min(maxFiles, candidates.size())))
+					set.add(stats.getFileNumber());
+				return set;
+			}
+		};
+	}
+
+	private static double benefitToCost(FileStats stats) {
+		double u = stats.getLiveFraction();
+		return (1 - u) / (1 + u);
+	}
+}
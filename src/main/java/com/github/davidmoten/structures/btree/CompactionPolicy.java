@@ -0,0 +1,23 @@
+package com.github.davidmoten.structures.btree;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Chooses the storage files to compact.
+ * 
+ * @author dxm
+ * 
+ */
+public interface CompactionPolicy {
+
+	/**
+	 * Returns the numbers of the files to compact chosen from the sealed
+	 * files (those no longer being written to).
+	 * 
+	 * @param sealedFiles
+	 *            in ascending order of file number
+	 * @return
+	 */
+	Set<Long> choose(List<FileStats> sealedFiles);
+}
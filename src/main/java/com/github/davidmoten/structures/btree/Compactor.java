@@ -0,0 +1,143 @@
+package com.github.davidmoten.structures.btree;
+
+import static com.google.common.base.Optional.absent;
+import static com.google.common.base.Optional.of;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Copies the live nodes in sealed storage files chosen for compaction forward
+ * so that the files can be deleted.
+ *
+ * Because nodes are copy-on-write only nodes reachable from the current root
+ * are live. A node is moved by saving a copy of it and then a copy of every
+ * node on the path from the root to it with the child reference replaced,
+ * giving a new root.
+ *
+ * @author dxm
+ *
+ */
+final class Compactor {
+
+	private Compactor() {
+		// prevent instantiation
+	}
+
+	/**
+	 * Returns the total length in bytes of the records of the nodes reachable
+	 * from <code>root</code> keyed by file number. Every reachable node must
+	 * have been saved.
+	 *
+	 * @param root
+	 * @return
+	 */
+	static <T extends Serializable & Comparable<T>> Map<Long, Long> liveBytes(
+			NodeRef<T> root) {
+		Map<Long, Long> map = Maps.newHashMap();
+		addLiveBytes(root, map);
+		return map;
+	}
+
+	private static <T extends Serializable & Comparable<T>> void addLiveBytes(
+			NodeRef<T> node, Map<Long, Long> map) {
+		long fileNumber = position(node).getFileNumber();
+		Long bytes = map.get(fileNumber);
+		map.put(fileNumber, (bytes == null ? 0 : bytes)
+				+ node.getRecordLength());
+		for (Optional<NodeRef<T>> child : node.children())
+			if (child.isPresent())
+				addLiveBytes(child.get(), map);
+	}
+
+	/**
+	 * Returns the positions of the nodes reachable from <code>root</code> that
+	 * are in one of the <code>victims</code> files or have a descendant that
+	 * is.
+	 *
+	 * @param root
+	 * @param victims
+	 * @return
+	 */
+	static <T extends Serializable & Comparable<T>> Set<Position> findMoving(
+			NodeRef<T> root, Set<Long> victims) {
+		Set<Position> set = Sets.newHashSet();
+		addMoving(root, victims, set);
+		return set;
+	}
+
+	private static <T extends Serializable & Comparable<T>> boolean addMoving(
+			NodeRef<T> node, Set<Long> victims, Set<Position> set) {
+		Position position = position(node);
+		boolean moving = victims.contains(position.getFileNumber());
+		for (Optional<NodeRef<T>> child : node.children())
+			if (child.isPresent() && addMoving(child.get(), victims, set))
+				moving = true;
+		if (moving)
+			set.add(position);
+		return moving;
+	}
+
+	/**
+	 * Adds to <code>saveQueue</code> (children before parents) copies of the
+	 * nodes reachable from <code>node</code> that are in a victim file or have
+	 * a descendant that is, adds the nodes copied to <code>obsolete</code>
+	 * and returns the copy of <code>node</code> if it was copied.
+	 *
+	 * Nodes saved before <code>end</code> are only visited if in
+	 * <code>moving</code>, so that a compaction only has to walk the whole
+	 * tree (to find <code>moving</code>) without holding the write lock.
+	 * Nodes saved since are all visited.
+	 *
+	 * @param node
+	 * @param victims
+	 * @param moving
+	 *            as returned by {@link #findMoving(NodeRef, Set)} for a root
+	 *            saved before <code>end</code>
+	 * @param end
+	 * @param saveQueue
+	 * @param obsolete
+	 * @return
+	 */
+	static <T extends Serializable & Comparable<T>> Optional<NodeRef<T>> relocate(
+			NodeRef<T> node, Set<Long> victims, Set<Position> moving,
+			Position end, List<NodeRef<T>> saveQueue,
+			List<NodeRef<T>> obsolete) {
+		Position position = position(node);
+		if (position.isBefore(end) && !moving.contains(position))
+			return absent();
+		boolean changed = victims.contains(position.getFileNumber());
+		List<Optional<NodeRef<T>>> children = node.children();
+		for (int i = 0; i < children.size(); i++) {
+			if (children.get(i).isPresent()) {
+				Optional<NodeRef<T>> copy = relocate(children.get(i).get(),
+						victims, moving, end, saveQueue, obsolete);
+				if (copy.isPresent()) {
+					children.set(i, copy);
+					changed = true;
+				}
+			}
+		}
+		if (changed) {
+			NodeRef<T> copy = node.copyWithChildren(children);
+			saveQueue.add(copy);
+			obsolete.add(node);
+			return of(copy);
+		} else
+			return absent();
+	}
+
+	private static <T extends Serializable & Comparable<T>> Position position(
+			NodeRef<T> node) {
+		Preconditions.checkArgument(node.getPosition().isPresent(),
+				"node must be saved");
+		return node.getPosition().get();
+	}
+}
@@ -0,0 +1,28 @@
+package com.github.davidmoten.structures.btree;
+
+/**
+ * How durable a write to a {@link BTree} is by the time the write returns.
+ * 
+ * @author dxm
+ * 
+ */
+public enum Durability {
+
+	/**
+	 * Nodes are handed to the operating system but are never forced to
+	 * disk, not even on flush or close.
+	 */
+	NONE,
+
+	/**
+	 * Nodes are handed to the operating system before the write returns and
+	 * are forced to disk on flush and close.
+	 */
+	WRITE,
+
+	/**
+	 * Nodes are forced to disk before the write returns. Concurrent writes
+	 * are committed as a group with a single force.
+	 */
+	FSYNC;
+}
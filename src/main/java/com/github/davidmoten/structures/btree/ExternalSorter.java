@@ -0,0 +1,349 @@
+package com.github.davidmoten.structures.btree;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Sorts values that may not fit in memory. Runs of values are sorted in
+ * memory and spilled to temporary files on a pool of threads, then the runs
+ * are merged (in more than one pass if there are too many to have open at
+ * once) into a single sorted iterator. At most
+ * <code>(threads + 1) * runSize</code> values are held in memory at a time.
+ *
+ * Each value in a run file is written by the {@link KeySerializer} preceded
+ * by its length in bytes as an int.
+ *
+ * @author dxm
+ *
+ * @param <T>
+ */
+final class ExternalSorter<T extends Comparable<T>> {
+
+	/**
+	 * The maximum number of runs merged at once.
+	 */
+	private static final int MAX_FAN_IN = 128;
+
+	/**
+	 * The size of the buffer used to read or write each run file.
+	 */
+	private static final int BUFFER_BYTES = 32768;
+
+	private final KeySerializer<T> serializer;
+
+	/**
+	 * The directory of the run files, the system temporary directory if
+	 * absent.
+	 */
+	private final Optional<File> directory;
+
+	/**
+	 * The prefix of the names of the run files.
+	 */
+	private final String prefix;
+
+	private final int runSize;
+
+	private final int threads;
+
+	/**
+	 * The run files created, deleted on close. Guarded by this.
+	 */
+	private final List<File> files = Lists.newArrayList();
+
+	/**
+	 * The run files being read by the iterator returned from
+	 * {@link #sort(Iterator)}, closed on close. Guarded by this.
+	 */
+	private final List<RunReader> readers = Lists.newArrayList();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param serializer
+	 * @param directory
+	 * @param prefix
+	 * @param runSize
+	 *            the number of values sorted in memory for each run
+	 * @param threads
+	 *            the number of threads sorting and spilling runs
+	 */
+	ExternalSorter(KeySerializer<T> serializer, Optional<File> directory,
+			String prefix, int runSize, int threads) {
+		Preconditions.checkArgument(runSize > 0, "runSize must be positive");
+		Preconditions.checkArgument(threads > 0, "threads must be positive");
+		this.serializer = serializer;
+		this.directory = directory;
+		this.prefix = prefix;
+		this.runSize = runSize;
+		this.threads = threads;
+	}
+
+	/**
+	 * Returns the values of <code>input</code> in ascending order. The
+	 * returned iterator reads run files so {@link #close()} should be called
+	 * once it is no longer used.
+	 *
+	 * @param input
+	 * @return
+	 */
+	Iterator<T> sort(Iterator<T> input) {
+		List<T> run = Lists.newArrayList();
+		while (input.hasNext() && run.size() < runSize)
+			run.add(input.next());
+		if (!input.hasNext()) {
+			// fits in memory
+			Collections.sort(run);
+			return run.iterator();
+		}
+		List<File> runs = spill(run, input);
+		while (runs.size() > MAX_FAN_IN) {
+			List<File> merged = Lists.newArrayList();
+			for (List<File> group : Lists.partition(runs, MAX_FAN_IN))
+				merged.add(writeRun(merge(group)));
+			for (File file : runs)
+				file.delete();
+			runs = merged;
+		}
+		return merge(runs);
+	}
+
+	/**
+	 * Sorts and writes <code>first</code> and the runs read from the rest of
+	 * <code>input</code> to run files in parallel and returns the files in
+	 * order.
+	 *
+	 * @param first
+	 * @param input
+	 * @return
+	 */
+	private List<File> spill(List<T> first, Iterator<T> input) {
+		ExecutorService executor = Executors.newFixedThreadPool(threads,
+				new ThreadFactoryBuilder().setDaemon(true)
+						.setNameFormat("btree-sort-%d").build());
+		// bounds the runs in memory to those being sorted or written plus
+		// the one being read
+		Semaphore permits = new Semaphore(threads);
+		List<Future<File>> futures = Lists.newArrayList();
+		try {
+			List<T> run = first;
+			while (!run.isEmpty()) {
+				permits.acquire();
+				futures.add(executor.submit(sortAndWrite(run, permits)));
+				run = Lists.newArrayListWithCapacity(runSize);
+				while (input.hasNext() && run.size() < runSize)
+					run.add(input.next());
+			}
+			List<File> runs = Lists.newArrayList();
+			for (Future<File> future : futures)
+				runs.add(future.get());
+			return runs;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private Callable<File> sortAndWrite(final List<T> run,
+			final Semaphore permits) {
+		return new Callable<File>() {
+			@Override
+			public File call() {
+				try {
+					Collections.sort(run);
+					return writeRun(run.iterator());
+				} finally {
+					permits.release();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Writes the values to a new run file and returns it.
+	 *
+	 * @param values
+	 * @return
+	 */
+	private File writeRun(Iterator<T> values) {
+		try {
+			File file = File.createTempFile(prefix, ".run",
+					directory.orNull());
+			synchronized (this) {
+				files.add(file);
+			}
+			FileOutputStream fos = new FileOutputStream(file);
+			try {
+				FileChannel channel = fos.getChannel();
+				ByteBuffer bb = ByteBuffer.allocate(BUFFER_BYTES);
+				boolean java = KeySerializers.isJava(serializer);
+				while (values.hasNext()) {
+					T t = values.next();
+					// serialize a value once if its size is only known by
+					// serializing it
+					byte[] serialized = java ? KeySerializers
+							.serialize((Serializable) t) : null;
+					int size = java ? KeySerializers.bytes().size(serialized)
+							: serializer.size(t);
+					if (bb.remaining() < 4 + size) {
+						write(channel, bb);
+						if (bb.capacity() < 4 + size)
+							bb = ByteBuffer.allocate(4 + size);
+					}
+					bb.putInt(size);
+					if (java)
+						KeySerializers.bytes().write(bb, serialized);
+					else
+						serializer.write(bb, t);
+				}
+				write(channel, bb);
+			} finally {
+				fos.close();
+			}
+			return file;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void write(FileChannel channel, ByteBuffer bb)
+			throws IOException {
+		bb.flip();
+		while (bb.hasRemaining())
+			channel.write(bb);
+		bb.clear();
+	}
+
+	/**
+	 * Returns the values of the run files merged in ascending order.
+	 *
+	 * @param runs
+	 * @return
+	 */
+	private Iterator<T> merge(List<File> runs) {
+		List<Iterator<T>> iterators = Lists.newArrayList();
+		for (File file : runs) {
+			RunReader reader = new RunReader(file);
+			synchronized (this) {
+				readers.add(reader);
+			}
+			iterators.add(reader);
+		}
+		return Iterators.mergeSorted(iterators, Ordering.<T> natural());
+	}
+
+	/**
+	 * Closes the run files being read and deletes all run files.
+	 */
+	synchronized void close() {
+		for (RunReader reader : readers)
+			reader.close();
+		readers.clear();
+		for (File file : files)
+			file.delete();
+		files.clear();
+	}
+
+	/**
+	 * Reads the values of a run file in order.
+	 */
+	private final class RunReader extends AbstractIterator<T> {
+
+		private final FileInputStream fis;
+
+		private final FileChannel channel;
+
+		private ByteBuffer bb = ByteBuffer.allocate(BUFFER_BYTES);
+
+		RunReader(File file) {
+			try {
+				fis = new FileInputStream(file);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			channel = fis.getChannel();
+			bb.flip();
+		}
+
+		@Override
+		protected T computeNext() {
+			try {
+				if (!ensure(4)) {
+					close();
+					if (bb.hasRemaining())
+						throw new RuntimeException("run file truncated");
+					return endOfData();
+				}
+				int size = bb.getInt();
+				if (!ensure(size))
+					throw new RuntimeException("run file truncated");
+				int limit = bb.limit();
+				bb.limit(bb.position() + size);
+				T t = serializer.read(bb);
+				bb.position(bb.limit());
+				bb.limit(limit);
+				return t;
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		/**
+		 * Returns true if at least <code>n</code> bytes are remaining in the
+		 * buffer after reading more from the file if needed, false if the
+		 * file ends first.
+		 *
+		 * @param n
+		 * @return
+		 * @throws IOException
+		 */
+		private boolean ensure(int n) throws IOException {
+			if (bb.remaining() >= n)
+				return true;
+			if (bb.capacity() < n) {
+				ByteBuffer b = ByteBuffer.allocate(n);
+				b.put(bb);
+				bb = b;
+			} else
+				bb.compact();
+			while (bb.position() < n && channel.read(bb) >= 0)
+				;
+			bb.flip();
+			return bb.remaining() >= n;
+		}
+
+		void close() {
+			try {
+				fis.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
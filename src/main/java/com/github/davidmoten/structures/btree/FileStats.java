@@ -0,0 +1,64 @@
+package com.github.davidmoten.structures.btree;
+
+/**
+ * The number of bytes of live (reachable from the current root) node records
+ * and the total number of bytes written in a storage file.
+ * 
+ * @author dxm
+ * 
+ */
+public final class FileStats {
+
+	private final long fileNumber;
+	private final long liveBytes;
+	private final long totalBytes;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param fileNumber
+	 * @param liveBytes
+	 * @param totalBytes
+	 */
+	public FileStats(long fileNumber, long liveBytes, long totalBytes) {
+		this.fileNumber = fileNumber;
+		this.liveBytes = liveBytes;
+		this.totalBytes = totalBytes;
+	}
+
+	public long getFileNumber() {
+		return fileNumber;
+	}
+
+	public long getLiveBytes() {
+		return liveBytes;
+	}
+
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * Returns the fraction of the bytes of the file that are live. Returns 1
+	 * for an empty file.
+	 * 
+	 * @return
+	 */
+	public double getLiveFraction() {
+		if (totalBytes == 0)
+			return 1;
+		else
+			return (double) liveBytes / totalBytes;
+	}
+
+	FileStats add(long live, long total) {
+		return new FileStats(fileNumber, liveBytes + live, totalBytes + total);
+	}
+
+	@Override
+	public String toString() {
+		return "FileStats [fileNumber=" + fileNumber + ", liveBytes="
+				+ liveBytes + ", totalBytes=" + totalBytes + "]";
+	}
+
+}
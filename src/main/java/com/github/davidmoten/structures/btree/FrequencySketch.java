@@ -0,0 +1,92 @@
+package com.github.davidmoten.structures.btree;
+
+/**
+ * A count-min sketch estimating how often each key has been seen recently,
+ * in a fixed amount of memory whatever the number of keys. Once the number
+ * of increments reaches ten times the width every count is halved so that
+ * the estimates favour recent history (as in TinyLFU).
+ *
+ * Not thread safe.
+ *
+ * @author dxm
+ *
+ */
+final class FrequencySketch {
+
+	private static final int ROWS = 4;
+
+	private static final int[] SEEDS = { 0x97CB3127, 0xB7E15163, 0x61C88647,
+			0x2545F491 };
+
+	/**
+	 * The counts of each row one after the other.
+	 */
+	private final int[] counts;
+
+	/**
+	 * The width of each row minus one (the width is a power of two).
+	 */
+	private final int mask;
+
+	private final int sampleSize;
+
+	private int increments;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param expectedKeys
+	 *            the number of distinct keys to be told apart
+	 */
+	FrequencySketch(long expectedKeys) {
+		int width = 16;
+		while (width < expectedKeys && width < (1 << 22))
+			width <<= 1;
+		this.counts = new int[ROWS * width];
+		this.mask = width - 1;
+		this.sampleSize = 10 * width;
+	}
+
+	/**
+	 * Adds <code>n</code> to the count of the key with the given hash code.
+	 *
+	 * @param hash
+	 * @param n
+	 */
+	void increment(int hash, int n) {
+		if (n <= 0)
+			return;
+		for (int row = 0; row < ROWS; row++) {
+			int i = index(hash, row);
+			counts[i] = (int) Math.min(Integer.MAX_VALUE, (long) counts[i] + n);
+		}
+		increments += n;
+		if (increments >= sampleSize)
+			age();
+	}
+
+	/**
+	 * Returns the estimated count of the key with the given hash code.
+	 *
+	 * @param hash
+	 * @return
+	 */
+	int frequency(int hash) {
+		int min = Integer.MAX_VALUE;
+		for (int row = 0; row < ROWS; row++)
+			min = Math.min(min, counts[index(hash, row)]);
+		return min;
+	}
+
+	private int index(int hash, int row) {
+		int h = (hash ^ (hash >>> 16)) * SEEDS[row];
+		h ^= h >>> 15;
+		return row * (mask + 1) + (h & mask);
+	}
+
+	private void age() {
+		for (int i = 0; i < counts.length; i++)
+			counts[i] >>>= 1;
+		increments /= 2;
+	}
+}
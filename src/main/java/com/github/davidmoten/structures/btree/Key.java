@@ -14,9 +14,6 @@ class Key<T extends Serializable & Comparable<T>> {
 	private Optional<NodeRef<T>> right = absent();
 	private boolean deleted = false;
 
-	// fields not to be serialized
-	private transient Optional<Key<T>> next = absent();
-
 	Key(T t) {
 		this.t = t;
 	}
@@ -30,12 +27,11 @@ class Key<T extends Serializable & Comparable<T>> {
 	}
 
 	Key(T t, Optional<NodeRef<T>> left, Optional<NodeRef<T>> right,
-			boolean deleted, Optional<Key<T>> next) {
+			boolean deleted) {
 		this.t = t;
 		this.left = left;
 		this.right = right;
 		this.deleted = deleted;
-		this.next = next;
 	}
 
 	void setDeleted(boolean deleted) {
@@ -75,14 +71,6 @@ class Key<T extends Serializable & Comparable<T>> {
 		return toString("  ");
 	}
 
-	Optional<Key<T>> next() {
-		return next;
-	}
-
-	void setNext(Optional<Key<T>> next) {
-		this.next = next;
-	}
-
 	String toString(String space) {
 		StringBuilder builder = new StringBuilder();
 		builder.append("\n" + space + "Key [t=");
@@ -95,10 +83,6 @@ class Key<T extends Serializable & Comparable<T>> {
 			builder.append("\n" + space + "  right=");
 			builder.append(right.get().toString(space + "    "));
 		}
-		if (next.isPresent()) {
-			builder.append("\n" + space + "  next=");
-			builder.append(next.get().toString(space));
-		}
 		builder.append("]");
 		return builder.toString();
 	}
@@ -120,17 +104,9 @@ class Key<T extends Serializable & Comparable<T>> {
 		Preconditions.checkArgument(!Side.TOP.equals(side),
 				"side cannot be TOP");
 		if (Side.LEFT.equals(side))
-			return new Key<T>(t, nd, right, deleted, next);
+			return new Key<T>(t, nd, right, deleted);
 		else
-			return new Key<T>(t, left, nd, deleted, next);
-	}
-
-	Key<T> nodeNext(NodeRef<T> node, Optional<Key<T>> next) {
-		return new Key<T>(t, left, right, deleted, next);
-	}
-
-	Key<T> left(NodeRef<T> node, Optional<NodeRef<T>> left) {
-		return new Key<T>(t, left, right, deleted, next);
+			return new Key<T>(t, left, nd, deleted);
 	}
 
 }
@@ -20,11 +20,19 @@ class KeyNodes<T extends Serializable & Comparable<T>> {
 
 	private final LinkedList<NodeRef<T>> saveQueue;
 
-	private KeyNodes(Optional<Key<T>> key, LinkedList<NodeRef<T>> saveQueue) {
+	/**
+	 * The nodes replaced by copies on the save queue.
+	 */
+	private final LinkedList<NodeRef<T>> obsolete;
+
+	private KeyNodes(Optional<Key<T>> key, LinkedList<NodeRef<T>> saveQueue,
+			LinkedList<NodeRef<T>> obsolete) {
 		Preconditions.checkNotNull(key);
 		Preconditions.checkNotNull(saveQueue);
+		Preconditions.checkNotNull(obsolete);
 		this.key = key;
 		this.saveQueue = Lists.newLinkedList(saveQueue);
+		this.obsolete = obsolete;
 	}
 
 	Optional<Key<T>> getKey() {
@@ -35,24 +43,42 @@ class KeyNodes<T extends Serializable & Comparable<T>> {
 		return saveQueue;
 	}
 
+	LinkedList<NodeRef<T>> getObsolete() {
+		return obsolete;
+	}
+
 	KeyNodes<T> key(Key<T> key) {
-		return new KeyNodes<T>(Optional.of(key), saveQueue);
+		return new KeyNodes<T>(Optional.of(key), saveQueue, obsolete);
 	}
 
 	KeyNodes<T> add(NodeRef<T> node) {
 		LinkedList<NodeRef<T>> list = Lists.newLinkedList(saveQueue);
 		list.add(node);
-		return new KeyNodes<T>(Optional.<Key<T>> absent(), list);
+		return new KeyNodes<T>(Optional.<Key<T>> absent(), list, obsolete);
+	}
+
+	/**
+	 * Returns a copy of this with <code>node</code> recorded as replaced.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	KeyNodes<T> obsolete(NodeRef<T> node) {
+		LinkedList<NodeRef<T>> list = Lists.newLinkedList(obsolete);
+		list.add(node);
+		return new KeyNodes<T>(key, saveQueue, list);
 	}
 
 	static <R extends Serializable & Comparable<R>> KeyNodes<R> create(
 			Key<R> key) {
 		return new KeyNodes<R>(Optional.of(key),
+				Lists.<NodeRef<R>> newLinkedList(),
 				Lists.<NodeRef<R>> newLinkedList());
 	}
 
 	static <R extends Serializable & Comparable<R>> KeyNodes<R> create(R value) {
 		return new KeyNodes<R>(Optional.of(Key.create(value)),
+				Lists.<NodeRef<R>> newLinkedList(),
 				Lists.<NodeRef<R>> newLinkedList());
 	}
 
@@ -63,6 +89,7 @@ class KeyNodes<T extends Serializable & Comparable<T>> {
 
 	static <R extends Serializable & Comparable<R>> KeyNodes<R> create() {
 		return new KeyNodes<R>(Optional.<Key<R>> absent(),
+				Lists.<NodeRef<R>> newLinkedList(),
 				Lists.<NodeRef<R>> newLinkedList());
 	}
 
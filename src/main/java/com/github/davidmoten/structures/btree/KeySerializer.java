@@ -0,0 +1,41 @@
+package com.github.davidmoten.structures.btree;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes and reads the values of keys in node records. Implementations for
+ * common types are available from {@link KeySerializers}.
+ * 
+ * @author dxm
+ * 
+ * @param <T>
+ */
+public interface KeySerializer<T> {
+
+	/**
+	 * Returns the number of bytes that {@link #write(ByteBuffer, Object)}
+	 * writes for the value.
+	 * 
+	 * @param t
+	 * @return
+	 */
+	int size(T t);
+
+	/**
+	 * Writes the value at the current position of the buffer advancing the
+	 * position by {@link #size(Object)} bytes.
+	 * 
+	 * @param bb
+	 * @param t
+	 */
+	void write(ByteBuffer bb, T t);
+
+	/**
+	 * Reads a value written by {@link #write(ByteBuffer, Object)} from the
+	 * current position of the buffer advancing the position past the value.
+	 * 
+	 * @param bb
+	 * @return
+	 */
+	T read(ByteBuffer bb);
+}
@@ -0,0 +1,289 @@
+package com.github.davidmoten.structures.btree;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Built-in {@link KeySerializer}s.
+ * 
+ * @author dxm
+ * 
+ */
+public final class KeySerializers {
+
+	private KeySerializers() {
+		// prevent instantiation
+	}
+
+	private static final KeySerializer<Long> LONGS = new KeySerializer<Long>() {
+
+		@Override
+		public int size(Long t) {
+			return 8;
+		}
+
+		@Override
+		public void write(ByteBuffer bb, Long t) {
+			bb.putLong(t);
+		}
+
+		@Override
+		public Long read(ByteBuffer bb) {
+			return bb.getLong();
+		}
+	};
+
+	private static final KeySerializer<Integer> INTEGERS = new KeySerializer<Integer>() {
+
+		@Override
+		public int size(Integer t) {
+			return 4;
+		}
+
+		@Override
+		public void write(ByteBuffer bb, Integer t) {
+			bb.putInt(t);
+		}
+
+		@Override
+		public Integer read(ByteBuffer bb) {
+			return bb.getInt();
+		}
+	};
+
+	private static final KeySerializer<String> STRINGS = new KeySerializer<String>() {
+
+		@Override
+		public int size(String t) {
+			return 4 + utf8Length(t);
+		}
+
+		@Override
+		public void write(ByteBuffer bb, String t) {
+			byte[] bytes = t.getBytes(Charsets.UTF_8);
+			bb.putInt(bytes.length);
+			bb.put(bytes);
+		}
+
+		@Override
+		public String read(ByteBuffer bb) {
+			byte[] bytes = new byte[bb.getInt()];
+			bb.get(bytes);
+			return new String(bytes, Charsets.UTF_8);
+		}
+	};
+
+	private static final KeySerializer<byte[]> BYTES = new KeySerializer<byte[]>() {
+
+		@Override
+		public int size(byte[] t) {
+			return 4 + t.length;
+		}
+
+		@Override
+		public void write(ByteBuffer bb, byte[] t) {
+			bb.putInt(t.length);
+			bb.put(t);
+		}
+
+		@Override
+		public byte[] read(ByteBuffer bb) {
+			byte[] bytes = new byte[bb.getInt()];
+			bb.get(bytes);
+			return bytes;
+		}
+	};
+
+	private static final KeySerializer<Serializable> JAVA = new KeySerializer<Serializable>() {
+
+		@Override
+		public int size(Serializable t) {
+			return BYTES.size(serialize(t));
+		}
+
+		@Override
+		public void write(ByteBuffer bb, Serializable t) {
+			BYTES.write(bb, serialize(t));
+		}
+
+		@Override
+		public Serializable read(ByteBuffer bb) {
+			int length = bb.getInt();
+			ByteBuffer value = bb.slice();
+			value.limit(length);
+			bb.position(bb.position() + length);
+			try {
+				ObjectInputStream ois = new ObjectInputStream(
+						new ByteBufferInputStream(value));
+				return (Serializable) ois.readObject();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			} catch (ClassNotFoundException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	};
+
+	/**
+	 * Returns a serializer that writes a {@link Long} as 8 bytes.
+	 * 
+	 * @return
+	 */
+	public static KeySerializer<Long> longs() {
+		return LONGS;
+	}
+
+	/**
+	 * Returns a serializer that writes an {@link Integer} as 4 bytes.
+	 * 
+	 * @return
+	 */
+	public static KeySerializer<Integer> integers() {
+		return INTEGERS;
+	}
+
+	/**
+	 * Returns a serializer that writes a {@link String} as its length in bytes
+	 * followed by its UTF-8 encoding.
+	 * 
+	 * @return
+	 */
+	public static KeySerializer<String> strings() {
+		return STRINGS;
+	}
+
+	/**
+	 * Returns a serializer that writes a byte array as its length followed by
+	 * its bytes. Because arrays are not {@link Comparable} this is for use by
+	 * serializers of key classes that wrap a byte array.
+	 * 
+	 * @return
+	 */
+	public static KeySerializer<byte[]> bytes() {
+		return BYTES;
+	}
+
+	/**
+	 * Returns a serializer that writes any value with Java serialization as
+	 * the length of the serialized form followed by the serialized form. This
+	 * is the default when no faster serializer is known for the key class.
+	 * Both {@link KeySerializer#size(Object)} and
+	 * {@link KeySerializer#write(ByteBuffer, Object)} serialize the value so
+	 * saves of nodes serialize each value once and write the bytes as
+	 * {@link #bytes()} does.
+	 * 
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends Serializable> KeySerializer<T> java() {
+		return (KeySerializer<T>) JAVA;
+	}
+
+	/**
+	 * Returns the built-in serializer for the given class if one exists
+	 * otherwise returns {@link #java()}.
+	 * 
+	 * @param cls
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends Serializable> KeySerializer<T> forClass(
+			Class<T> cls) {
+		if (cls == Long.class)
+			return (KeySerializer<T>) LONGS;
+		else if (cls == Integer.class)
+			return (KeySerializer<T>) INTEGERS;
+		else if (cls == String.class)
+			return (KeySerializer<T>) STRINGS;
+		else
+			return java();
+	}
+
+	/**
+	 * Returns the id recorded in the metadata of a b-tree for the serializer
+	 * so that reopening the b-tree with a different serializer is detected:
+	 * the name of the method returning a built-in serializer or otherwise the
+	 * class name of the serializer.
+	 * 
+	 * @param serializer
+	 * @return
+	 */
+	static String id(KeySerializer<?> serializer) {
+		if (serializer == LONGS)
+			return "longs";
+		else if (serializer == INTEGERS)
+			return "integers";
+		else if (serializer == STRINGS)
+			return "strings";
+		else if (serializer == BYTES)
+			return "bytes";
+		else if (serializer == JAVA)
+			return "java";
+		else
+			return serializer.getClass().getName();
+	}
+
+	/**
+	 * Returns true if the serializer is {@link #java()}.
+	 * 
+	 * @param serializer
+	 * @return
+	 */
+	static boolean isJava(KeySerializer<?> serializer) {
+		return serializer == JAVA;
+	}
+
+	/**
+	 * Returns the value serialized with Java serialization. The
+	 * {@link #java()} serializer writes these bytes as {@link #bytes()} does.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	static byte[] serialize(Serializable value) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bytes);
+			oos.writeObject(value);
+			oos.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns the number of bytes in the UTF-8 encoding of the string without
+	 * encoding it.
+	 * 
+	 * @param s
+	 * @return
+	 */
+	static int utf8Length(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80)
+				length += 1;
+			else if (c < 0x800)
+				length += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if (c >= Character.MIN_SURROGATE
+					&& c <= Character.MAX_SURROGATE)
+				// an unpaired surrogate is encoded as '?'
+				length += 1;
+			else
+				length += 3;
+		}
+		return length;
+	}
+}
@@ -0,0 +1,332 @@
+package com.github.davidmoten.structures.btree;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An in-memory b-tree of primitive <code>long</code> keys. Each node holds its
+ * keys in a sorted <code>long[]</code> and its children in a packed array so
+ * adds, lookups and iteration involve no boxing and no {@link Key} or
+ * {@link NodeRef} objects.
+ *
+ * Nodes are never modified once published. An add copies the nodes on the
+ * path from the root to the leaf and then replaces the root, so
+ * {@link #contains(long)} and {@link #iterator()} need no locking and an
+ * iterator sees the tree as it was when the iterator was created. Duplicate
+ * keys are allowed.
+ *
+ * The tree is held in memory only and is lost when the JVM exits. Children
+ * are packed as node references rather than storage positions because the
+ * save and load paths of {@link Storage} work on {@link NodeRef}s of
+ * {@link Key}s, which would bring back the boxing and Optionals this
+ * class avoids. Use a {@link BTree} of {@link Long} with
+ * {@link KeySerializers#longs()} for long keys that must be persisted.
+ *
+ * @author dxm
+ *
+ */
+public class LongBTree {
+
+	/**
+	 * The root node. Replaced (never modified) by adds.
+	 */
+	private volatile LongNode root;
+
+	/**
+	 * The maximum number of keys in a node plus one.
+	 */
+	private final int degree;
+
+	/**
+	 * This object is synchronized on to ensure that adds happen one at a time
+	 * (synchronously).
+	 */
+	private final Object writeMonitor = new Object();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param degree
+	 *            the maximum number of keys in a node plus one. Must be >=3.
+	 */
+	public LongBTree(int degree) {
+		Preconditions.checkArgument(degree >= 3, "degree must be >=3");
+		this.degree = degree;
+		this.root = new LongNode(new long[0], null);
+	}
+
+	/**
+	 * Returns the maximum number of keys in a node plus one.
+	 *
+	 * @return
+	 */
+	public int getDegree() {
+		return degree;
+	}
+
+	/**
+	 * Adds one or more keys to the b-tree. Will replace root.
+	 *
+	 * @param values
+	 * @return
+	 */
+	public LongBTree add(long... values) {
+		synchronized (writeMonitor) {
+			for (long value : values)
+				addOne(value);
+		}
+		return this;
+	}
+
+	/**
+	 * Adds a key and replaces the root node. Must be called while holding
+	 * writeMonitor.
+	 *
+	 * @param value
+	 */
+	private void addOne(long value) {
+		Split split = new Split();
+		LongNode node = insert(root, value, split);
+		if (split.right != null)
+			root = new LongNode(new long[] { split.median }, new LongNode[] {
+					node, split.right });
+		else
+			root = node;
+	}
+
+	/**
+	 * Returns a copy of <code>node</code> with <code>value</code> inserted. If
+	 * the copy overflows it is split and the left half returned with the
+	 * median and right half recorded in <code>split</code>.
+	 *
+	 * @param node
+	 * @param value
+	 * @param split
+	 * @return
+	 */
+	private LongNode insert(LongNode node, long value, Split split) {
+		int index = upperBound(node.keys, value);
+		long[] keys;
+		LongNode[] children;
+		if (node.isLeaf()) {
+			keys = insert(node.keys, index, value);
+			children = null;
+		} else {
+			LongNode child = insert(node.children[index], value, split);
+			if (split.right == null) {
+				keys = node.keys;
+				children = node.children.clone();
+				children[index] = child;
+			} else {
+				keys = insert(node.keys, index, split.median);
+				children = new LongNode[node.children.length + 1];
+				System.arraycopy(node.children, 0, children, 0, index);
+				children[index] = child;
+				children[index + 1] = split.right;
+				System.arraycopy(node.children, index + 1, children,
+						index + 2, node.children.length - index - 1);
+				split.right = null;
+			}
+		}
+		if (keys.length < degree)
+			return new LongNode(keys, children);
+		else
+			return split(keys, children, split);
+	}
+
+	/**
+	 * Splits an overflowing node around its median key. Returns the left half
+	 * and records the median and the right half in <code>split</code>.
+	 *
+	 * @param keys
+	 * @param children
+	 *            null for a leaf
+	 * @param split
+	 * @return
+	 */
+	private static LongNode split(long[] keys, LongNode[] children,
+			Split split) {
+		int mid = keys.length / 2;
+		split.median = keys[mid];
+		if (children == null) {
+			split.right = new LongNode(Arrays.copyOfRange(keys, mid + 1,
+					keys.length), null);
+			return new LongNode(Arrays.copyOf(keys, mid), null);
+		} else {
+			split.right = new LongNode(Arrays.copyOfRange(keys, mid + 1,
+					keys.length), Arrays.copyOfRange(children, mid + 1,
+					children.length));
+			return new LongNode(Arrays.copyOf(keys, mid), Arrays.copyOf(
+					children, mid + 1));
+		}
+	}
+
+	/**
+	 * Returns a copy of <code>keys</code> with <code>value</code> inserted at
+	 * <code>index</code>.
+	 *
+	 * @param keys
+	 * @param index
+	 * @param value
+	 * @return
+	 */
+	private static long[] insert(long[] keys, int index, long value) {
+		long[] result = new long[keys.length + 1];
+		System.arraycopy(keys, 0, result, 0, index);
+		result[index] = value;
+		System.arraycopy(keys, index, result, index + 1, keys.length - index);
+		return result;
+	}
+
+	/**
+	 * Returns the index of the first key greater than <code>value</code> (so
+	 * that duplicates are added after existing equal keys).
+	 *
+	 * @param keys
+	 * @param value
+	 * @return
+	 */
+	private static int upperBound(long[] keys, long value) {
+		int low = 0;
+		int high = keys.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (keys[mid] <= value)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Returns true if the b-tree contains <code>value</code>.
+	 *
+	 * @param value
+	 * @return
+	 */
+	public boolean contains(long value) {
+		LongNode node = root;
+		while (true) {
+			int index = Arrays.binarySearch(node.keys, value);
+			if (index >= 0)
+				return true;
+			else if (node.isLeaf())
+				return false;
+			else
+				node = node.children[-index - 1];
+		}
+	}
+
+	/**
+	 * Returns an iterator over the keys in ascending order. The iterator is
+	 * unaffected by adds made after it is created.
+	 *
+	 * @return
+	 */
+	public LongIterator iterator() {
+		return new NodeLongIterator(root);
+	}
+
+	/**
+	 * A node holding its keys in ascending order and, unless a leaf, one more
+	 * child than keys. Child i holds the keys less than key i.
+	 */
+	private static final class LongNode {
+		final long[] keys;
+		/**
+		 * Null if this node is a leaf.
+		 */
+		final LongNode[] children;
+
+		LongNode(long[] keys, LongNode[] children) {
+			this.keys = keys;
+			this.children = children;
+		}
+
+		boolean isLeaf() {
+			return children == null;
+		}
+
+		/**
+		 * Returns the number of levels from this node down to its leaves.
+		 *
+		 * @return
+		 */
+		int height() {
+			int height = 1;
+			LongNode node = this;
+			while (!node.isLeaf()) {
+				node = node.children[0];
+				height++;
+			}
+			return height;
+		}
+	}
+
+	/**
+	 * Carries the result of a node split back up to the parent.
+	 */
+	private static final class Split {
+		long median;
+		/**
+		 * Null if the node did not split.
+		 */
+		LongNode right;
+	}
+
+	/**
+	 * In-order iterator that keeps the path from the root to the current key
+	 * in arrays sized by the height of the tree.
+	 */
+	private static final class NodeLongIterator implements LongIterator {
+
+		private final LongNode[] nodes;
+		private final int[] indexes;
+		private int depth = -1;
+
+		NodeLongIterator(LongNode root) {
+			int height = root.height();
+			nodes = new LongNode[height];
+			indexes = new int[height];
+			descend(root);
+		}
+
+		/**
+		 * Pushes <code>node</code> and the leftmost path below it.
+		 *
+		 * @param node
+		 */
+		private void descend(LongNode node) {
+			while (true) {
+				depth++;
+				nodes[depth] = node;
+				indexes[depth] = 0;
+				if (node.isLeaf())
+					return;
+				node = node.children[0];
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (depth >= 0 && indexes[depth] == nodes[depth].keys.length)
+				depth--;
+			return depth >= 0;
+		}
+
+		@Override
+		public long next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			LongNode node = nodes[depth];
+			long value = node.keys[indexes[depth]++];
+			if (!node.isLeaf())
+				descend(node.children[indexes[depth]]);
+			return value;
+		}
+	}
+
+}
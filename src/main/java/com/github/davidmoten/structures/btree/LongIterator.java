@@ -0,0 +1,28 @@
+package com.github.davidmoten.structures.btree;
+
+import java.util.NoSuchElementException;
+
+/**
+ * An iterator over primitive <code>long</code> values that avoids boxing.
+ *
+ * @author dxm
+ *
+ */
+public interface LongIterator {
+
+	/**
+	 * Returns true if there are more values.
+	 *
+	 * @return
+	 */
+	boolean hasNext();
+
+	/**
+	 * Returns the next value.
+	 *
+	 * @return
+	 * @throws NoSuchElementException
+	 *             if there are no more values
+	 */
+	long next();
+}
@@ -3,13 +3,16 @@ package com.github.davidmoten.structures.btree;
 import static com.google.common.base.Optional.absent;
 import static com.google.common.base.Optional.of;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.List;
 
@@ -29,7 +32,38 @@ import com.google.common.io.CountingInputStream;
 class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 
 	static final int CHILD_ABSENT = -1;
-	private Optional<Key<T>> first = Optional.absent();
+
+	/**
+	 * Starts a node record in the binary format. Differs from
+	 * {@link #STREAM_MAGIC} that starts records in the legacy format.
+	 */
+	private static final short MAGIC = (short) 0xB7EE;
+	private static final short STREAM_MAGIC = (short) 0xACED;
+	private static final byte VERSION = 2;
+	static final int FLAGS_OFFSET = 3;
+	private static final int LENGTH_OFFSET = 4;
+	private static final int HEADER_BYTES = 12;
+	private static final int CHILD_BYTES = 16;
+	private static final int FLAG_ROOT = 1;
+	static final int FLAG_CAN_DELETE = 2;
+	private static final int FLAG_LEAF = 4;
+
+	/**
+	 * Estimated heap bytes of a loaded node apart from its keys (NodeRef,
+	 * Node, key list and optionals).
+	 */
+	private static final int NODE_OVERHEAD_BYTES = 128;
+
+	/**
+	 * Estimated heap bytes of a key apart from its value (Key, child
+	 * optionals and, for a non-leaf node, the child NodeRef and Position).
+	 */
+	private static final int KEY_OVERHEAD_BYTES = 96;
+	/**
+	 * The keys of this node in order. Child refs are held on the keys; the
+	 * right child of key i is the same node as the left child of key i + 1.
+	 */
+	private List<Key<T>> keys = Lists.newArrayList();
 	private final NodeLoader<T> loader;
 
 	private final NodeRef<T> ref;
@@ -51,6 +85,20 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 		this.isRoot = isRoot;
 	}
 
+	/**
+	 * Constructor for a new node with the given keys.
+	 * 
+	 * @param nodeListener
+	 * @param ref
+	 * @param isRoot
+	 * @param keys
+	 */
+	Node(NodeLoader<T> nodeListener, NodeRef<T> ref, boolean isRoot,
+			List<Key<T>> keys) {
+		this(nodeListener, ref, isRoot);
+		this.keys = Lists.newArrayList(keys);
+	}
+
 	KeyNodes<T> add(KeyNodes<T> keyNodes) {
 		Preconditions.checkArgument(keyNodes.getKey().isPresent(),
 				"key must be present");
@@ -59,7 +107,8 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 			result = addToThisLevel(keyNodes);
 		else
 			result = addToNonLeafNode(keyNodes);
-		return result;
+		// every node on the path of an add is replaced by a copy
+		return result.obsolete(ref);
 	}
 
 	KeyNodes<T> addToThisLevel(KeyNodes<T> keyNodes) {
@@ -78,99 +127,63 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 		return node;
 	}
 
-	// TODO unit test this
+	/**
+	 * Inserts the key after any keys with an equal value. The children of the
+	 * key replace the shared children of its neighbours.
+	 * 
+	 * @param key
+	 */
 	void insertHere(Key<T> key) {
-		if (!first.isPresent())
-			first = of(key);
-		else {
-			Optional<Key<T>> k = first;
-			Optional<Key<T>> previous = absent();
-			boolean added = false;
-			while (k.isPresent()) {
-				if (key.value().compareTo(k.get().value()) < 0) {
-					Key<T> newKey = key.nodeNext(ref, k);
-					if (k == first)
-						first = of(newKey);
-					if (previous.isPresent()) {
-						previous.get().setNext(of(newKey));
-						// key overrides the right child of previous
-						previous.get().setRight(newKey.getLeft());
-					}
-					k.get().setLeft(newKey.getRight());
-					added = true;
-					break;
-				}
-				previous = k;
-				k = k.get().next();
-			}
-
-			if (!added) {
-				// add as last key
-
-				// k must be present because first was present
-				previous.get().setNext(of(key));
-				// key overrides the right child of previous
-				previous.get().setRight(key.getLeft());
-			}
-		}
+		int i = upperBound(key.value());
+		keys.add(i, key);
+		// key overrides the right child of previous
+		if (i > 0)
+			keys.get(i - 1).setRight(key.getLeft());
+		// and the left child of next
+		if (i < keys.size() - 1)
+			keys.get(i + 1).setLeft(key.getRight());
 	}
 
 	private KeyNodes<T> addToNonLeafNode(KeyNodes<T> keyNodes) {
 
 		Preconditions.checkArgument(keyNodes.getKey().isPresent(),
 				"key must be present");
-		Preconditions.checkArgument(first.isPresent(), "first must be present");
-		// Note that first will be present because if is internal (non-leaf)
+		// Note that keys will not be empty because if is internal (non-leaf)
 		// node then it must have some keys
-
-		// using optional despite result always being present by the time this
-		// method returns
-		Optional<KeyNodes<T>> result = absent();
-		boolean added = false;
-		Optional<Key<T>> last = first;
-		T t = keyNodes.getKey().get().value();
-		for (Key<T> key : keys()) {
-			if (t.compareTo(key.value()) < 0) {
-				// don't need to check that left is present because of
-				// properties of b-tree non-leaf node
-				Preconditions.checkArgument(key.getLeft().isPresent(),
-						"left must be present on non-leaf node");
-				final KeyNodes<T> addToLeftResult = key.getLeft().get()
-						.add(keyNodes);
-				result = of(processAddToChildResult(key, Side.LEFT,
-						addToLeftResult));
-				added = true;
-				break;
-			}
-			last = of(key);
-		}
-
-		if (!added) {
+		Preconditions.checkArgument(!keys.isEmpty(), "keys must not be empty");
+
+		int i = upperBound(keyNodes.getKey().get().value());
+		if (i < keys.size()) {
+			// don't need to check that left is present because of
+			// properties of b-tree non-leaf node
+			Key<T> key = keys.get(i);
+			Preconditions.checkArgument(key.getLeft().isPresent(),
+					"left must be present on non-leaf node");
+			final KeyNodes<T> addToLeftResult = key.getLeft().get()
+					.add(keyNodes);
+			return processAddToChildResult(i, Side.LEFT, addToLeftResult);
+		} else {
 			// don't need to check that right is present because of properties
 			// of b-tree non leaf node
-			final KeyNodes<T> addToRightResult = last.get().getRight().get()
-					.add(keyNodes);
-			result = of(processAddToChildResult(last.get(), Side.RIGHT,
-					addToRightResult));
+			final KeyNodes<T> addToRightResult = keys.get(i - 1).getRight()
+					.get().add(keyNodes);
+			return processAddToChildResult(i - 1, Side.RIGHT,
+					addToRightResult);
 		}
-		Preconditions.checkNotNull(result);
-		// result should always be present
-		return result.get();
-
 	}
 
-	private KeyNodes<T> processAddToChildResult(Key<T> key, Side side,
+	private KeyNodes<T> processAddToChildResult(int keyIndex, Side side,
 			final KeyNodes<T> addResult) {
 		KeyNodes<T> result;
 		if (addResult.getKey().isPresent()) {
 			// add a split key to this node that came from key on side
-			result = clearChild(key, side).addToThisLevel(addResult);
+			result = clearChild(keyIndex, side).addToThisLevel(addResult);
 		} else {
 			// create a new node based on this with key changed to point
 			// to the last node on the list
 			NodeRef<T> lastNodeAddedToSaveQueue = addResult.getSaveQueue()
 					.getLast();
-			NodeRef<T> node = replace(key, side, lastNodeAddedToSaveQueue);
+			NodeRef<T> node = replace(keyIndex, side, lastNodeAddedToSaveQueue);
 			// The key has definitely been added to node so put it on the
 			// saveQueue
 			result = addResult.add(node);
@@ -178,8 +191,7 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 		return result;
 	}
 
-	private NodeRef<T> clearChild(Key<T> key, Side side) {
-		int i = indexOf(key).get();
+	private NodeRef<T> clearChild(int i, Side side) {
 		NodeRef<T> node = copy();
 		node.key(i).clear(side);
 		if (side.equals(Side.LEFT) && i > 0)
@@ -189,43 +201,65 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 		return node;
 	}
 
-	private Optional<Integer> indexOf(Key<T> key) {
-		Optional<Key<T>> k = first;
-		int index = 0;
-		while (k.isPresent()) {
-			if (k.get() == key)
-				return of(index);
-			index++;
-			k = k.get().next();
-		}
-		return absent();
+	Key<T> key(int index) {
+		return keys.get(index);
 	}
 
-	Key<T> key(int index) {
-		Optional<Key<T>> k = first;
-		for (int i = 0; i < index; i++)
-			k = k.get().next();
-		return k.get();
+	/**
+	 * Returns the children of this node in order or an empty list if this
+	 * node is a leaf.
+	 * 
+	 * @return
+	 */
+	List<Optional<NodeRef<T>>> children() {
+		List<Optional<NodeRef<T>>> list = Lists.newArrayList();
+		if (!isLeafNode())
+			for (int i = 0; i <= keys.size(); i++)
+				list.add(child(i));
+		return list;
+	}
+
+	/**
+	 * Returns an unsaved copy of this node with its children replaced by
+	 * <code>children</code> (as returned by {@link #children()}, in order and
+	 * empty for a leaf).
+	 * 
+	 * @param children
+	 * @return
+	 */
+	NodeRef<T> copyWithChildren(List<Optional<NodeRef<T>>> children) {
+		NodeRef<T> node = copy();
+		if (children.isEmpty())
+			return node;
+		Preconditions.checkArgument(children.size() == keys.size() + 1,
+				"one more child than keys expected");
+		for (int i = 0; i < keys.size(); i++) {
+			node.key(i).setLeft(children.get(i));
+			node.key(i).setRight(children.get(i + 1));
+		}
+		return node;
 	}
 
-	private NodeRef<T> replace(Key<T> key, Side side,
+	private NodeRef<T> replace(int keyIndex, Side side,
 			NodeRef<T> lastNodeAddedToSaveQueue) {
-		int i = indexOf(key).get();
 		NodeRef<T> node = copy();
-		node.replaceKeySide(i, side, lastNodeAddedToSaveQueue);
+		node.replaceKeySide(keyIndex, side, lastNodeAddedToSaveQueue);
 		return node;
 	}
 
 	void replaceKeySide(int keyIndex, Side side, NodeRef<T> replaceWith) {
 		Key<T> k = key(keyIndex);
 		k.setSide(side, of(replaceWith));
+		// the child is shared with the adjacent key so replace it there too
+		if (side.equals(Side.LEFT) && keyIndex > 0)
+			key(keyIndex - 1).setRight(of(replaceWith));
+		else if (side.equals(Side.RIGHT) && keyIndex < countKeys() - 1)
+			key(keyIndex + 1).setLeft(of(replaceWith));
 	}
 
 	private NodeRef<T> copy() {
-		NodeRef<T> node = new NodeRef<T>(loader, Optional.<Position> absent(),
-				degree, isRoot);
-		node.setFirst(copy(first));
-		return node;
+		return NodeRef.create(loader, degree, isRoot, ref.getHeight(),
+				copy(keys));
 	}
 
 	KeyNodes<T> split(KeyNodes<T> keyNodes) {
@@ -237,44 +271,29 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 	 * @return
 	 */
 	KeyNodes<T> splitHere(KeyNodes<T> keyNodes) {
-		int medianNumber = getMedianNumber(countKeys());
-
-		// get the median key and the preceding key
-		int count = 1;
+		int medianIndex = getMedianNumber(countKeys()) - 1;
 
 		// for thread safety make a copy of the keys
-		Optional<Key<T>> list = copy(first);
-
-		Optional<Key<T>> key = list;
-		Optional<Key<T>> previous = absent();
-		while (count < medianNumber) {
-			previous = key;
-			key = key.get().next();
-			count++;
-		}
-		Key<T> medianKey = key.get();
+		List<Key<T>> list = copy(keys);
+		Key<T> medianKey = list.get(medianIndex);
 
-		previous.get().setNext(Optional.<Key<T>> absent());
-
-		// create child1 of first ->..->previous
+		// create child1 of the keys before the median
 		// this child will request a new file position
-		NodeRef<T> child1 = new NodeRef<T>(loader,
-				Optional.<Position> absent(), degree, false);
-		child1.setFirst(list);
+		NodeRef<T> child1 = NodeRef.create(loader, degree, false,
+				ref.getHeight(), list.subList(0, medianIndex));
 
-		// create child2 of medianKey.next ->..->last
+		// create child2 of the keys after the median
 		// this child will request a new file position
-		NodeRef<T> child2 = new NodeRef<T>(loader,
-				Optional.<Position> absent(), degree, false);
-		child2.setFirst(key.get().next());
+		NodeRef<T> child2 = NodeRef.create(loader, degree, false,
+				ref.getHeight(), list.subList(medianIndex + 1, list.size()));
 
-		// set the links on medianKey to the next key in the same node and to
-		// its children
-		medianKey.setNext(Optional.<Key<T>> absent());
+		// set the links on medianKey to its children
 		medianKey.setLeft(Optional.of(child1));
 		medianKey.setRight(Optional.of(child2));
 
-		first = of(medianKey);
+		List<Key<T>> remaining = Lists.newArrayList();
+		remaining.add(medianKey);
+		keys = remaining;
 		return keyNodes.add(child1).add(child2).key(medianKey);
 	}
 
@@ -287,7 +306,7 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 	 */
 	private boolean isLeafNode() {
 
-		return !first.isPresent() || !first.get().hasChild();
+		return keys.isEmpty() || !keys.get(0).hasChild();
 	}
 
 	/**
@@ -296,37 +315,75 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 	 * @return
 	 */
 	int countKeys() {
-		int count = 0;
-		Optional<Key<T>> k = first;
-		while (k.isPresent()) {
-			count++;
-			k = k.get().next();
-		}
-		return count;
+		return keys.size();
 	}
 
-	private Optional<Key<T>> copy(Optional<Key<T>> list) {
-		Optional<Key<T>> result = absent();
-		Optional<Key<T>> key = list;
-		Optional<Key<T>> lastCreated = absent();
-		while (key.isPresent()) {
+	private List<Key<T>> copy(List<Key<T>> list) {
+		List<Key<T>> result = Lists.newArrayListWithCapacity(list.size() + 1);
+		for (Key<T> key : list) {
 			// copy the key
-			Key<T> k = new Key<T>(key.get().value());
-			k.setLeft(key.get().getLeft());
-			k.setRight(key.get().getRight());
-			k.setDeleted(key.get().isDeleted());
-			// create first if does not exist
-			if (!result.isPresent())
-				result = of(k);
-			// link to previous
-			if (lastCreated.isPresent())
-				lastCreated.get().setNext(of(k));
-			lastCreated = of(k);
-			key = key.get().next();
+			Key<T> k = new Key<T>(key.value());
+			k.setLeft(key.getLeft());
+			k.setRight(key.getRight());
+			k.setDeleted(key.isDeleted());
+			result.add(k);
 		}
 		return result;
 	}
 
+	/**
+	 * Returns the index of the first key whose value is not less than
+	 * <code>t</code>.
+	 * 
+	 * @param t
+	 * @return
+	 */
+	private int lowerBound(T t) {
+		int low = 0;
+		int high = keys.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (t.compareTo(keys.get(mid).value()) > 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Returns the index of the first key whose value is greater than
+	 * <code>t</code>.
+	 * 
+	 * @param t
+	 * @return
+	 */
+	private int upperBound(T t) {
+		int low = 0;
+		int high = keys.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (t.compareTo(keys.get(mid).value()) < 0)
+				high = mid;
+			else
+				low = mid + 1;
+		}
+		return low;
+	}
+
+	/**
+	 * Returns the child that holds the values between key i - 1 and key i.
+	 * 
+	 * @param i
+	 * @return
+	 */
+	private Optional<NodeRef<T>> child(int i) {
+		if (i < keys.size())
+			return keys.get(i).getLeft();
+		else
+			return keys.get(i - 1).getRight();
+	}
+
 	/**
 	 * Returns the median number between 1 and number of keys.
 	 * 
@@ -344,28 +401,18 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 	}
 
 	Optional<T> find(T t) {
-		boolean isLeaf = isLeafNode();
-		Optional<Key<T>> key = first;
-		Optional<Key<T>> last = first;
-		while (key.isPresent()) {
-			int compare = t.compareTo(key.get().value());
-			if (compare < 0) {
-				if (isLeaf)
-					return absent();
-				else
-					return key.get().getLeft().get().find(t);
-			} else if (compare == 0 && !key.get().isDeleted())
-				return Optional.of(key.get().value());
-			last = key;
-			key = key.get().next();
+		int i = lowerBound(t);
+		while (i < keys.size() && t.compareTo(keys.get(i).value()) == 0) {
+			if (!keys.get(i).isDeleted())
+				return of(keys.get(i).value());
+			i++;
 		}
-		if (!isLeaf) {
-			Optional<NodeRef<T>> right = last.get().getRight();
-			if (right.isPresent())
-				return right.get().find(t);
-			else
-				return absent();
-		} else
+		if (isLeafNode())
+			return absent();
+		Optional<NodeRef<T>> child = child(i);
+		if (child.isPresent())
+			return child.get().find(t);
+		else
 			return absent();
 	}
 
@@ -375,48 +422,38 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 
 	long delete(T t) {
 		int count = 0;
-		boolean isLeaf = isLeafNode();
-		Optional<Key<T>> last = Optional.absent();
-		for (Key<T> key : keys()) {
-			int compare = t.compareTo(key.value());
-			if (compare < 0) {
-				if (isLeaf)
-					return 0;
-				else
-					return key.getLeft().get().delete(t);
-			} else if (compare == 0 && !key.isDeleted()) {
+		int i = lowerBound(t);
+		while (i < keys.size() && t.compareTo(keys.get(i).value()) == 0) {
+			if (!keys.get(i).isDeleted()) {
 				count++;
-				key.setDeleted(true);
+				keys.get(i).setDeleted(true);
 			}
-			last = of(key);
+			i++;
 		}
-		if (count > 0)
+		if (count > 0 || isLeafNode())
 			return count;
-		if (!isLeaf && last.isPresent()) {
-			Optional<NodeRef<T>> right = last.get().getRight();
-			if (right.isPresent())
-				return right.get().delete(t);
-			else
-				return 0;
-		} else
+		Optional<NodeRef<T>> child = child(i);
+		if (child.isPresent())
+			return child.get().delete(t);
+		else
 			return 0;
 	}
 
 	@VisibleForTesting
 	List<? extends Key<T>> getKeys() {
-		List<Key<T>> list = Lists.newArrayList();
-		for (Key<T> key : keys())
-			list.add(key);
-		return list;
+		return Lists.newArrayList(keys);
 	}
 
-	void setFirst(Optional<Key<T>> first) {
-		Preconditions.checkNotNull(first);
-		this.first = first;
+	void setKeys(List<Key<T>> keys) {
+		Preconditions.checkNotNull(keys);
+		this.keys = Lists.newArrayList(keys);
 	}
 
 	Optional<Key<T>> getFirst() {
-		return first;
+		if (keys.isEmpty())
+			return absent();
+		else
+			return of(keys.get(0));
 	}
 
 	@Override
@@ -424,17 +461,18 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 		return new NodeIterator<T>(ref);
 	}
 
-	Iterable<Key<T>> keys() {
-		return Util.keys(first);
+	List<Key<T>> keys() {
+		return keys;
 	}
 
 	String toString(String space) {
 		StringBuilder builder = new StringBuilder();
 
 		builder.append("\n" + space + "Node [");
-		if (first.isPresent()) {
-			builder.append("\n" + space + "  first=");
-			builder.append(first.get().toString(space + "    "));
+		if (!keys.isEmpty()) {
+			builder.append("\n" + space + "  keys=");
+			for (Key<T> key : keys)
+				builder.append(key.toString(space + "    "));
 		}
 		builder.append("]");
 		return builder.toString();
@@ -444,15 +482,66 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 	public String toString() {
 		StringBuilder builder = new StringBuilder();
 		builder.append("Node [");
-		if (first.isPresent()) {
-			builder.append("first=");
-			builder.append(first.get());
+		if (!keys.isEmpty()) {
+			builder.append("keys=");
+			builder.append(keys);
 		}
 		builder.append("]");
 		return builder.toString();
 	}
 
-	long load(InputStream is) {
+	/**
+	 * Loads the node from the record starting at the current position of the
+	 * stream, reading either the binary format or the legacy object stream
+	 * format. Returns the number of bytes read.
+	 * 
+	 * @param is
+	 * @return
+	 */
+	long load(InputStream is, KeySerializer<T> serializer) {
+		try {
+			DataInputStream dis = new DataInputStream(is);
+			byte[] header = new byte[LENGTH_OFFSET + 4];
+			dis.readFully(header);
+			ByteBuffer bb = ByteBuffer.wrap(header);
+			if (bb.getShort(0) == MAGIC) {
+				int length = bb.getInt(LENGTH_OFFSET);
+				byte[] bytes = new byte[length];
+				System.arraycopy(header, 0, bytes, 0, header.length);
+				dis.readFully(bytes, header.length, length - header.length);
+				decode(ByteBuffer.wrap(bytes), serializer);
+				return length;
+			} else
+				return loadLegacy(new SequenceInputStream(
+						new ByteArrayInputStream(header), is));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Loads the node from the record starting at the current position of the
+	 * buffer, reading either the binary format or the legacy object stream
+	 * format. Advances the position of the buffer to the end of the record.
+	 * 
+	 * @param bb
+	 * @param serializer
+	 */
+	void load(ByteBuffer bb, KeySerializer<T> serializer) {
+		if (isBinary(bb))
+			decode(bb, serializer);
+		else
+			loadLegacy(new ByteBufferInputStream(bb));
+	}
+
+	/**
+	 * Reads a node saved by versions that wrote nodes with an
+	 * {@link ObjectOutputStream}. Returns the number of bytes read.
+	 * 
+	 * @param is
+	 * @return
+	 */
+	private long loadLegacy(InputStream is) {
 		try {
 			CountingInputStream cis = new CountingInputStream(is);
 			@SuppressWarnings("resource")
@@ -463,8 +552,7 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 			ois.readBoolean();
 			isRoot = ois.readBoolean();
 			int count = ois.readInt();
-			Optional<Key<T>> previous = absent();
-			Optional<Key<T>> firstKey = absent();
+			List<Key<T>> list = Lists.newArrayListWithCapacity(count + 1);
 			for (int i = 0; i < count; i++) {
 				@SuppressWarnings("unchecked")
 				T t = (T) ois.readObject();
@@ -481,17 +569,13 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 					key.setRight(of(new NodeRef<T>(loader, of(new Position(
 							rightFileNumber, right)), degree, false)));
 				key.setDeleted(deleted);
-				key.setNext(Optional.<Key<T>> absent());
-				if (!firstKey.isPresent())
-					firstKey = of(key);
-				if (previous.isPresent())
-					previous.get().setNext(of(key));
-				previous = of(key);
+				list.add(key);
 			}
 
 			// don't close the input stream to avoid closing the underlying
 			// stream
-			first = firstKey;
+			keys = list;
+			setRecordLength((int) cis.getCount());
 			return cis.getCount();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
@@ -500,65 +584,238 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 		}
 	}
 
-	void save(OutputStream os) {
+	/**
+	 * Reads the node from a record in the binary format. Key values in
+	 * version 1 records were always written with Java serialization.
+	 * 
+	 * @param bb
+	 * @param serializer
+	 */
+	private void decode(ByteBuffer bb, KeySerializer<T> serializer) {
+		int start = bb.position();
+		Preconditions.checkArgument(bb.getShort() == MAGIC,
+				"not a node record");
+		byte version = bb.get();
+		Preconditions.checkArgument(version == VERSION || version == 1,
+				"unsupported node format version " + version);
+		KeySerializer<T> values;
+		if (version == 1)
+			values = KeySerializers.java();
+		else
+			values = serializer;
+		int flags = bb.get();
+		int length = bb.getInt();
+		int count = bb.getInt();
+		isRoot = (flags & FLAG_ROOT) != 0;
+
+		// child i is the left of key i and the right of key i - 1
+		List<Optional<NodeRef<T>>> children = Lists
+				.newArrayListWithCapacity(count + 1);
+		for (int i = 0; i <= count; i++) {
+			if ((flags & FLAG_LEAF) != 0)
+				children.add(Optional.<NodeRef<T>> absent());
+			else {
+				long fileNumber = bb.getLong();
+				long position = bb.getLong();
+				if (position == CHILD_ABSENT)
+					children.add(Optional.<NodeRef<T>> absent());
+				else
+					children.add(of(new NodeRef<T>(loader, of(new Position(
+							fileNumber, position)), degree, false)));
+			}
+		}
+		if ((flags & FLAG_LEAF) != 0)
+			ref.setHeight(0);
+		else if (ref.getHeight() > 0)
+			for (Optional<NodeRef<T>> child : children)
+				if (child.isPresent())
+					child.get().setHeight(ref.getHeight() - 1);
+
+		List<Key<T>> list = Lists.newArrayListWithCapacity(count + 1);
+		for (int i = 0; i < count; i++) {
+			boolean deleted = bb.get() != 0;
+			Key<T> key = new Key<T>(values.read(bb));
+			key.setLeft(children.get(i));
+			key.setRight(children.get(i + 1));
+			key.setDeleted(deleted);
+			list.add(key);
+		}
+		keys = list;
+		setRecordLength(length);
+		bb.position(start + length);
+	}
 
+	void save(OutputStream os, KeySerializer<T> serializer) {
 		try {
-			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-			ObjectOutputStream oos = new ObjectOutputStream(bytes);
-			oos.writeLong(0L);
-			// flush needed so can overwrite above value
-			// this is so that the oos terminates the existing block_data record
-			// here instead of jamming stuff together into byes efficiently
-			// (normally the next termination of block data would occur on the
-			// next call of writeObject below
-			oos.flush();
-			// canDelete=false
-			oos.writeBoolean(false);
-			oos.flush();
-			oos.writeBoolean(isRoot);
-			oos.writeInt(countKeys());
-			for (Key<T> key : keys()) {
-				oos.writeObject(key.value());
-				if (key.getLeft().isPresent()) {
-					oos.writeLong(key.getLeft().get().getPosition().get()
-							.getFileNumber());
-					oos.writeLong(key.getLeft().get().getPosition().get()
-							.getPosition());
-				} else {
-					oos.writeLong(CHILD_ABSENT);
-					oos.writeLong(CHILD_ABSENT);
-				}
-				if (key.getRight().isPresent()) {
-					oos.writeLong(key.getRight().get().getPosition().get()
-							.getFileNumber());
-					oos.writeLong(key.getRight().get().getPosition().get()
-							.getPosition());
-				} else {
-					oos.writeLong(CHILD_ABSENT);
-					oos.writeLong(CHILD_ABSENT);
-				}
-				oos.writeBoolean(key.isDeleted());
-			}
-			oos.close();
-			byte[] b = bytes.toByteArray();
-			overwriteLength(b);
-			os.write(b);
+			os.write(encode(serializer).array());
 			os.close();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
-	private void overwriteLength(byte[] b) {
-		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-		try {
-			ObjectOutputStream oos = new ObjectOutputStream(bytes);
-			oos.writeLong(b.length);
-			oos.close();
-			System.arraycopy(bytes.toByteArray(), 0, b, 0, bytes.size());
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+	/**
+	 * Returns the node as a record in the binary format:
+	 * 
+	 * <pre>
+	 * short  magic
+	 * byte   version
+	 * byte   flags (root, can delete, leaf)
+	 * int    length of the record in bytes
+	 * int    key count n
+	 * n + 1  child positions (file number and position as longs) unless leaf
+	 * n      keys (deleted as byte, value written by the serializer)
+	 * </pre>
+	 * 
+	 * @param serializer
+	 * @return
+	 */
+	ByteBuffer encode(KeySerializer<T> serializer) {
+		Optional<List<byte[]>> values = serializeValues(serializer);
+		int length = encodedLength(serializer, values);
+		ByteBuffer bb = ByteBuffer.allocate(length);
+		encode(bb, length, serializer, values);
+		bb.flip();
+		return bb;
+	}
+
+	/**
+	 * Writes the node as a record in the format described in
+	 * {@link #encode(KeySerializer)} at the current position of the buffer,
+	 * advancing the position by <code>length</code>.
+	 * 
+	 * @param bb
+	 * @param length
+	 *            as returned by
+	 *            {@link #encodedLength(KeySerializer, Optional)}
+	 * @param serializer
+	 * @param values
+	 *            as returned by {@link #serializeValues(KeySerializer)}
+	 */
+	void encode(ByteBuffer bb, int length, KeySerializer<T> serializer,
+			Optional<List<byte[]>> values) {
+		int count = countKeys();
+		boolean isLeaf = isLeafNode();
+		bb.putShort(MAGIC);
+		bb.put(VERSION);
+		int flags = 0;
+		if (isRoot)
+			flags |= FLAG_ROOT;
+		if (isLeaf)
+			flags |= FLAG_LEAF;
+		bb.put((byte) flags);
+		bb.putInt(length);
+		bb.putInt(count);
+		if (!isLeaf) {
+			putChild(bb, keys.get(0).getLeft());
+			for (Key<T> key : keys())
+				putChild(bb, key.getRight());
 		}
+		for (int i = 0; i < keys.size(); i++) {
+			Key<T> key = keys.get(i);
+			bb.put((byte) (key.isDeleted() ? 1 : 0));
+			if (values.isPresent())
+				KeySerializers.bytes().write(bb, values.get().get(i));
+			else
+				serializer.write(bb, key.value());
+		}
+	}
+
+	/**
+	 * Returns the length in bytes of the record returned by
+	 * {@link #encode(KeySerializer)}. Children are fixed width so the length
+	 * does not depend on their positions.
+	 * 
+	 * @param serializer
+	 * @param values
+	 *            as returned by {@link #serializeValues(KeySerializer)}
+	 * @return
+	 */
+	int encodedLength(KeySerializer<T> serializer,
+			Optional<List<byte[]>> values) {
+		int length = HEADER_BYTES;
+		if (!isLeafNode())
+			length += (countKeys() + 1) * CHILD_BYTES;
+		for (int i = 0; i < keys.size(); i++)
+			if (values.isPresent())
+				length += 1 + KeySerializers.bytes().size(values.get().get(i));
+			else
+				length += 1 + serializer.size(keys.get(i).value());
+		return length;
+	}
+
+	/**
+	 * Returns the key values serialized with Java serialization if the
+	 * serializer is {@link KeySerializers#java()} (which only knows the size
+	 * of a value by serializing it) otherwise absent. Passed to
+	 * {@link #encodedLength(KeySerializer, Optional)} and
+	 * {@link #encode(ByteBuffer, int, KeySerializer, Optional)} so that each
+	 * value is serialized once.
+	 * 
+	 * @param serializer
+	 * @return
+	 */
+	Optional<List<byte[]>> serializeValues(KeySerializer<T> serializer) {
+		if (!KeySerializers.isJava(serializer))
+			return Optional.absent();
+		List<byte[]> list = Lists.newArrayListWithCapacity(keys.size());
+		for (Key<T> key : keys)
+			list.add(KeySerializers.serialize(key.value()));
+		return of(list);
+	}
+
+	private static <T extends Serializable & Comparable<T>> void putChild(
+			ByteBuffer bb, Optional<NodeRef<T>> child) {
+		if (child.isPresent()) {
+			bb.putLong(child.get().getPosition().get().getFileNumber());
+			bb.putLong(child.get().getPosition().get().getPosition());
+		} else {
+			bb.putLong(CHILD_ABSENT);
+			bb.putLong(CHILD_ABSENT);
+		}
+	}
+
+	/**
+	 * Returns true if and only if the record that starts at the current
+	 * position of the buffer is in the binary format.
+	 * 
+	 * @param bb
+	 * @return
+	 */
+	static boolean isBinary(ByteBuffer bb) {
+		return bb.getShort(bb.position()) == MAGIC;
+	}
+
+	/**
+	 * Returns true if and only if a node record in either format starts at
+	 * the current position of the buffer.
+	 * 
+	 * @param bb
+	 * @return
+	 */
+	static boolean isRecord(ByteBuffer bb) {
+		short magic = bb.getShort(bb.position());
+		return magic == MAGIC || magic == STREAM_MAGIC;
+	}
+
+	/**
+	 * Returns the length in bytes of the node record that starts at the
+	 * current position of the buffer. The position of the buffer is not
+	 * changed.
+	 * 
+	 * @param bb
+	 * @return
+	 */
+	static long recordLength(ByteBuffer bb) {
+		int start = bb.position();
+		short magic = bb.getShort(start);
+		if (magic == MAGIC)
+			return bb.getInt(start + LENGTH_OFFSET);
+		Preconditions.checkArgument(magic == STREAM_MAGIC,
+				"not a node record");
+		// a legacy record starts with an object stream header followed by a
+		// block data header and then the length as a long
+		return bb.getLong(start + 6);
 	}
 
 	String abbr2() {
@@ -597,6 +854,34 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 		return s.toString();
 	}
 
+	/**
+	 * Sets the length of the record this node was loaded from or saved to
+	 * and so (because saved nodes are not changed) the estimate of the heap
+	 * bytes it retains.
+	 * 
+	 * @param recordLength
+	 */
+	void setRecordLength(int recordLength) {
+		ref.setRecordBytes(recordLength,
+				estimateRetainedBytes(keys.size(), recordLength));
+	}
+
+	/**
+	 * Returns an estimate of the heap bytes retained by a loaded node with
+	 * <code>keyCount</code> keys saved in a record of
+	 * <code>recordLength</code> bytes. Key values are assumed to take about
+	 * twice their serialized size on the heap (object headers, boxing and
+	 * two byte characters).
+	 * 
+	 * @param keyCount
+	 * @param recordLength
+	 * @return
+	 */
+	static int estimateRetainedBytes(int keyCount, int recordLength) {
+		return NODE_OVERHEAD_BYTES + keyCount * KEY_OVERHEAD_BYTES + 2
+				* recordLength;
+	}
+
 	void setIsRoot(boolean isRoot) {
 		this.isRoot = isRoot;
 	}
@@ -1,40 +1,346 @@
 package com.github.davidmoten.structures.btree;
 
 import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.RemovalListener;
-import com.google.common.cache.RemovalNotification;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
+/**
+ * Keeps a bounded set of saved nodes loaded, unloading the nodes evicted.
+ * The bound is either a number of nodes or an estimate of the heap bytes the
+ * loaded nodes retain (see {@link Node#estimateRetainedBytes(int, int)}).
+ *
+ * Every lookup passes through the upper levels of the tree so the nodes of
+ * the top <code>pinnedLevels</code> levels are never evicted (though they
+ * count towards the bound). Other nodes enter a small window in the order
+ * they are loaded or saved. A node leaving the window is only admitted to
+ * the main area if it has been used more often than the node it would
+ * evict, as estimated by a {@link FrequencySketch} (TinyLFU), so a large
+ * scan of nodes used once cannot flush the nodes used by most lookups. The
+ * main area evicts in least recently used order approximated by giving
+ * nodes accessed since last checked a second chance.
+ *
+ * Nodes replaced by copy-on-write are removed without being unloaded.
+ *
+ * @author dxm
+ *
+ * @param <T>
+ */
 public class NodeCache<T extends Serializable & Comparable<T>> {
 
-	private final Cache<Long, NodeRef<T>> nodeCache;
+	/**
+	 * The number of levels pinned by default.
+	 */
+	static final int DEFAULT_PINNED_LEVELS = 2;
+
+	/**
+	 * The fraction of the bound given to the window.
+	 */
+	private static final double WINDOW_FRACTION = 0.01;
+
+	/**
+	 * The bound on the total weight of the nodes in the cache.
+	 */
+	private final long maxWeight;
+
+	/**
+	 * If true nodes are weighed by their retained bytes, otherwise each
+	 * weighs one.
+	 */
+	private final boolean weighBytes;
+
+	private final int pinnedLevels;
+
+	private final long windowMaxWeight;
+
+	private final FrequencySketch sketch;
+
+	private final Map<Position, Entry<T>> pinned = Maps.newHashMap();
+
+	private final LinkedHashMap<Position, Entry<T>> window = new LinkedHashMap<Position, Entry<T>>();
+
+	private final LinkedHashMap<Position, Entry<T>> main = new LinkedHashMap<Position, Entry<T>>();
+
+	private long pinnedWeight;
+
+	private long windowWeight;
+
+	private long mainWeight;
+
+	/**
+	 * Nodes with at least this height are pinned.
+	 */
+	private int minPinnedHeight = Integer.MAX_VALUE;
 
 	public NodeCache(long maxNodesInMemory) {
-		nodeCache = createNodeCache(maxNodesInMemory);
+		this(maxNodesInMemory, false, DEFAULT_PINNED_LEVELS);
 		System.out.println("built NodeCache of size " + maxNodesInMemory);
 	}
 
-	private Cache<Long, NodeRef<T>> createNodeCache(long maxNodesInMemory) {
-		return CacheBuilder.newBuilder().maximumSize(maxNodesInMemory)
-				.removalListener(createRemovalListener()).build();
+	private NodeCache(long maxWeight, boolean weighBytes, int pinnedLevels) {
+		this.maxWeight = maxWeight;
+		this.weighBytes = weighBytes;
+		this.pinnedLevels = pinnedLevels;
+		this.windowMaxWeight = (long) (maxWeight * WINDOW_FRACTION);
+		this.sketch = new FrequencySketch(weighBytes ? maxWeight / 512
+				: maxWeight);
+	}
+
+	/**
+	 * Returns a cache that keeps at most <code>maxNodesInMemory</code> nodes
+	 * loaded.
+	 *
+	 * @param maxNodesInMemory
+	 * @param pinnedLevels
+	 * @return
+	 */
+	static <T extends Serializable & Comparable<T>> NodeCache<T> withMaximumNodes(
+			long maxNodesInMemory, int pinnedLevels) {
+		return new NodeCache<T>(maxNodesInMemory, false, pinnedLevels);
+	}
+
+	/**
+	 * Returns a cache that keeps the estimated heap bytes retained by the
+	 * loaded nodes at most <code>maxBytesInMemory</code>.
+	 *
+	 * @param maxBytesInMemory
+	 * @param pinnedLevels
+	 * @return
+	 */
+	static <T extends Serializable & Comparable<T>> NodeCache<T> withMaximumBytes(
+			long maxBytesInMemory, int pinnedLevels) {
+		return new NodeCache<T>(maxBytesInMemory, true, pinnedLevels);
 	}
 
-	private RemovalListener<Long, NodeRef<T>> createRemovalListener() {
-		return new RemovalListener<Long, NodeRef<T>>() {
+	/**
+	 * A node in the cache with its weight when put.
+	 */
+	private static final class Entry<T extends Serializable & Comparable<T>> {
+		final Position position;
+		final NodeRef<T> node;
+		final int weight;
 
-			@Override
-			public void onRemoval(
-					RemovalNotification<Long, NodeRef<T>> notification) {
-				notification.getValue().unload();
+		Entry(Position position, NodeRef<T> node, int weight) {
+			this.position = position;
+			this.node = node;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * Adds a node that has just been loaded or saved, evicting others if
+	 * needed.
+	 *
+	 * @param position
+	 * @param node
+	 */
+	public synchronized void put(Position position, NodeRef<T> node) {
+		Entry<T> existing = removeEntry(position);
+		if (existing != null && existing.node != node)
+			existing.node.unload();
+		sketch.increment(position.hashCode(), 1);
+		// saved nodes don't change so the weight when put stays right
+		Entry<T> entry = new Entry<T>(position, node,
+				weighBytes ? Math.max(1, node.getRetainedBytes()) : 1);
+		if (isPinned(node)) {
+			pinned.put(position, entry);
+			pinnedWeight += entry.weight;
+		} else {
+			window.put(position, entry);
+			windowWeight += entry.weight;
+		}
+		evict();
+	}
+
+	/**
+	 * Removes a node replaced by a copy without unloading it because readers
+	 * of an earlier root may still be using it.
+	 *
+	 * @param node
+	 */
+	synchronized void remove(NodeRef<T> node) {
+		if (!node.getPosition().isPresent())
+			return;
+		Position position = node.getPosition().get();
+		Entry<T> entry = removeEntry(position);
+		if (entry != null && entry.node != node)
+			// a different ref to the same record so put it back
+			put(position, entry.node);
+	}
+
+	/**
+	 * Sets the number of levels of the tree so that the nodes of the top
+	 * levels are pinned. Nodes no longer in the top levels (because the tree
+	 * has grown) are unpinned.
+	 *
+	 * @param treeHeight
+	 */
+	synchronized void setTreeHeight(int treeHeight) {
+		int min = pinnedLevels == 0 ? Integer.MAX_VALUE : treeHeight
+				- pinnedLevels;
+		if (min == minPinnedHeight)
+			return;
+		minPinnedHeight = min;
+		List<Entry<T>> unpinned = Lists.newArrayList();
+		for (Iterator<Entry<T>> it = pinned.values().iterator(); it.hasNext();) {
+			Entry<T> entry = it.next();
+			if (!isPinned(entry.node)) {
+				it.remove();
+				pinnedWeight -= entry.weight;
+				unpinned.add(entry);
 			}
-		};
+		}
+		for (Entry<T> entry : unpinned) {
+			window.put(entry.position, entry);
+			windowWeight += entry.weight;
+		}
+		evict();
+	}
+
+	private boolean isPinned(NodeRef<T> node) {
+		int height = node.getHeight();
+		return height >= 0 && height >= minPinnedHeight;
 	}
 
-	// TODO use filenumber in position
-	public void put(long position, NodeRef<T> node) {
-		nodeCache.put(position, node);
+	private Entry<T> removeEntry(Position position) {
+		Entry<T> entry = pinned.remove(position);
+		if (entry != null) {
+			pinnedWeight -= entry.weight;
+			return entry;
+		}
+		entry = window.remove(position);
+		if (entry != null) {
+			windowWeight -= entry.weight;
+			return entry;
+		}
+		entry = main.remove(position);
+		if (entry != null)
+			mainWeight -= entry.weight;
+		return entry;
 	}
 
+	private long totalWeight() {
+		return pinnedWeight + windowWeight + mainWeight;
+	}
+
+	/**
+	 * Moves nodes from the window to the main area (if admitted) while the
+	 * window is over its share and then evicts until within the bound.
+	 */
+	private void evict() {
+		while (windowWeight > windowMaxWeight && window.size() > 1) {
+			Entry<T> candidate = pollFirst(window);
+			windowWeight -= candidate.weight;
+			admit(candidate);
+		}
+		while (totalWeight() > maxWeight) {
+			Entry<T> victim;
+			if (!main.isEmpty()) {
+				victim = victim();
+				main.remove(victim.position);
+				mainWeight -= victim.weight;
+			} else if (!window.isEmpty()) {
+				victim = pollFirst(window);
+				windowWeight -= victim.weight;
+			} else
+				// only pinned nodes are left
+				break;
+			unload(victim);
+		}
+	}
+
+	/**
+	 * Adds the candidate to the main area if it is used more often than each
+	 * node it has to evict to fit, otherwise unloads it.
+	 *
+	 * @param candidate
+	 */
+	private void admit(Entry<T> candidate) {
+		while (totalWeight() + candidate.weight > maxWeight && !main.isEmpty()) {
+			Entry<T> victim = victim();
+			if (frequency(candidate) > frequency(victim)) {
+				main.remove(victim.position);
+				mainWeight -= victim.weight;
+				unload(victim);
+			} else {
+				unload(candidate);
+				return;
+			}
+		}
+		main.put(candidate.position, candidate);
+		mainWeight += candidate.weight;
+	}
+
+	/**
+	 * Returns the least recently used node of the main area, giving nodes
+	 * accessed since last checked a second chance.
+	 *
+	 * @return
+	 */
+	private Entry<T> victim() {
+		for (int i = 0; i < main.size(); i++) {
+			Entry<T> entry = main.values().iterator().next();
+			int accesses = entry.node.takeAccesses();
+			if (accesses == 0)
+				return entry;
+			sketch.increment(entry.position.hashCode(), accesses);
+			// move to the most recently used end
+			main.remove(entry.position);
+			main.put(entry.position, entry);
+		}
+		return main.values().iterator().next();
+	}
+
+	private int frequency(Entry<T> entry) {
+		return sketch.frequency(entry.position.hashCode())
+				+ entry.node.getAccesses();
+	}
+
+	private void unload(Entry<T> entry) {
+		// remember how often it was used in case it is loaded again
+		sketch.increment(entry.position.hashCode(), entry.node.takeAccesses());
+		entry.node.unload();
+	}
+
+	private static <T extends Serializable & Comparable<T>> Entry<T> pollFirst(
+			LinkedHashMap<Position, Entry<T>> map) {
+		Iterator<Entry<T>> it = map.values().iterator();
+		Entry<T> entry = it.next();
+		it.remove();
+		return entry;
+	}
+
+	/**
+	 * Returns the estimated heap bytes retained by the nodes in the cache.
+	 *
+	 * @return
+	 */
+	@VisibleForTesting
+	synchronized long retainedBytes() {
+		List<Map<Position, Entry<T>>> maps = Lists.newArrayList();
+		maps.add(pinned);
+		maps.add(window);
+		maps.add(main);
+		long bytes = 0;
+		for (Map<Position, Entry<T>> map : maps)
+			for (Entry<T> entry : map.values())
+				bytes += entry.node.getRetainedBytes();
+		return bytes;
+	}
+
+	/**
+	 * Returns true if the node saved at the position is pinned in the cache.
+	 *
+	 * @param position
+	 * @return
+	 */
+	@VisibleForTesting
+	synchronized boolean isPinned(Position position) {
+		return pinned.containsKey(position);
+	}
 }
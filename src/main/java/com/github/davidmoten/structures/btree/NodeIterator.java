@@ -1,48 +1,70 @@
 package com.github.davidmoten.structures.btree;
 
-import static com.google.common.base.Optional.of;
-
 import java.io.Serializable;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 import com.google.common.base.Optional;
 
+/**
+ * In-order iterator over the values of a node and its descendants. Holds the
+ * path from the node to the current key as a stack of key lists with the index
+ * of the next key to return in each.
+ * 
+ * If a {@link Prefetcher} is given then whenever the iterator descends into a
+ * child the next few children of the same node are loaded in the background.
+ * 
+ * @author dxm
+ * 
+ * @param <T>
+ */
 class NodeIterator<T extends Serializable & Comparable<T>> implements
 		Iterator<T> {
 
-	private final Deque<KeySide<T>> q = new LinkedList<KeySide<T>>();
+	private final Deque<Frame> q = new LinkedList<Frame>();
+
+	private final Optional<Prefetcher> prefetcher;
 
 	NodeIterator(NodeRef<T> node) {
-		goToBottomLeft(of(node), q);
+		this(node, Optional.<Prefetcher> absent());
+	}
+
+	NodeIterator(NodeRef<T> node, Optional<Prefetcher> prefetcher) {
+		this.prefetcher = prefetcher;
+		goToBottomLeft(Optional.of(node));
 	}
 
-	private void goToBottomLeft(Optional<NodeRef<T>> node, Deque<KeySide<T>> q) {
-		if (node.isPresent() && node.get().getFirst().isPresent()) {
-			Key<T> first = node.get().getFirst().get();
-			q.push(new KeySide<T>(first, Side.TOP));
-			goToBottomLeft(node.get().getFirst().get().getLeft(), q);
+	private void goToBottomLeft(Optional<NodeRef<T>> node) {
+		while (node.isPresent()) {
+			List<Key<T>> keys = node.get().keys();
+			if (keys.isEmpty())
+				return;
+			q.push(new Frame(keys));
+			node = keys.get(0).getLeft();
+			if (node.isPresent())
+				prefetch(keys, 0);
 		}
 	}
 
-	private Optional<KeySide<T>> next(KeySide<T> k) {
-		if (k.getSide().equals(Side.LEFT))
-			return of(new KeySide<T>(k.getKey(), Side.TOP));
-		else if (k.getSide().equals(Side.TOP)) {
-			if (k.getKey().getRight().isPresent())
-				return of(new KeySide<T>(k.getKey(), Side.RIGHT));
-			else
-				return next(new KeySide<T>(k.getKey(), Side.RIGHT));
-		} else {
-			// side == Right
-			if (k.getKey().next().isPresent())
-				if (k.getKey().next().get().getLeft().isPresent())
-					return of(new KeySide<T>(k.getKey().next().get(), Side.TOP));
-				else
-					return of(new KeySide<T>(k.getKey().next().get(), Side.TOP));
-			else
-				return Optional.absent();
+	/**
+	 * Prefetches the right children of the keys starting at index
+	 * <code>from</code>, being the children visited after the child left of
+	 * key <code>from</code>.
+	 * 
+	 * @param keys
+	 * @param from
+	 */
+	private void prefetch(List<Key<T>> keys, int from) {
+		if (prefetcher.isPresent()) {
+			int to = Math.min(keys.size(), from + prefetcher.get().getDepth());
+			for (int i = from; i < to; i++) {
+				Optional<NodeRef<T>> child = keys.get(i).getRight();
+				if (child.isPresent())
+					prefetcher.get().prefetch(child.get());
+			}
 		}
 	}
 
@@ -53,25 +75,18 @@ class NodeIterator<T extends Serializable & Comparable<T>> implements
 
 	@Override
 	public T next() {
-		KeySide<T> key = q.pop();
-		Optional<KeySide<T>> n = next(key);
-		if (n.isPresent()) {
-			if (n.get().getSide().equals(Side.TOP))
-				q.push(n.get());
-			else if (n.get().getSide().equals(Side.LEFT)) {
-				Optional<KeySide<T>> n2 = next(n.get());
-				if (n2.isPresent())
-					q.push(n2.get());
-				goToBottomLeft(n.get().getKey().getLeft(), q);
-			} else if (n.get().getSide().equals(Side.RIGHT)) {
-				Optional<KeySide<T>> n2 = next(n.get());
-				if (n2.isPresent())
-					q.push(n2.get());
-				goToBottomLeft(n.get().getKey().getRight(), q);
-			}
-		}
-
-		return key.getKey().value();
+		if (q.isEmpty())
+			throw new NoSuchElementException();
+		Frame p = q.peek();
+		Key<T> key = p.keys.get(p.index);
+		p.index++;
+		if (p.index == p.keys.size())
+			q.pop();
+		else if (key.getRight().isPresent())
+			prefetch(p.keys, p.index);
+		// the right child of key is the left child of the next key
+		goToBottomLeft(key.getRight());
+		return key.value();
 	}
 
 	@Override
@@ -79,4 +94,17 @@ class NodeIterator<T extends Serializable & Comparable<T>> implements
 		throw new RuntimeException("not implemented");
 	}
 
+	/**
+	 * The keys of a node on the current path and the index of the next key to
+	 * return.
+	 */
+	private class Frame {
+		final List<Key<T>> keys;
+		int index;
+
+		Frame(List<Key<T>> keys) {
+			this.keys = keys;
+		}
+	}
+
 }
@@ -6,6 +6,7 @@ import static com.google.common.base.Optional.of;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.List;
 
@@ -13,15 +14,77 @@ import com.google.common.base.Optional;
 
 class NodeRef<T extends Serializable & Comparable<T>> {
 
-	private Optional<Position> position;
-
-	private Optional<Node<T>> node = Optional.absent();
+	/**
+	 * Volatile because it is set by the thread saving the node and read by
+	 * threads loading it.
+	 */
+	private volatile Optional<Position> position;
+
+	/**
+	 * Volatile so that a loaded node can be read without locking. Only set
+	 * to a loaded node once the node has been completely read.
+	 */
+	private volatile Optional<Node<T>> node = Optional.absent();
+
+	/**
+	 * The node being read by {@link #load()}. Guarded by this.
+	 */
+	private Node<T> loading;
 	private final NodeLoader<T> loader;
 
 	private final int degree;
 
 	private final boolean isRoot;
 
+	/**
+	 * The estimated heap bytes retained by the node when loaded. Kept when
+	 * the node is unloaded so that a cache can weigh this ref without
+	 * loading it.
+	 */
+	private volatile int retainedBytes;
+
+	/**
+	 * The length in bytes of the record the node was last loaded from or
+	 * saved to, zero if neither. Kept when the node is unloaded so that the
+	 * node can be marked obsolete without loading it.
+	 */
+	private volatile int recordLength;
+
+	/**
+	 * The number of levels below the node (0 for a leaf), -1 if not known.
+	 * Copy-on-write means the height of a node never changes.
+	 */
+	private volatile int height = -1;
+
+	/**
+	 * The estimated number of times the node has been accessed since the
+	 * node cache last looked. Only one in {@link #ACCESS_SAMPLE_RATE}
+	 * accesses (chosen at random) is counted, as that many, so that readers
+	 * rarely write to a ref shared by all of them (such as the root). Not
+	 * synchronized so may lose counts.
+	 */
+	private int accesses;
+
+	/**
+	 * One in this many accesses is counted. A power of two.
+	 */
+	static final int ACCESS_SAMPLE_RATE = 8;
+
+	/**
+	 * The state of a xorshift random number generator for each thread
+	 * choosing which accesses are counted. A random choice rather than every
+	 * nth access so that the sample does not depend on the depth of the
+	 * tree.
+	 */
+	private static final ThreadLocal<int[]> SAMPLER = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			// any non-zero seed
+			int seed = (int) Thread.currentThread().getId() * 0x9E3779B9;
+			return new int[] { seed | 1 };
+		}
+	};
+
 	NodeRef(NodeLoader<T> nodeListener, Optional<Position> position,
 			int degree, boolean isRoot) {
 		this.loader = nodeListener;
@@ -30,24 +93,134 @@ class NodeRef<T extends Serializable & Comparable<T>> {
 		this.isRoot = isRoot;
 	}
 
-	synchronized Node<T> node() {
-		if (!node.isPresent()) {
-			if (position.isPresent()) {
-				load();
-			} else {
-				node = of(new Node<T>(loader, this, isRoot));
-			}
+	/**
+	 * Returns a ref to a new unsaved node with the given height and keys.
+	 * The node is built completely before it is assigned to the volatile
+	 * node field so it is never seen without its keys.
+	 * 
+	 * @param loader
+	 * @param degree
+	 * @param isRoot
+	 * @param height
+	 * @param keys
+	 * @return
+	 */
+	static <T extends Serializable & Comparable<T>> NodeRef<T> create(
+			NodeLoader<T> loader, int degree, boolean isRoot, int height,
+			List<Key<T>> keys) {
+		NodeRef<T> ref = new NodeRef<T>(loader, Optional.<Position> absent(),
+				degree, isRoot);
+		ref.height = height;
+		ref.node = of(new Node<T>(loader, ref, isRoot, keys));
+		return ref;
+	}
+
+	/**
+	 * Returns the node, loading it if not in memory. A loaded node is
+	 * returned without locking. Concurrent callers finding the node not
+	 * loaded wait for the first of them to load it so that it is only read
+	 * once.
+	 * 
+	 * @return
+	 */
+	Node<T> node() {
+		if (sampleAccess())
+			accesses += ACCESS_SAMPLE_RATE;
+		// read the field once because the node cache may unload this ref
+		// from another thread at any time
+		Optional<Node<T>> n = node;
+		if (n.isPresent())
+			return n.get();
+		else
+			return loadNode();
+	}
+
+	/**
+	 * Returns true if the current access should be counted.
+	 * 
+	 * @return
+	 */
+	private static boolean sampleAccess() {
+		int[] state = SAMPLER.get();
+		int x = state[0];
+		x ^= x << 13;
+		x ^= x >>> 17;
+		x ^= x << 5;
+		state[0] = x;
+		return (x & (ACCESS_SAMPLE_RATE - 1)) == 0;
+	}
+
+	private synchronized Node<T> loadNode() {
+		Optional<Node<T>> n = node;
+		if (n.isPresent())
+			// loaded by another thread while waiting for the lock
+			return n.get();
+		else if (loading != null)
+			// called by this thread while reading the node
+			return loading;
+		else if (position.isPresent()) {
+			Node<T> loaded = load();
+			// the node cache counts the load itself so don't count the
+			// accesses made while loading
+			accesses = 0;
+			return loaded;
+		} else {
+			Node<T> created = new Node<T>(loader, this, isRoot);
+			node = of(created);
+			return created;
 		}
-		return node.get();
 	}
 
-	void load(InputStream is) {
-		node.get().load(is);
+	/**
+	 * Returns true if the node is in memory.
+	 * 
+	 * @return
+	 */
+	boolean isLoaded() {
+		return node.isPresent();
+	}
+
+	/**
+	 * Reads the node being loaded from the stream and makes it visible to
+	 * readers. Called by the {@link NodeLoader} while loading.
+	 * 
+	 * @param is
+	 * @param serializer
+	 */
+	synchronized void load(InputStream is, KeySerializer<T> serializer) {
+		loading.load(is, serializer);
+		node = of(loading);
 	}
 
-	private void load() {
-		node = of(new Node<T>(loader, this, isRoot));
-		loader.load(this);
+	/**
+	 * Reads the node being loaded from the buffer and makes it visible to
+	 * readers. Called by the {@link NodeLoader} while loading.
+	 * 
+	 * @param bb
+	 * @param serializer
+	 */
+	synchronized void load(ByteBuffer bb, KeySerializer<T> serializer) {
+		loading.load(bb, serializer);
+		node = of(loading);
+	}
+
+	/**
+	 * Loads the node. The node is only visible to callers of
+	 * {@link #node()} not holding the lock once read so that a partly read
+	 * node is never seen, and an empty node is not left behind if the read
+	 * fails.
+	 * 
+	 * @return
+	 */
+	private Node<T> load() {
+		Node<T> n = new Node<T>(loader, this, isRoot);
+		loading = n;
+		try {
+			loader.load(this);
+		} finally {
+			loading = null;
+		}
+		return n;
 	}
 
 	Optional<T> find(T t) {
@@ -66,8 +239,8 @@ class NodeRef<T extends Serializable & Comparable<T>> {
 		return node().getKeys();
 	}
 
-	void setFirst(Optional<Key<T>> first) {
-		node().setFirst(first);
+	void setKeys(List<Key<T>> keys) {
+		node().setKeys(keys);
 	}
 
 	Optional<Key<T>> getFirst() {
@@ -120,12 +293,30 @@ class NodeRef<T extends Serializable & Comparable<T>> {
 		return node().addToThisLevel(keyNodes);
 	}
 
-	Iterable<Key<T>> keys() {
+	List<Key<T>> keys() {
 		return node().keys();
 	}
 
-	void save(OutputStream os) {
-		node().save(os);
+	void save(OutputStream os, KeySerializer<T> serializer) {
+		node().save(os, serializer);
+	}
+
+	ByteBuffer encode(KeySerializer<T> serializer) {
+		return node().encode(serializer);
+	}
+
+	void encode(ByteBuffer bb, int length, KeySerializer<T> serializer,
+			Optional<List<byte[]>> values) {
+		node().encode(bb, length, serializer, values);
+	}
+
+	int encodedLength(KeySerializer<T> serializer,
+			Optional<List<byte[]>> values) {
+		return node().encodedLength(serializer, values);
+	}
+
+	Optional<List<byte[]>> serializeValues(KeySerializer<T> serializer) {
+		return node().serializeValues(serializer);
 	}
 
 	void setPosition(Optional<Position> position) {
@@ -160,6 +351,60 @@ class NodeRef<T extends Serializable & Comparable<T>> {
 		return node().isRoot();
 	}
 
+	List<Optional<NodeRef<T>>> children() {
+		return node().children();
+	}
+
+	NodeRef<T> copyWithChildren(List<Optional<NodeRef<T>>> children) {
+		return node().copyWithChildren(children);
+	}
+
+	int getRecordLength() {
+		return recordLength;
+	}
+
+	void setRecordLength(int recordLength) {
+		node().setRecordLength(recordLength);
+	}
+
+	int getRetainedBytes() {
+		return retainedBytes;
+	}
+
+	void setRecordBytes(int recordLength, int retainedBytes) {
+		this.recordLength = recordLength;
+		this.retainedBytes = retainedBytes;
+	}
+
+	int getHeight() {
+		return height;
+	}
+
+	void setHeight(int height) {
+		this.height = height;
+	}
+
+	/**
+	 * Returns the number of accesses since last called and resets it.
+	 * 
+	 * @return
+	 */
+	int takeAccesses() {
+		int a = accesses;
+		accesses = 0;
+		return a;
+	}
+
+	/**
+	 * Returns the number of accesses since {@link #takeAccesses()} was last
+	 * called.
+	 * 
+	 * @return
+	 */
+	int getAccesses() {
+		return accesses;
+	}
+
 	int getDegree() {
 		return degree;
 	}
@@ -0,0 +1,438 @@
+package com.github.davidmoten.structures.btree;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * A second level cache of node records held in direct memory so that many
+ * more nodes can be kept in memory than the heap (and the garbage collector)
+ * could cope with as deserialized nodes. {@link Storage} looks here before
+ * reading a record from disk and adds the records it reads.
+ *
+ * Memory is allocated in slabs of {@link #SLAB_BYTES} (up to the maximum
+ * bytes given) and each slab is divided into slots of one size class, a
+ * power of two from {@link #MIN_SHIFT} to {@link #MAX_SHIFT}. A record goes
+ * in a slot of the smallest class it fits and larger records are not
+ * cached. Once no more slabs can be allocated a record replaces one of the
+ * same class chosen by the CLOCK algorithm: the hand passes over slots read
+ * since it last passed them (clearing their reference bits) and stops at
+ * the first slot not read.
+ *
+ * Slabs go to the classes that ask first, so once all the memory is
+ * allocated the slabs are moved between classes as the mix of record sizes
+ * changes: every {@link #REBALANCE_PUTS} puts a slab is taken from the
+ * class whose last slab has the fewest hits and given to a full class whose
+ * records missed more often than that slab was hit (see
+ * {@link #rebalance()}).
+ *
+ * @author dxm
+ *
+ */
+final class OffHeapCache {
+
+	/**
+	 * The size in bytes of each block of direct memory allocated.
+	 */
+	static final int SLAB_BYTES = 1 << 20;
+
+	/**
+	 * The smallest slot size is 2 to this power.
+	 */
+	private static final int MIN_SHIFT = 7;
+
+	/**
+	 * The largest slot size is 2 to this power.
+	 */
+	private static final int MAX_SHIFT = 16;
+
+	/**
+	 * The number of puts between rebalances of slabs between size classes.
+	 */
+	private static final int REBALANCE_PUTS = 1024;
+
+	private final long maxBytes;
+
+	/**
+	 * The bytes of the slabs allocated so far.
+	 */
+	private final AtomicLong allocated = new AtomicLong();
+
+	/**
+	 * The size class and slot of each cached record (see
+	 * {@link #slotId(int, int)}).
+	 */
+	private final ConcurrentMap<Position, Long> index = new ConcurrentHashMap<Position, Long>();
+
+	private final List<SizeClass> classes = Lists.newArrayList();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong puts = new AtomicLong();
+
+	private final AtomicLong slabMoves = new AtomicLong();
+
+	/**
+	 * This object is synchronized on so that slabs are rebalanced by one
+	 * thread at a time. Never acquired while holding the monitor of a size
+	 * class.
+	 */
+	private final Object rebalanceMonitor = new Object();
+
+	/**
+	 * Constructor. Memory is allocated as needed.
+	 *
+	 * @param maxBytes
+	 *            the maximum bytes of direct memory used
+	 */
+	OffHeapCache(long maxBytes) {
+		Preconditions.checkArgument(maxBytes >= SLAB_BYTES,
+				"maxBytes must be at least " + SLAB_BYTES);
+		this.maxBytes = maxBytes;
+		for (int shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++)
+			classes.add(new SizeClass(classes.size(), 1 << shift));
+	}
+
+	/**
+	 * Returns a copy of the record saved at the position (positioned at 0)
+	 * if cached.
+	 *
+	 * @param position
+	 * @return
+	 */
+	Optional<ByteBuffer> get(Position position) {
+		Long id = index.get(position);
+		Optional<ByteBuffer> record;
+		if (id == null)
+			record = Optional.absent();
+		else
+			record = classes.get(classIndex(id)).read(position, slot(id));
+		if (record.isPresent())
+			hits.incrementAndGet();
+		else
+			misses.incrementAndGet();
+		return record;
+	}
+
+	/**
+	 * Caches the remaining bytes of <code>record</code> (which are not
+	 * consumed) as the record saved at the position.
+	 *
+	 * @param position
+	 * @param record
+	 */
+	void put(Position position, ByteBuffer record) {
+		int length = record.remaining();
+		for (SizeClass c : classes)
+			if (length <= c.slotSize) {
+				c.puts.incrementAndGet();
+				c.write(position, record);
+				if (puts.incrementAndGet() % REBALANCE_PUTS == 0)
+					rebalance();
+				return;
+			}
+	}
+
+	/**
+	 * If all the memory is allocated, moves a slab to the full size class
+	 * with the most puts (records that missed) per slab it would have from
+	 * the other class whose last slab has the fewest hits, if those puts per
+	 * slab exceed the hits of the last slab. So a class that has no slabs
+	 * because other classes took all the memory first gets one once its
+	 * records are read more often than those of the slab it would take. Then
+	 * halves the hits and puts counted for every class so that recent reads
+	 * count for more.
+	 */
+	private void rebalance() {
+		synchronized (rebalanceMonitor) {
+			if (allocated.get() + SLAB_BYTES > maxBytes) {
+				int n = classes.size();
+				long[] putCounts = new long[n];
+				long[] lastSlabHits = new long[n];
+				int[] slabs = new int[n];
+				boolean[] full = new boolean[n];
+				for (int i = 0; i < n; i++) {
+					SizeClass c = classes.get(i);
+					synchronized (c) {
+						putCounts[i] = c.puts.get();
+						slabs[i] = c.slabs.size();
+						lastSlabHits[i] = slabs[i] == 0 ? 0
+								: c.slabHits[slabs[i] - 1];
+						full[i] = c.used == c.positions.length;
+					}
+				}
+				// compare the puts per slab a class would have if given a slab
+				int hot = -1;
+				for (int i = 0; i < n; i++)
+					if (full[i]
+							&& putCounts[i] > 0
+							&& (hot == -1 || putCounts[i] * (slabs[hot] + 1) > putCounts[hot]
+									* (slabs[i] + 1)))
+						hot = i;
+				int cold = -1;
+				for (int i = 0; i < n; i++)
+					if (i != hot && slabs[i] > 0
+							&& (cold == -1 || lastSlabHits[i] < lastSlabHits[cold]))
+						cold = i;
+				if (hot != -1
+						&& cold != -1
+						&& putCounts[hot] > lastSlabHits[cold]
+								* (slabs[hot] + 1)) {
+					classes.get(hot).addSlab(classes.get(cold).removeSlab());
+					slabMoves.incrementAndGet();
+				}
+			}
+			for (SizeClass c : classes)
+				c.age();
+		}
+	}
+
+	/**
+	 * Forgets the records of a file that has been deleted. Their slots are
+	 * reused by the CLOCK.
+	 *
+	 * @param fileNumber
+	 */
+	void invalidate(long fileNumber) {
+		Iterator<Position> it = index.keySet().iterator();
+		while (it.hasNext())
+			if (it.next().getFileNumber() == fileNumber)
+				it.remove();
+	}
+
+	long getMaxBytes() {
+		return maxBytes;
+	}
+
+	@VisibleForTesting
+	long hits() {
+		return hits.get();
+	}
+
+	@VisibleForTesting
+	long misses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of slabs moved from one size class to another.
+	 *
+	 * @return
+	 */
+	@VisibleForTesting
+	long slabMoves() {
+		return slabMoves.get();
+	}
+
+	/**
+	 * Returns the bytes of direct memory allocated.
+	 *
+	 * @return
+	 */
+	@VisibleForTesting
+	long allocatedBytes() {
+		return allocated.get();
+	}
+
+	private static long slotId(int classIndex, int slot) {
+		return ((long) classIndex << 32) | slot;
+	}
+
+	private static int classIndex(long id) {
+		return (int) (id >>> 32);
+	}
+
+	private static int slot(long id) {
+		return (int) id;
+	}
+
+	/**
+	 * Reserves the bytes of another slab if within the maximum.
+	 *
+	 * @return
+	 */
+	private boolean reserveSlab() {
+		while (true) {
+			long a = allocated.get();
+			if (a + SLAB_BYTES > maxBytes)
+				return false;
+			if (allocated.compareAndSet(a, a + SLAB_BYTES))
+				return true;
+		}
+	}
+
+	/**
+	 * The slabs and slots of one slot size.
+	 */
+	private final class SizeClass {
+
+		private final int classIndex;
+
+		private final int slotSize;
+
+		private final int slotsPerSlab;
+
+		/**
+		 * Guarded by this.
+		 */
+		private final List<ByteBuffer> slabs = Lists.newArrayList();
+
+		/**
+		 * The reads of the cached records in each slab (halved at each
+		 * rebalance). Guarded by this.
+		 */
+		private long[] slabHits = new long[0];
+
+		/**
+		 * The records of this class put (halved at each rebalance).
+		 */
+		private final AtomicLong puts = new AtomicLong();
+
+		/**
+		 * The position of the record in each slot. Guarded by this.
+		 */
+		private Position[] positions = new Position[0];
+
+		/**
+		 * The length of the record in each slot. Guarded by this.
+		 */
+		private int[] lengths = new int[0];
+
+		/**
+		 * True for each slot read since the hand last passed it. Guarded by
+		 * this.
+		 */
+		private boolean[] referenced = new boolean[0];
+
+		/**
+		 * The number of slots used, all slots being used before any is
+		 * replaced. Guarded by this.
+		 */
+		private int used;
+
+		/**
+		 * The next slot the CLOCK hand looks at. Guarded by this.
+		 */
+		private int hand;
+
+		SizeClass(int classIndex, int slotSize) {
+			this.classIndex = classIndex;
+			this.slotSize = slotSize;
+			this.slotsPerSlab = SLAB_BYTES / slotSize;
+		}
+
+		synchronized Optional<ByteBuffer> read(Position position, int slot) {
+			// the slot may have been given to another record (or its slab to
+			// another class) since the index was read
+			if (slot >= used || !position.equals(positions[slot]))
+				return Optional.absent();
+			referenced[slot] = true;
+			slabHits[slot / slotsPerSlab]++;
+			ByteBuffer src = view(slot);
+			src.limit(src.position() + lengths[slot]);
+			ByteBuffer copy = ByteBuffer.allocate(lengths[slot]);
+			copy.put(src);
+			copy.flip();
+			return Optional.of(copy);
+		}
+
+		synchronized void write(Position position, ByteBuffer record) {
+			if (index.containsKey(position))
+				return;
+			int slot;
+			if (used < positions.length || addSlab())
+				slot = used++;
+			else if (used == 0)
+				// all the memory is held by other size classes
+				return;
+			else {
+				while (referenced[hand]) {
+					referenced[hand] = false;
+					hand = (hand + 1) % used;
+				}
+				slot = hand;
+				hand = (hand + 1) % used;
+				index.remove(positions[slot], slotId(classIndex, slot));
+			}
+			positions[slot] = position;
+			lengths[slot] = record.remaining();
+			referenced[slot] = false;
+			view(slot).put(record.duplicate());
+			index.put(position, slotId(classIndex, slot));
+		}
+
+		private boolean addSlab() {
+			if (!reserveSlab())
+				return false;
+			addSlab(ByteBuffer.allocateDirect(SLAB_BYTES));
+			return true;
+		}
+
+		/**
+		 * Adds the slots of the slab after the existing slots.
+		 *
+		 * @param slab
+		 */
+		synchronized void addSlab(ByteBuffer slab) {
+			slabs.add(slab);
+			slabHits = Arrays.copyOf(slabHits, slabs.size());
+			resize(slabs.size() * slotsPerSlab);
+		}
+
+		/**
+		 * Removes the last slab, forgetting the records in its slots, and
+		 * returns it. There must be at least one slab.
+		 *
+		 * @return
+		 */
+		synchronized ByteBuffer removeSlab() {
+			ByteBuffer slab = slabs.remove(slabs.size() - 1);
+			slabHits = Arrays.copyOf(slabHits, slabs.size());
+			int slots = slabs.size() * slotsPerSlab;
+			for (int slot = slots; slot < used; slot++)
+				index.remove(positions[slot], slotId(classIndex, slot));
+			used = Math.min(used, slots);
+			hand = used == 0 ? 0 : hand % used;
+			resize(slots);
+			return slab;
+		}
+
+		/**
+		 * Halves the hits and puts counted.
+		 */
+		synchronized void age() {
+			for (int i = 0; i < slabHits.length; i++)
+				slabHits[i] /= 2;
+			puts.addAndGet(-puts.get() / 2);
+		}
+
+		private void resize(int slots) {
+			positions = Arrays.copyOf(positions, slots);
+			lengths = Arrays.copyOf(lengths, slots);
+			referenced = Arrays.copyOf(referenced, slots);
+		}
+
+		/**
+		 * Returns a view of the slab positioned at the start of the slot.
+		 *
+		 * @param slot
+		 * @return
+		 */
+		private ByteBuffer view(int slot) {
+			ByteBuffer bb = slabs.get(slot / slotsPerSlab).duplicate();
+			bb.position((slot % slotsPerSlab) * slotSize);
+			return bb;
+		}
+	}
+}
@@ -19,6 +19,18 @@ class Position {
 		return position;
 	}
 
+	/**
+	 * Returns true if this position is in an earlier file or earlier in the
+	 * same file than <code>other</code>.
+	 * 
+	 * @param other
+	 * @return
+	 */
+	boolean isBefore(Position other) {
+		return fileNumber < other.fileNumber || fileNumber == other.fileNumber
+				&& position < other.position;
+	}
+
 	@Override
 	public String toString() {
 		return "Position [fileNumber=" + fileNumber + ", position=" + position
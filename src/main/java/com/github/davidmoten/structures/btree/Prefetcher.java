@@ -0,0 +1,88 @@
+package com.github.davidmoten.structures.btree;
+
+import java.io.Serializable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Loads nodes on a small pool of threads ahead of an iterator reaching them
+ * so that the reads of a scan overlap instead of each blocking in turn.
+ *
+ * @author dxm
+ *
+ */
+final class Prefetcher {
+
+	private final ExecutorService executor;
+
+	/**
+	 * The number of upcoming sibling subtrees loaded ahead.
+	 */
+	private final int depth;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param depth
+	 *            the number of upcoming sibling subtrees loaded ahead
+	 * @param threads
+	 *            the number of threads loading nodes
+	 */
+	Prefetcher(int depth, int threads) {
+		Preconditions.checkArgument(depth > 0, "depth must be positive");
+		Preconditions.checkArgument(threads > 0, "threads must be positive");
+		this.depth = depth;
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads,
+				threads, 1, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+						.setDaemon(true).setNameFormat("btree-prefetch-%d")
+						.build());
+		// threads stop when idle
+		executor.allowCoreThreadTimeOut(true);
+		this.executor = executor;
+	}
+
+	int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Starts loading the node in the background if it is saved and not
+	 * already loaded. A failed load is ignored because the iterator loads the
+	 * node itself when it reaches it and gets the error then.
+	 *
+	 * @param node
+	 */
+	<T extends Serializable & Comparable<T>> void prefetch(
+			final NodeRef<T> node) {
+		if (node.getPosition().isPresent() && !node.isLoaded()) {
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							node.node();
+						} catch (RuntimeException e) {
+							// ignore
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// shut down
+			}
+		}
+	}
+
+	/**
+	 * Stops the threads once queued loads are done.
+	 */
+	void shutdown() {
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,125 @@
+package com.github.davidmoten.structures.btree;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Optional;
+
+/**
+ * Tracks the reads of a b-tree in progress so that a storage file that a
+ * compaction has made unreachable from the root is only deleted once no read
+ * that started from an earlier root can reach it.
+ *
+ * Every compaction that replaces the root advances the epoch after the root
+ * is replaced. A read enters with the current epoch before it reads the root,
+ * so a read that may hold an earlier root has an earlier epoch.
+ *
+ * @author dxm
+ *
+ */
+final class Readers {
+
+	private final AtomicLong epoch = new AtomicLong();
+
+	/**
+	 * The reads in progress.
+	 */
+	private final Set<Reader> active = Collections
+			.newSetFromMap(new ConcurrentHashMap<Reader, Boolean>());
+
+	/**
+	 * Registers a read that has not yet read the root. It must be passed to
+	 * {@link #exit(Reader)} once finished.
+	 *
+	 * @return
+	 */
+	Reader enter() {
+		return enter(Optional.<Object> absent());
+	}
+
+	/**
+	 * Registers a read that has not yet read the root and that also finishes
+	 * when <code>owner</code> (an iterator that may be abandoned) is garbage
+	 * collected.
+	 *
+	 * @param owner
+	 * @return
+	 */
+	Reader enter(Object owner) {
+		return enter(Optional.of(owner));
+	}
+
+	private Reader enter(Optional<Object> owner) {
+		Reader reader = new Reader(epoch.get(), owner);
+		active.add(reader);
+		return reader;
+	}
+
+	/**
+	 * Unregisters a read. Does nothing if already unregistered.
+	 *
+	 * @param reader
+	 */
+	void exit(Reader reader) {
+		active.remove(reader);
+	}
+
+	/**
+	 * Advances the epoch once the root has been replaced and returns the new
+	 * epoch.
+	 *
+	 * @return
+	 */
+	long advance() {
+		return epoch.incrementAndGet();
+	}
+
+	/**
+	 * Returns true if a read that entered before the epoch reached
+	 * <code>epoch</code> is still in progress. Reads whose owner has been
+	 * garbage collected are unregistered.
+	 *
+	 * @param epoch
+	 * @return
+	 */
+	boolean isReadingBefore(long epoch) {
+		boolean reading = false;
+		Iterator<Reader> it = active.iterator();
+		while (it.hasNext()) {
+			Reader reader = it.next();
+			if (reader.isAbandoned())
+				it.remove();
+			else if (reader.epoch < epoch)
+				reading = true;
+		}
+		return reading;
+	}
+
+	/**
+	 * A read in progress.
+	 */
+	static final class Reader {
+
+		private final long epoch;
+
+		private final Optional<WeakReference<Object>> owner;
+
+		private Reader(long epoch, Optional<Object> owner) {
+			this.epoch = epoch;
+			if (owner.isPresent())
+				this.owner = Optional.of(new WeakReference<Object>(owner
+						.get()));
+			else
+				this.owner = Optional.absent();
+		}
+
+		private boolean isAbandoned() {
+			return owner.isPresent() && owner.get().get() == null;
+		}
+	}
+
+}
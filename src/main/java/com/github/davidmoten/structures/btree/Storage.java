@@ -1,69 +1,688 @@
 package com.github.davidmoten.structures.btree;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class Storage {
 
-	private static final long maxFileSize = 5000000L;
+	/**
+	 * The default size in bytes of a storage file.
+	 */
+	public static final long DEFAULT_SEGMENT_SIZE = 5000000L;
+
+	/**
+	 * Files are preallocated to this many bytes when created and rolled over
+	 * once the next batch would not fit.
+	 */
+	private final long segmentSize;
+
+	/**
+	 * A preallocated file renamed to be the next file on rollover. Prepared
+	 * in the background after each rollover so that writers do not wait for
+	 * a file to be created.
+	 */
+	private final File spare;
+
+	/**
+	 * Creates the spare file in the background.
+	 */
+	private final ExecutorService segmentCreator;
+
+	/**
+	 * Completes when the spare file has been created. Guarded by
+	 * writeMonitor.
+	 */
+	private Future<?> spareCreated;
 
 	private File file;
 	/**
 	 * The number of the file being written to currently.
 	 */
-	private long fileNumber;
+	private volatile long fileNumber;
+
+	/**
+	 * The position in the current file that the next batch is appended at.
+	 * Recovered at open from the last valid commit record of the file (or if
+	 * it has none by skipping over its records, as the file is preallocated so
+	 * its length does not say where the records end) and from then on only
+	 * tracked in memory. Guarded by writeMonitor.
+	 */
+	private long tail;
+
+	/**
+	 * The root recorded by the last valid commit record found when opened.
+	 */
+	private final Optional<Position> lastCommittedRoot;
+
+	/**
+	 * Synchronized on to reserve space for a batch at the tail and to list,
+	 * create and delete the files. Shared with any other Storage for the same
+	 * directory and name but not with Storages for other files so that
+	 * independent b-trees append in parallel.
+	 */
+	private final Object writeMonitor;
+
+	/**
+	 * The write monitors of open Storages keyed by the canonical path of
+	 * their files without the file number. A monitor is removed once no
+	 * Storage refers to it.
+	 */
+	private static final ConcurrentMap<String, Object> writeMonitors = new MapMaker()
+			.weakValues().makeMap();
+
+	/**
+	 * Every file with a number less than this has been completely written
+	 * (positions in it may be reserved but not yet written otherwise).
+	 */
+	private volatile long writtenFileNumber;
 
 	private final File directory;
 
 	private final String name;
 
-	private final static Object writeMonitor = new Object();
+	/**
+	 * If true then sealed files (those no longer being written to) are memory
+	 * mapped once and nodes are read directly from the mapped buffer.
+	 */
+	private final boolean memoryMapped;
+
+	/**
+	 * Memory mapped sealed files keyed by file number.
+	 */
+	private final ConcurrentMap<Long, MappedByteBuffer> mappedFiles = new ConcurrentHashMap<Long, MappedByteBuffer>();
+
+	/**
+	 * Open channels keyed by file number. The least recently used channel is
+	 * closed when the maximum number of open files is exceeded.
+	 */
+	private final LoadingCache<Long, FileChannel> channels;
+
+	/**
+	 * The number of bytes read speculatively when loading a node so that a
+	 * node is usually read with a single read.
+	 */
+	private static final int READ_AHEAD_BYTES = 4096;
+
+	/**
+	 * The number of bytes read at a time when skipping over the records of a
+	 * file to find where they end.
+	 */
+	private static final int SCAN_BYTES = 65536;
+
+	/**
+	 * Enough bytes of the start of a node record in either format to read its
+	 * length.
+	 */
+	private static final int RECORD_HEADER_BYTES = 16;
+
+	/**
+	 * When saved nodes are forced to disk.
+	 */
+	private final Durability durability;
+
+	/**
+	 * Synchronized on to coordinate group commits.
+	 */
+	private final Object commitMonitor = new Object();
+
+	/**
+	 * Batches submitted but not yet taken by a group commit. Guarded by
+	 * commitMonitor.
+	 */
+	private final List<Batch<?>> pending = new ArrayList<Batch<?>>();
+
+	/**
+	 * True while a group commit is writing. Guarded by commitMonitor.
+	 */
+	private boolean committing = false;
+
+	private static final int STATS_VERSION = 1;
+
+	/**
+	 * The live and total bytes of each file keyed by file number. Guarded by
+	 * statsMonitor.
+	 */
+	private final Map<Long, FileStats> fileStats = Maps.newHashMap();
+
+	/**
+	 * False if the live bytes of existing files are not known. Guarded by
+	 * statsMonitor.
+	 */
+	private boolean fileStatsKnown;
+
+	private final Object statsMonitor = new Object();
+
+	/**
+	 * Direct buffers that batches are encoded into. Batches up to 1MB are
+	 * pooled.
+	 */
+	private final BufferPool buffers;
+
+	/**
+	 * Node records read from disk held in direct memory if present.
+	 */
+	private final Optional<OffHeapCache> offHeapCache;
+
+	/**
+	 * The reads of node records in progress keyed by position so that
+	 * concurrent loads of the same record read it once.
+	 */
+	private final ConcurrentMap<Position, FutureTask<ByteBuffer>> readsInProgress = new ConcurrentHashMap<Position, FutureTask<ByteBuffer>>();
+
+	private final AtomicLong recordReads = new AtomicLong();
+
+	private final AtomicLong groupCommits = new AtomicLong();
+
+	private final AtomicLong forces = new AtomicLong();
 
 	public Storage(File directory, String name) {
-		this(directory, name, getLatestFileNumber(directory, name));
+		this(builder(directory, name));
 	}
 
-	private Storage(File directory, String name, long fileNumber) {
-		this.directory = directory;
-		this.name = name;
-		this.fileNumber = fileNumber;
+	private Storage(Builder builder) {
+		this.directory = builder.directory;
+		this.name = builder.name;
+		this.memoryMapped = builder.memoryMapped;
+		this.durability = builder.durability;
+		this.segmentSize = builder.segmentSize;
+		this.spare = new File(directory, name + ".spare");
+		this.buffers = new BufferPool(20, builder.freeBuffersPerCapacity);
+		this.writeMonitor = getWriteMonitor(directory, name);
+		this.fileNumber = getLatestFileNumber();
 		this.file = getFile(fileNumber);
-		// fileCache = CacheBuilder.newBuilder().maximumSize(5).build();
+		this.writtenFileNumber = fileNumber;
+		this.channels = createChannels(builder.maxOpenFiles);
+		if (builder.offHeapCacheBytes > 0)
+			this.offHeapCache = Optional.of(new OffHeapCache(
+					builder.offHeapCacheBytes));
+		else
+			this.offHeapCache = Optional.absent();
+		readFileStats();
+		this.segmentCreator = createSegmentCreator();
+		synchronized (writeMonitor) {
+			this.lastCommittedRoot = recover(builder.recoverFrom);
+			preallocate(file);
+			prepareSpare();
+		}
 	}
 
-	private static long getLatestFileNumber(File directory, final String name) {
-		synchronized (writeMonitor) {
-			File[] files = directory.listFiles(new FilenameFilter() {
-				@Override
-				public boolean accept(File dir, String nm) {
-					return nm.startsWith(name) && nm.matches("\\.\\d+$");
+	/**
+	 * Finds the end of the last batch completely written to the current file
+	 * (setting {@link #tail}), zeroes what a batch only partly written left
+	 * after it and returns the root recorded by the last valid commit record.
+	 * Only the records from <code>from</code> (the root recorded by the last
+	 * checkpoint) are read so opening does not read the whole storage. If
+	 * absent the files are read from the current file backwards until one
+	 * with a valid commit record with a root is found (the current file may
+	 * have been created by a rollover just before a crash and hold no
+	 * commits). Commit records are found by skipping from record to record
+	 * and are checked against their batch from the last backwards, stopping
+	 * at the first valid one.
+	 * 
+	 * @param from
+	 * @return
+	 */
+	private Optional<Position> recover(Optional<Position> from) {
+		List<Long> numbers = getFileNumbers(directory, name);
+		long first = numbers.isEmpty() ? fileNumber : numbers.get(0);
+		long firstStart = 0;
+		if (from.isPresent() && from.get().getFileNumber() <= fileNumber) {
+			File f = getFile(from.get().getFileNumber());
+			if (f.exists()
+					&& isRecord(from.get().getFileNumber(), from.get()
+							.getPosition(), f.length())) {
+				first = from.get().getFileNumber();
+				firstStart = from.get().getPosition();
+			}
+		}
+		Optional<Position> root = Optional.absent();
+		for (long number = fileNumber; number >= first && !root.isPresent(); number--) {
+			boolean current = number == fileNumber;
+			long start = number == first ? firstStart : 0;
+			List<Long> commits = Lists.newArrayList();
+			long end = scanRecords(number, start,
+					Optional.<List<Long>> absent(), Optional.of(commits));
+			// a file without commit records was written before they were
+			// introduced
+			boolean tailFound = !current || commits.isEmpty();
+			if (current)
+				tail = commits.isEmpty() ? end : start;
+			for (int i = commits.size() - 1; i >= 0
+					&& !(tailFound && root.isPresent()); i--) {
+				Optional<CommitRecord> commit = readCommit(number,
+						commits.get(i), !tailFound);
+				if (commit.isPresent()) {
+					if (!tailFound) {
+						tail = commit.get().getEnd().getPosition();
+						tailFound = true;
+					}
+					if (!root.isPresent())
+						root = commit.get().getRoot();
 				}
-			});
-			Long max = null;
+			}
+			if (current)
+				zeroTail(number, tail, end);
+		}
+		return root;
+	}
+
+	/**
+	 * Zeroes the bytes of the file from <code>from</code> left by a batch that
+	 * was only partly written, a chunk of {@link #SCAN_BYTES} at a time up to
+	 * <code>end</code> (the end of the records found) and then on until a
+	 * chunk that is all zeroes already.
+	 * 
+	 * @param number
+	 * @param from
+	 * @param end
+	 */
+	private void zeroTail(long number, long from, long end) {
+		long length = getFile(number).length();
+		ByteBuffer bb = ByteBuffer.allocate(SCAN_BYTES);
+		ByteBuffer zeroes = ByteBuffer.allocate(SCAN_BYTES);
+		for (long pos = from; pos < length; pos += SCAN_BYTES) {
+			int n = (int) Math.min(SCAN_BYTES, length - pos);
+			bb.clear();
+			bb.limit(n);
+			read(number, bb, pos);
+			bb.flip();
+			if (isZero(bb)) {
+				if (pos + n >= end)
+					return;
+			} else {
+				zeroes.clear();
+				zeroes.limit(n);
+				write(number, zeroes, pos);
+			}
+		}
+	}
+
+	/**
+	 * Returns true if all the remaining bytes of the buffer are zero.
+	 * 
+	 * @param bb
+	 * @return
+	 */
+	private static boolean isZero(ByteBuffer bb) {
+		for (int i = bb.position(); i < bb.limit(); i++)
+			if (bb.get(i) != 0)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Returns the root of the b-tree recorded by the last batch completely
+	 * written before the storage was opened (found by reading the records
+	 * written since the last checkpoint). Absent if no batch read recorded a
+	 * root.
+	 * 
+	 * Each commit record is checked against a checksum of its batch but
+	 * earlier batches written by the same group commit are not checked so
+	 * only {@link Durability#FSYNC} guarantees that the nodes of the root
+	 * were all written.
+	 * 
+	 * @return
+	 */
+	public Optional<Position> getLastCommittedRoot() {
+		return lastCommittedRoot;
+	}
+
+	/**
+	 * Opens a channel to an existing storage file. Files completely written
+	 * are opened read only, others for reading and writing. Files are never
+	 * created here (they are created by preallocation before being written)
+	 * so a read of a missing file fails naming the file rather than reading
+	 * an empty file.
+	 * 
+	 * @param number
+	 * @return
+	 * @throws IOException
+	 */
+	private FileChannel openChannel(long number) throws IOException {
+		File f = getFile(number);
+		if (!f.exists())
+			throw new FileNotFoundException("storage file " + f
+					+ " does not exist");
+		String mode = number < writtenFileNumber ? "r" : "rw";
+		return new RandomAccessFile(f, mode).getChannel();
+	}
+
+	/**
+	 * Returns a single thread executor whose thread stops when idle so that a
+	 * Storage that is never closed does not keep a thread.
+	 * 
+	 * @return
+	 */
+	private static ExecutorService createSegmentCreator() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 1,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactoryBuilder().setDaemon(true)
+						.setNameFormat("storage-segment-creator-%d").build());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	private LoadingCache<Long, FileChannel> createChannels(long maxOpenFiles) {
+		return CacheBuilder.newBuilder().maximumSize(maxOpenFiles)
+				.removalListener(new RemovalListener<Long, FileChannel>() {
+					@Override
+					public void onRemoval(
+							RemovalNotification<Long, FileChannel> notification) {
+						try {
+							if (durability != Durability.NONE)
+								notification.getValue().force(false);
+							notification.getValue().close();
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					}
+				}).build(new CacheLoader<Long, FileChannel>() {
+					@Override
+					public FileChannel load(Long number) throws IOException {
+						return openChannel(number);
+					}
+				});
+	}
+
+	/**
+	 * Creates a {@link Builder}.
+	 * 
+	 * @param directory
+	 * @param name
+	 * @return
+	 */
+	public static Builder builder(File directory, String name) {
+		return new Builder(directory, name);
+	}
+
+	/**
+	 * Creates a {@link Builder} for storage with the same settings as this
+	 * storage.
+	 * 
+	 * @param directory
+	 * @param name
+	 * @return
+	 */
+	Builder builderLike(File directory, String name) {
+		return builder(directory, name).memoryMapped(memoryMapped)
+				.durability(durability).segmentSize(segmentSize)
+				.offHeapCacheBytes(offHeapCache.isPresent() ? offHeapCache
+						.get().getMaxBytes() : 0);
+	}
+
+	/**
+	 * Builder for a {@link Storage}.
+	 * 
+	 * @author dxm
+	 * 
+	 */
+	public static class Builder {
+		private final File directory;
+		private final String name;
+		private boolean memoryMapped = false;
+		private long maxOpenFiles = 16;
+		private Durability durability = Durability.WRITE;
+		private long segmentSize = DEFAULT_SEGMENT_SIZE;
+		private long offHeapCacheBytes = 0;
+		private Optional<Position> recoverFrom = Optional.absent();
+		private int freeBuffersPerCapacity = 4;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param directory
+		 * @param name
+		 */
+		private Builder(File directory, String name) {
+			this.directory = directory;
+			this.name = name;
+		}
+
+		/**
+		 * Sets whether sealed files are memory mapped for reading.
+		 * 
+		 * @param memoryMapped
+		 * @return
+		 */
+		public Builder memoryMapped(boolean memoryMapped) {
+			this.memoryMapped = memoryMapped;
+			return this;
+		}
+
+		/**
+		 * Sets the maximum number of files kept open for reading and writing.
+		 * 
+		 * @param maxOpenFiles
+		 * @return
+		 */
+		public Builder maxOpenFiles(long maxOpenFiles) {
+			this.maxOpenFiles = maxOpenFiles;
+			return this;
+		}
+
+		/**
+		 * Sets when saved nodes are forced to disk.
+		 * 
+		 * @param durability
+		 * @return
+		 */
+		public Builder durability(Durability durability) {
+			this.durability = durability;
+			return this;
+		}
+
+		/**
+		 * Sets the size in bytes that each storage file is preallocated to.
+		 * A new file is started when the next batch of nodes would not fit
+		 * in the current file. Default is {@link #DEFAULT_SEGMENT_SIZE}.
+		 * 
+		 * @param segmentSize
+		 * @return
+		 */
+		public Builder segmentSize(long segmentSize) {
+			Preconditions.checkArgument(segmentSize > 0,
+					"segmentSize must be positive");
+			this.segmentSize = segmentSize;
+			return this;
+		}
+
+		/**
+		 * Sets the bytes of direct memory used to cache node records read
+		 * from disk so that nodes unloaded from the heap can be loaded again
+		 * without reading the disk. Memory is allocated in 1MB slabs as
+		 * needed. Records of memory mapped sealed files are not cached.
+		 * Default is 0 (no cache), otherwise must be at least 1MB.
+		 * 
+		 * @param offHeapCacheBytes
+		 * @return
+		 */
+		public Builder offHeapCacheBytes(long offHeapCacheBytes) {
+			Preconditions.checkArgument(offHeapCacheBytes == 0
+					|| offHeapCacheBytes >= OffHeapCache.SLAB_BYTES,
+					"offHeapCacheBytes must be 0 or at least "
+							+ OffHeapCache.SLAB_BYTES);
+			this.offHeapCacheBytes = offHeapCacheBytes;
+			return this;
+		}
+
+		/**
+		 * Sets the position of a record known to be completely written (the
+		 * root recorded by the last checkpoint) from which the records are
+		 * read when opened to find the last batch completely written. If
+		 * absent (the default) the records of the newest file are read.
+		 * 
+		 * @param position
+		 * @return
+		 */
+		Builder recoverFrom(Optional<Position> position) {
+			this.recoverFrom = position;
+			return this;
+		}
+
+		/**
+		 * Sets the maximum number of free buffers of each capacity kept for
+		 * encoding batches into. Default is 4. If 0 then a new buffer is
+		 * allocated for every batch.
+		 * 
+		 * @param freeBuffersPerCapacity
+		 * @return
+		 */
+		Builder freeBuffersPerCapacity(int freeBuffersPerCapacity) {
+			Preconditions.checkArgument(freeBuffersPerCapacity >= 0,
+					"freeBuffersPerCapacity cannot be negative");
+			this.freeBuffersPerCapacity = freeBuffersPerCapacity;
+			return this;
+		}
+
+		/**
+		 * Returns a new {@link Storage}.
+		 * 
+		 * @return
+		 */
+		public Storage build() {
+			return new Storage(this);
+		}
+	}
+
+	/**
+	 * Returns the write monitor shared by Storages for the given directory
+	 * and name.
+	 * 
+	 * @param directory
+	 * @param name
+	 * @return
+	 */
+	@VisibleForTesting
+	static Object getWriteMonitor(File directory, String name) {
+		String key;
+		try {
+			key = new File(directory, name).getCanonicalPath();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		Object monitor = new Object();
+		Object existing = writeMonitors.putIfAbsent(key, monitor);
+		if (existing != null)
+			return existing;
+		else
+			return monitor;
+	}
+
+	private long getLatestFileNumber() {
+		synchronized (writeMonitor) {
+			List<Long> numbers = getFileNumbers(directory, name);
+			if (numbers.isEmpty())
+				return 0L;
+			else
+				return numbers.get(numbers.size() - 1);
+		}
+	}
+
+	/**
+	 * Returns the numbers of the files of the storage in ascending order.
+	 * 
+	 * @param directory
+	 * @param name
+	 * @return
+	 */
+	private static List<Long> getFileNumbers(File directory, final String name) {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String nm) {
+				return nm.startsWith(name + ".")
+						&& nm.substring(name.length() + 1).matches("\\d+");
+			}
+		});
+		List<Long> numbers = Lists.newArrayList();
+		if (files != null)
 			for (File file : files) {
 				int i = file.getName().lastIndexOf(".");
-				String numberPart = file.getName().substring(i + 1);
-				long number = Long.parseLong(numberPart);
-				if (max == null || number > max)
-					max = number;
+				numbers.add(Long.parseLong(file.getName().substring(i + 1)));
 			}
-			if (max == null)
-				max = 0L;
-			return max;
+		Collections.sort(numbers);
+		return numbers;
+	}
+
+	/**
+	 * Returns the position the next save will be written at unless the
+	 * current file is full. Every node saved later has a greater position.
+	 * 
+	 * @return
+	 */
+	Position getEndPosition() {
+		synchronized (writeMonitor) {
+			return new Position(fileNumber, tail);
+		}
+	}
+
+	/**
+	 * Closes and deletes a sealed file. No node in the file may be loaded
+	 * after this call.
+	 * 
+	 * @param number
+	 */
+	void deleteFile(long number) {
+		Preconditions.checkArgument(number < fileNumber,
+				"cannot delete the file being written to");
+		channels.invalidate(number);
+		mappedFiles.remove(number);
+		if (offHeapCache.isPresent())
+			offHeapCache.get().invalidate(number);
+		File f = getFile(number);
+		if (f.exists() && !f.delete())
+			throw new RuntimeException("could not delete " + f);
+		synchronized (statsMonitor) {
+			fileStats.remove(number);
 		}
 	}
 
@@ -79,103 +698,969 @@ public class Storage {
 		return new File(directory, name + "." + fileNumber);
 	}
 
-	private Position nextPosition() {
+	/**
+	 * Reserves contiguous bytes at the tail for the records of the batch and
+	 * returns the position of the first byte. Rolls over to a new file if the
+	 * current file is not empty and the bytes would take it over the segment
+	 * size.
+	 * 
+	 * @param batch
+	 * @return
+	 */
+	private Position reserve(Batch<?> batch) {
 		synchronized (writeMonitor) {
-			try {
-				if (!file.exists())
-					file.createNewFile();
-				if (file.length() >= maxFileSize) {
-					fileNumber++;
-					file = getFile(fileNumber);
-					if (file.exists())
-						file.delete();
-					file.createNewFile();
+			long span = batch.layout();
+			if (tail > 0 && tail + span > segmentSize) {
+				fileNumber++;
+				file = getFile(fileNumber);
+				channels.invalidate(fileNumber);
+				if (file.exists())
+					file.delete();
+				synchronized (statsMonitor) {
+					fileStats.remove(fileNumber);
+				}
+				if (!spareCreated.isDone() || spare.length() != segmentSize
+						|| !spare.renameTo(file))
+					// the spare is not ready so create the file now
+					preallocate(file);
+				prepareSpare();
+				tail = 0;
+			}
+			Position position = new Position(fileNumber, tail);
+			tail += span;
+			return position;
+		}
+	}
+
+	/**
+	 * Saves the nodes in order and returns when they are as durable as
+	 * required by {@link Durability}.
+	 * 
+	 * @param saveQueue
+	 * @param serializer
+	 */
+	public <T extends Serializable & Comparable<T>> void save(
+			List<NodeRef<T>> saveQueue, KeySerializer<T> serializer) {
+		commit(submit(saveQueue, Collections.<NodeRef<T>> emptyList(),
+				Optional.<NodeRef<T>> absent(), serializer));
+	}
+
+	/**
+	 * A save queue waiting to be written by a group commit.
+	 * 
+	 * @param <T>
+	 */
+	static class Batch<T extends Serializable & Comparable<T>> {
+
+		private final List<NodeRef<T>> nodes;
+
+		/**
+		 * Saved (or earlier batch) nodes replaced by nodes of this batch.
+		 */
+		private final List<NodeRef<T>> obsolete;
+
+		private final KeySerializer<T> serializer;
+
+		/**
+		 * The length in bytes of the record of each node.
+		 */
+		private final int[] lengths;
+
+		/**
+		 * The sum of lengths.
+		 */
+		private final int length;
+
+		/**
+		 * The offset of the record of each node from the start of the batch.
+		 * Set when submitted.
+		 */
+		private final int[] offsets;
+
+		/**
+		 * The number of bytes from the start of the batch to the end of its
+		 * commit record. Set when submitted.
+		 */
+		private int span;
+
+		/**
+		 * The offset of the commit record from the start of the batch. Set
+		 * when submitted.
+		 */
+		private int commitOffset;
+
+		/**
+		 * The root of the b-tree once this batch is saved, recorded in the
+		 * commit record.
+		 */
+		private final Optional<NodeRef<T>> root;
+
+		/**
+		 * The key values of each node serialized when the batch is created if
+		 * the serializer needs to serialize a value to know its size (see
+		 * {@link Node#serializeValues(KeySerializer)}). Cleared once encoded.
+		 * Guarded by this once created.
+		 */
+		private final List<Optional<List<byte[]>>> values;
+
+		/**
+		 * The position reserved for the first node. Set when submitted.
+		 */
+		private Position start;
+
+		/**
+		 * The node records, in a buffer from the pool of the storage. Guarded
+		 * by this.
+		 */
+		private ByteBuffer bytes;
+
+		/**
+		 * True once written and the buffer returned to the pool. Guarded by
+		 * this.
+		 */
+		private boolean released = false;
+
+		/**
+		 * Guarded by commitMonitor.
+		 */
+		private boolean done = false;
+
+		/**
+		 * Guarded by commitMonitor.
+		 */
+		private Optional<RuntimeException> error = Optional.absent();
+
+		private Batch(List<NodeRef<T>> nodes, List<NodeRef<T>> obsolete,
+				Optional<NodeRef<T>> root, KeySerializer<T> serializer) {
+			this.nodes = nodes;
+			this.obsolete = obsolete;
+			this.root = root;
+			this.serializer = serializer;
+			// the record length does not depend on the positions of children
+			// so can be known before positions are reserved
+			this.lengths = new int[nodes.size()];
+			this.offsets = new int[nodes.size()];
+			this.values = Lists.newArrayListWithCapacity(nodes.size());
+			boolean java = KeySerializers.isJava(serializer);
+			int sum = 0;
+			for (int i = 0; i < lengths.length; i++) {
+				// only java serialization needs the bytes to know the size
+				values.add(java ? nodes.get(i).serializeValues(serializer)
+						: Optional.<List<byte[]>> absent());
+				lengths[i] = nodes.get(i).encodedLength(serializer,
+						values.get(i));
+				sum += lengths[i];
+			}
+			this.length = sum;
+		}
+
+		List<NodeRef<T>> getNodes() {
+			return nodes;
+		}
+
+		Optional<NodeRef<T>> getRoot() {
+			return root;
+		}
+
+		List<NodeRef<T>> getObsolete() {
+			return obsolete;
+		}
+
+		/**
+		 * Sets the offsets of the node records, one after the other, and of
+		 * the commit record after them (unless the batch is empty). Returns
+		 * the span of the batch.
+		 * 
+		 * @return
+		 */
+		private long layout() {
+			int pos = 0;
+			for (int i = 0; i < lengths.length; i++) {
+				offsets[i] = pos;
+				pos += lengths[i];
+			}
+			if (lengths.length > 0) {
+				commitOffset = pos;
+				pos += CommitRecord.LENGTH;
+			}
+			span = pos;
+			return span;
+		}
+
+		/**
+		 * Sets the position of each node from the position reserved for the
+		 * batch.
+		 * 
+		 * @param start
+		 */
+		private void setPositions(Position start) {
+			this.start = start;
+			for (int i = 0; i < lengths.length; i++) {
+				NodeRef<T> node = nodes.get(i);
+				node.setPosition(Optional.of(new Position(start
+						.getFileNumber(), start.getPosition() + offsets[i])));
+				node.setRecordLength(lengths[i]);
+			}
+		}
+
+		/**
+		 * Encodes the node records of this batch into a buffer from the pool
+		 * unless already done or the batch has been written. Called by the
+		 * submitting thread before it commits so that batches are serialized
+		 * in parallel, and by the thread writing a group if not yet done.
+		 * 
+		 * @param pool
+		 */
+		private synchronized void serialize(BufferPool pool) {
+			if (bytes == null && !released) {
+				ByteBuffer bb = pool.acquire(span);
+				for (int i = 0; i < lengths.length; i++)
+					nodes.get(i).encode(bb, lengths[i], serializer,
+							values.get(i));
+				// the serialized values are no longer needed
+				values.clear();
+				if (lengths.length > 0) {
+					Optional<Position> rootPosition = root.isPresent() ? root
+							.get().getPosition() : Optional.<Position> absent();
+					CommitRecord.write(bb, 0, rootPosition);
 				}
-				return new Position(fileNumber, file.length());
-			} catch (FileNotFoundException e) {
+				bb.flip();
+				bytes = bb;
+			}
+		}
+
+		/**
+		 * Returns the node records of this batch, serializing them if not
+		 * already done. Must not be called after
+		 * {@link #release(BufferPool)}.
+		 * 
+		 * @param pool
+		 * @return
+		 */
+		private synchronized ByteBuffer getBytes(BufferPool pool) {
+			serialize(pool);
+			return bytes.duplicate();
+		}
+
+		/**
+		 * Returns the buffer holding the node records to the pool. Called
+		 * once the batch has been written (or failed to be).
+		 * 
+		 * @param pool
+		 */
+		private synchronized void release(BufferPool pool) {
+			if (bytes != null)
+				pool.release(bytes);
+			bytes = null;
+			released = true;
+		}
+
+		/**
+		 * Records the nodes replaced by this batch as obsolete in the file
+		 * stats. Nodes of earlier batches have positions by the time this
+		 * batch is written so only nodes that were never saved (an empty
+		 * root) are skipped. The record length is kept by the ref so
+		 * obsolete nodes that have been unloaded are not loaded again.
+		 * 
+		 * @param storage
+		 */
+		private void markObsolete(Storage storage) {
+			for (NodeRef<T> node : obsolete)
+				if (node.getPosition().isPresent())
+					storage.markObsolete(node.getPosition().get(),
+							node.getRecordLength());
+		}
+	}
+
+	/**
+	 * Queues the nodes to be saved by the next group commit and reserves
+	 * their positions at the tail. Batches are written in the order they are
+	 * submitted so a node may refer to nodes in an earlier batch that are not
+	 * yet written.
+	 * 
+	 * @param saveQueue
+	 * @param obsolete
+	 *            nodes replaced by those in the save queue, recorded as no
+	 *            longer live when the batch is written
+	 * @param root
+	 *            the root of the b-tree once the nodes are saved, recorded in
+	 *            the commit record written after them so that it can be
+	 *            found by {@link #getLastCommittedRoot()} after a crash
+	 * @param serializer
+	 * @return
+	 */
+	<T extends Serializable & Comparable<T>> Batch<T> submit(
+			List<NodeRef<T>> saveQueue, List<NodeRef<T>> obsolete,
+			Optional<NodeRef<T>> root, KeySerializer<T> serializer) {
+		Batch<T> batch = new Batch<T>(Lists.newArrayList(saveQueue),
+				Lists.newArrayList(obsolete), root, serializer);
+		synchronized (commitMonitor) {
+			// reserve under commitMonitor so that pending is in position order
+			batch.setPositions(reserve(batch));
+			pending.add(batch);
+		}
+		return batch;
+	}
+
+	/**
+	 * Returns when the batch has been committed. If no group commit is in
+	 * progress then this thread writes every pending batch with a single
+	 * append (and a single force if required), otherwise it waits for the
+	 * current group commit to finish and tries again.
+	 * 
+	 * @param batch
+	 */
+	void commit(Batch<?> batch) {
+		batch.serialize(buffers);
+		List<Batch<?>> group;
+		synchronized (commitMonitor) {
+			while (!batch.done && committing) {
+				try {
+					commitMonitor.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				}
+			}
+			if (batch.done) {
+				if (batch.error.isPresent())
+					throw batch.error.get();
+				else
+					return;
+			}
+			committing = true;
+			group = Lists.newArrayList(pending);
+			pending.clear();
+		}
+		groupCommits.incrementAndGet();
+		Optional<RuntimeException> error = Optional.absent();
+		try {
+			write(group);
+		} catch (RuntimeException e) {
+			error = Optional.of(e);
+		} finally {
+			synchronized (commitMonitor) {
+				for (Batch<?> b : group) {
+					b.done = true;
+					b.error = error;
+				}
+				committing = false;
+				commitMonitor.notifyAll();
+			}
+		}
+		if (error.isPresent())
+			throw error.get();
+	}
+
+	/**
+	 * Writes the nodes of all batches in the group at their reserved
+	 * positions, with one gather write of the buffers of each run of batches
+	 * in the same file. The buffers are returned to the pool afterwards.
+	 * 
+	 * @param group
+	 */
+	private void write(List<Batch<?>> group) {
+		try {
+			writeRuns(group);
+		} finally {
+			for (Batch<?> batch : group)
+				batch.release(buffers);
+		}
+	}
+
+	private void writeRuns(List<Batch<?>> group) {
+		Set<Long> numbers = Sets.newTreeSet();
+		int i = 0;
+		while (i < group.size()) {
+			// batches are contiguous within a file
+			Position start = group.get(i).start;
+			int j = i;
+			int length = 0;
+			int span = 0;
+			while (j < group.size()
+					&& group.get(j).start.getFileNumber() == start
+							.getFileNumber()) {
+				length += group.get(j).length;
+				span += group.get(j).span;
+				j++;
+			}
+			ByteBuffer[] bbs = new ByteBuffer[j - i];
+			for (int k = i; k < j; k++)
+				bbs[k - i] = group.get(k).getBytes(buffers);
+			write(start.getFileNumber(), bbs, start.getPosition());
+			markSaved(start.getFileNumber(), length, span);
+			numbers.add(start.getFileNumber());
+			i = j;
+		}
+		for (Batch<?> batch : group)
+			batch.markObsolete(this);
+		if (!group.isEmpty())
+			writtenFileNumber = group.get(group.size() - 1).start
+					.getFileNumber();
+		if (durability == Durability.FSYNC)
+			for (long number : numbers)
+				force(number);
+	}
+
+	/**
+	 * Forces the given file to disk.
+	 * 
+	 * @param number
+	 */
+	private void force(long number) {
+		forces.incrementAndGet();
+		while (true) {
+			FileChannel channel = channels.getUnchecked(number);
+			try {
+				channel.force(false);
+				return;
+			} catch (ClosedByInterruptException e) {
 				throw new RuntimeException(e);
+			} catch (ClosedChannelException e) {
+				// channel was evicted from the pool by another thread (and
+				// forced before closing) but retry to be sure
 			} catch (IOException e) {
 				throw new RuntimeException(e);
 			}
 		}
 	}
 
-	public synchronized <T extends Serializable & Comparable<T>> void save(
-			List<NodeRef<T>> saveQueue) {
+	/**
+	 * Forces all open files to disk unless durability is
+	 * {@link Durability#NONE}. Files closed earlier were forced when closed.
+	 */
+	public void flush() {
+		if (durability != Durability.NONE)
+			for (Long number : channels.asMap().keySet())
+				force(number);
+		writeFileStats();
+	}
 
-		ByteArrayOutputStream allBytes = new ByteArrayOutputStream();
-		Position startPos = nextPosition();
-		long pos = startPos.getPosition();
-		for (NodeRef<T> node : saveQueue) {
-			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-			node.save(bytes);
-			node.setPosition(Optional.of(new Position(startPos.getFileNumber(),
-					pos)));
+	public Durability getDurability() {
+		return durability;
+	}
 
+	public <T extends Serializable & Comparable<T>> void load(
+			NodeRef<T> node, KeySerializer<T> serializer) {
+		Position position = node.getPosition().get();
+		if (memoryMapped && position.getFileNumber() < writtenFileNumber)
+			loadMapped(node, position, serializer);
+		else {
+			Optional<ByteBuffer> cached;
+			if (offHeapCache.isPresent())
+				cached = offHeapCache.get().get(position);
+			else
+				cached = Optional.absent();
+			if (cached.isPresent())
+				node.load(cached.get(), serializer);
+			else
+				node.load(readRecordOnce(position), serializer);
+		}
+	}
+
+	/**
+	 * Returns a buffer positioned at the start of the node record at the
+	 * given position (see {@link #readRecord(Position)}). If other threads
+	 * ask for the same record while it is being read they wait for the read
+	 * and share its bytes rather than reading it again.
+	 * 
+	 * @param position
+	 * @return
+	 */
+	private ByteBuffer readRecordOnce(final Position position) {
+		FutureTask<ByteBuffer> task = new FutureTask<ByteBuffer>(
+				new Callable<ByteBuffer>() {
+					@Override
+					public ByteBuffer call() {
+						recordReads.incrementAndGet();
+						ByteBuffer bb = readRecord(position);
+						if (offHeapCache.isPresent())
+							offHeapCache.get().put(position, bb);
+						return bb;
+					}
+				});
+		FutureTask<ByteBuffer> reading = readsInProgress.putIfAbsent(
+				position, task);
+		if (reading == null) {
+			reading = task;
 			try {
-				allBytes.write(bytes.toByteArray());
+				task.run();
+			} finally {
+				readsInProgress.remove(position, task);
+			}
+		}
+		try {
+			// each caller decodes from its own view of the bytes
+			return reading.get().duplicate();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			else
+				throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Returns the number of node records read from the files (not counting
+	 * loads from memory mapped files or the off heap cache).
+	 * 
+	 * @return
+	 */
+	@VisibleForTesting
+	long getRecordReads() {
+		return recordReads.get();
+	}
+
+	/**
+	 * Returns the number of group commits, each writing all the batches
+	 * pending when it started.
+	 * 
+	 * @return
+	 */
+	@VisibleForTesting
+	long getGroupCommits() {
+		return groupCommits.get();
+	}
+
+	/**
+	 * Returns the number of times a file has been forced to disk.
+	 * 
+	 * @return
+	 */
+	@VisibleForTesting
+	long getForces() {
+		return forces.get();
+	}
+
+	@VisibleForTesting
+	Optional<OffHeapCache> getOffHeapCache() {
+		return offHeapCache;
+	}
+
+	@VisibleForTesting
+	BufferPool getBufferPool() {
+		return buffers;
+	}
+
+	/**
+	 * Returns a buffer positioned at the start of the node record at the
+	 * given position. Reads {@link #READ_AHEAD_BYTES} first so that only
+	 * nodes larger than that need a second read.
+	 * 
+	 * @param position
+	 * @return
+	 */
+	private ByteBuffer readRecord(Position position) {
+		ByteBuffer bb = ByteBuffer.allocate(READ_AHEAD_BYTES);
+		read(position.getFileNumber(), bb, position.getPosition());
+		bb.flip();
+		int length = (int) Node.recordLength(bb);
+		if (length > bb.limit()) {
+			ByteBuffer all = ByteBuffer.allocate(length);
+			all.put(bb);
+			read(position.getFileNumber(), all, position.getPosition()
+					+ all.position());
+			all.flip();
+			return all;
+		} else {
+			bb.limit(length);
+			return bb;
+		}
+	}
+
+	/**
+	 * Reads from the file into the remaining space of the buffer starting at
+	 * the given position in the file using positional reads on a pooled
+	 * channel. Stops early if the end of the file is reached.
+	 * 
+	 * @param number
+	 * @param bb
+	 * @param position
+	 */
+	private void read(long number, ByteBuffer bb, long position) {
+		int start = bb.position();
+		while (true) {
+			FileChannel channel = channels.getUnchecked(number);
+			try {
+				while (bb.hasRemaining()) {
+					int count = channel.read(bb, position + bb.position()
+							- start);
+					if (count == -1)
+						return;
+				}
+				return;
+			} catch (ClosedByInterruptException e) {
+				throw new RuntimeException(e);
+			} catch (ClosedChannelException e) {
+				// channel was evicted from the pool by another thread so
+				// retry with a newly opened channel
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Writes the remaining bytes of the buffer to the file at the given
+	 * position using positional writes on a pooled channel.
+	 * 
+	 * @param number
+	 * @param bb
+	 * @param position
+	 */
+	private void write(long number, ByteBuffer bb, long position) {
+		int start = bb.position();
+		while (true) {
+			FileChannel channel = channels.getUnchecked(number);
+			try {
+				while (bb.hasRemaining())
+					channel.write(bb, position + bb.position() - start);
+				return;
+			} catch (ClosedByInterruptException e) {
+				throw new RuntimeException(e);
+			} catch (ClosedChannelException e) {
+				// channel was evicted from the pool by another thread so
+				// retry with a newly opened channel
 			} catch (IOException e) {
 				throw new RuntimeException(e);
 			}
+		}
+	}
 
-			pos += bytes.size();
+	/**
+	 * Writes the remaining bytes of the buffers in order to the file starting
+	 * at the given position with gather writes on a pooled channel. There is
+	 * no positional gather write so the position of the channel is set
+	 * first. Only the thread performing a group commit uses the position of
+	 * a channel (all other reads and writes are positional) so this is safe.
+	 * 
+	 * @param number
+	 * @param bbs
+	 * @param position
+	 */
+	private void write(long number, ByteBuffer[] bbs, long position) {
+		long total = remaining(bbs);
+		while (true) {
+			FileChannel channel = channels.getUnchecked(number);
+			try {
+				long remaining = remaining(bbs);
+				channel.position(position + total - remaining);
+				while (remaining > 0)
+					remaining -= channel.write(bbs);
+				return;
+			} catch (ClosedByInterruptException e) {
+				throw new RuntimeException(e);
+			} catch (ClosedChannelException e) {
+				// channel was evicted from the pool by another thread so
+				// retry with a newly opened channel
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
 		}
-		saveToFile(allBytes.toByteArray(), startPos);
+	}
+
+	private static long remaining(ByteBuffer[] bbs) {
+		long remaining = 0;
+		for (ByteBuffer bb : bbs)
+			remaining += bb.remaining();
+		return remaining;
+	}
 
+	/**
+	 * Closes all open files.
+	 */
+	public void close() {
+		segmentCreator.shutdown();
+		// evicted channels are forced before closing as required
+		channels.invalidateAll();
+		writeFileStats();
 	}
 
-	public <T extends Serializable & Comparable<T>> void load(NodeRef<T> node) {
+	/**
+	 * Extends the file to the segment size (creating it if it does not exist)
+	 * so that appends do not change the length of the file. Must be called
+	 * while holding writeMonitor if the file is a storage file.
+	 * 
+	 * @param f
+	 */
+	private void preallocate(File f) {
 		try {
-			FileInputStream fis = new FileInputStream(getFile(node
-					.getPosition().get().getFileNumber()));
-			fis.skip(node.getPosition().get().getPosition());
-			BufferedInputStream bis = new BufferedInputStream(fis, 1024);
-			System.out.println("loading node from " + node.getPosition().get());
-			node.load(bis);
-		} catch (FileNotFoundException e) {
-			throw new RuntimeException(e);
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			try {
+				if (raf.length() < segmentSize)
+					raf.setLength(segmentSize);
+			} finally {
+				raf.close();
+			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
 	/**
-	 * Saves byte array to the startpos given in the file.
-	 * 
-	 * @param bytes
-	 * @param pos
+	 * Creates the spare file in the background if it does not already exist
+	 * with the segment size. Must be called while holding writeMonitor.
 	 */
-	private void saveToFile(byte[] bytes, Position pos) {
+	private void prepareSpare() {
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				if (spare.length() != segmentSize) {
+					spare.delete();
+					preallocate(spare);
+				}
+			}
+		};
 		try {
-			RandomAccessFile f = new RandomAccessFile(
-					getFile(pos.getFileNumber()), "rw");
-			f.seek(pos.getPosition());
-			f.write(bytes);
-			f.close();
-		} catch (FileNotFoundException e) {
-			throw new RuntimeException(e);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+			spareCreated = segmentCreator.submit(task);
+		} catch (RejectedExecutionException e) {
+			// closed so the next file will be created when rolled over
+			spareCreated = Futures.immediateFuture(null);
+		}
+	}
+
+	/**
+	 * Returns the position in the file just after its last record, found by
+	 * reading the length of each record from the start of the file until
+	 * reaching bytes that do not start a record (the preallocated part of the
+	 * file is zeroes) or the end of the file.
+	 * 
+	 * @param number
+	 * @return
+	 */
+	long findEndOfRecords(long number) {
+		return scanRecords(number, 0, Optional.<List<Long>> absent(),
+				Optional.<List<Long>> absent());
+	}
+
+	/**
+	 * Returns the positions of the node records in the given file in
+	 * ascending order.
+	 * 
+	 * @param number
+	 * @return
+	 */
+	List<Long> findNodePositions(long number) {
+		List<Long> list = Lists.newArrayList();
+		scanRecords(number, 0, Optional.of(list),
+				Optional.<List<Long>> absent());
+		return list;
+	}
+
+	/**
+	 * Skips over the node and commit records of the file from position
+	 * <code>from</code> (the start of a record) as described in
+	 * {@link #findEndOfRecords(long)}, adding the position of each node record
+	 * to <code>nodePositions</code> and of each commit record to
+	 * <code>commitPositions</code> if present, and returns the position after
+	 * the last.
+	 * 
+	 * @param number
+	 * @param from
+	 * @param nodePositions
+	 * @param commitPositions
+	 * @return
+	 */
+	private long scanRecords(long number, long from,
+			Optional<List<Long>> nodePositions,
+			Optional<List<Long>> commitPositions) {
+		File f = getFile(number);
+		if (!f.exists())
+			return 0;
+		long length = f.length();
+		ByteBuffer bb = ByteBuffer.allocate(SCAN_BYTES);
+		bb.limit(0);
+		// the position in the file of the start of bb
+		long start = from;
+		long pos = from;
+		while (pos + RECORD_HEADER_BYTES <= length) {
+			if (pos + RECORD_HEADER_BYTES > start + bb.limit()) {
+				bb.clear();
+				read(number, bb, pos);
+				bb.flip();
+				start = pos;
+			}
+			bb.position((int) (pos - start));
+			if (!isRecord(bb))
+				return pos;
+			long recordLength;
+			if (CommitRecord.isCommitRecord(bb)) {
+				recordLength = CommitRecord.LENGTH;
+				if (commitPositions.isPresent())
+					commitPositions.get().add(pos);
+			} else {
+				recordLength = Node.recordLength(bb);
+				if (nodePositions.isPresent())
+					nodePositions.get().add(pos);
+			}
+			if (recordLength <= 0 || pos + recordLength > length)
+				return pos;
+			pos += recordLength;
 		}
+		return pos;
+	}
+
+	/**
+	 * Returns true if a node record starts at the given position of the file.
+	 * 
+	 * @param number
+	 * @param pos
+	 * @param length
+	 *            the length of the file
+	 * @return
+	 */
+	private boolean isRecord(long number, long pos, long length) {
+		if (pos + RECORD_HEADER_BYTES > length)
+			return false;
+		ByteBuffer bb = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+		read(number, bb, pos);
+		bb.flip();
+		return isRecord(bb);
+	}
+
+	/**
+	 * Returns true if a node record or commit record starts at the current
+	 * position of the buffer.
+	 * 
+	 * @param bb
+	 * @return
+	 */
+	private static boolean isRecord(ByteBuffer bb) {
+		return Node.isRecord(bb) || CommitRecord.isCommitRecord(bb);
+	}
+
+	/**
+	 * Returns the commit record at position <code>p</code> of the file if it
+	 * is one and its checksum matches its batch. Unless
+	 * <code>rootless</code> a commit record that does not record a root is not
+	 * checked (and absent is returned).
+	 * 
+	 * @param number
+	 * @param p
+	 * @param rootless
+	 * @return
+	 */
+	private Optional<CommitRecord> readCommit(long number, long p,
+			boolean rootless) {
+		ByteBuffer bb = ByteBuffer.allocate(CommitRecord.LENGTH);
+		read(number, bb, p);
+		bb.flip();
+		Optional<Integer> batchLength = CommitRecord.batchLength(bb);
+		if (!batchLength.isPresent() || batchLength.get() < 0
+				|| batchLength.get() > p
+				|| (!rootless && !CommitRecord.hasRoot(bb)))
+			return Optional.absent();
+		else
+			return readCommit(number, p, batchLength.get());
 	}
 
-	public void markObsoleteNodes() {
+	/**
+	 * Returns the commit record at position <code>p</code> of the file if its
+	 * checksum matches the <code>batchLength</code> bytes before it.
+	 * 
+	 * @param number
+	 * @param p
+	 * @param batchLength
+	 * @return
+	 */
+	private Optional<CommitRecord> readCommit(long number, long p,
+			int batchLength) {
+		ByteBuffer bb = ByteBuffer.allocate(batchLength + CommitRecord.LENGTH);
+		read(number, bb, p - batchLength);
+		if (bb.hasRemaining())
+			return Optional.absent();
+		bb.flip();
+		return CommitRecord.read(bb, new Position(number, p));
+	}
+
+	/**
+	 * Loads the node from the memory mapped sealed file without copying the
+	 * bytes of the file.
+	 * 
+	 * @param node
+	 * @param position
+	 * @param serializer
+	 */
+	private <T extends Serializable & Comparable<T>> void loadMapped(
+			NodeRef<T> node, Position position, KeySerializer<T> serializer) {
+		ByteBuffer bb = getMappedFile(position.getFileNumber()).duplicate();
+		bb.position((int) position.getPosition());
+		node.load(bb, serializer);
+	}
 
-		// for each file from oldest to newest
-		// find an obsolete root node and mark all its children as obsolete
+	/**
+	 * Returns the memory mapped buffer for the given sealed file, mapping it
+	 * if not already mapped. The mapping is shared by all loads from that
+	 * file.
+	 * 
+	 * @param number
+	 * @return
+	 */
+	private MappedByteBuffer getMappedFile(long number) {
+		MappedByteBuffer mapped = mappedFiles.get(number);
+		if (mapped != null)
+			return mapped;
 		try {
-			RandomAccessFile f = new RandomAccessFile(file, "rw");
-		} catch (FileNotFoundException e) {
+			RandomAccessFile f = new RandomAccessFile(getFile(number), "r");
+			try {
+				mapped = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+						f.length());
+			} finally {
+				// the mapping remains valid after the channel is closed
+				f.close();
+			}
+		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
+		MappedByteBuffer existing = mappedFiles.putIfAbsent(number, mapped);
+		if (existing != null)
+			return existing;
+		else
+			return mapped;
 	}
 
+	/**
+	 * Sets the can delete flag of the node record at the given position. The
+	 * pooled channel of a sealed file is read only so the flag is written
+	 * through a channel opened for writing just for this.
+	 * 
+	 * @param position
+	 */
 	public void markForDeletion(Position position) {
-		markForDeletion(getFile(position.getFileNumber()),
-				position.getPosition());
+		ByteBuffer header = ByteBuffer.allocate(Node.FLAGS_OFFSET + 1);
+		read(position.getFileNumber(), header, position.getPosition());
+		header.flip();
+		if (Node.isBinary(header)) {
+			byte flags = header.get(Node.FLAGS_OFFSET);
+			if ((flags & Node.FLAG_CAN_DELETE) == 0) {
+				try {
+					RandomAccessFile f = new RandomAccessFile(
+							getFile(position.getFileNumber()), "rw");
+					try {
+						f.seek(position.getPosition() + Node.FLAGS_OFFSET);
+						f.write(flags | Node.FLAG_CAN_DELETE);
+					} finally {
+						f.close();
+					}
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		} else
+			markLegacyForDeletion(getFile(position.getFileNumber()),
+					position.getPosition());
 	}
 
-	static void markForDeletion(File file, long pos) {
+	/**
+	 * Marks a node record in the legacy object stream format as deletable.
+	 * 
+	 * @param file
+	 * @param pos
+	 */
+	static void markLegacyForDeletion(File file, long pos) {
 		try {
 			FileInputStream fis = new FileInputStream(file);
 			fis.skip(pos);
@@ -192,7 +1677,7 @@ public class Storage {
 				// mark as deleteable
 				oos.writeBoolean(true);
 				oos.close();
-				RandomAccessFile f = new RandomAccessFile(file, "w");
+				RandomAccessFile f = new RandomAccessFile(file, "rw");
 				f.seek(pos);
 				f.write(bytes.toByteArray());
 				f.close();
@@ -206,8 +1691,186 @@ public class Storage {
 
 	}
 
-	void markObsolete(Position position) {
+	/**
+	 * Records that the node record of the given length at the given position
+	 * has been replaced and is no longer live.
+	 * 
+	 * @param position
+	 * @param length
+	 */
+	void markObsolete(Position position, int length) {
+		synchronized (statsMonitor) {
+			FileStats stats = fileStats.get(position.getFileNumber());
+			if (stats != null)
+				fileStats.put(position.getFileNumber(),
+						stats.add(-length, 0));
+		}
+	}
+
+	/**
+	 * Records that <code>length</code> bytes of live node records taking up
+	 * <code>span</code> bytes with their commit records were appended to the
+	 * file.
+	 * 
+	 * @param number
+	 * @param length
+	 * @param span
+	 */
+	private void markSaved(long number, long length, long span) {
+		synchronized (statsMonitor) {
+			FileStats stats = fileStats.get(number);
+			if (stats == null)
+				stats = new FileStats(number, 0, 0);
+			fileStats.put(number, stats.add(length, span));
+		}
+	}
+
+	/**
+	 * Returns true if the live bytes of every file are being tracked. False
+	 * if the storage was written by a version that did not persist them, until
+	 * {@link #resetFileStats(Map)} is called.
+	 * 
+	 * @return
+	 */
+	boolean hasFileStats() {
+		synchronized (statsMonitor) {
+			return fileStatsKnown;
+		}
+	}
+
+	/**
+	 * Replaces the tracked live bytes of every file with those given (keyed
+	 * by file number) and the total bytes with the length of each file.
+	 * 
+	 * @param liveBytes
+	 */
+	void resetFileStats(Map<Long, Long> liveBytes) {
+		synchronized (statsMonitor) {
+			fileStats.clear();
+			for (long number : getFileNumbers(directory, name)) {
+				Long live = liveBytes.get(number);
+				fileStats.put(number, new FileStats(number, live == null ? 0
+						: live, findEndOfRecords(number)));
+			}
+			fileStatsKnown = true;
+		}
+	}
+
+	/**
+	 * Returns the live and total bytes of each storage file in ascending order
+	 * of file number. Live bytes are those of node records reachable from the
+	 * root the last time the b-tree was changed.
+	 * 
+	 * @return
+	 */
+	public List<FileStats> getFileStats() {
+		List<FileStats> list = Lists.newArrayList();
+		synchronized (statsMonitor) {
+			for (long number : getFileNumbers(directory, name)) {
+				FileStats stats = fileStats.get(number);
+				if (stats == null)
+					stats = new FileStats(number, 0, findEndOfRecords(number));
+				list.add(stats);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the stats of the files with a number less than
+	 * <code>number</code>.
+	 * 
+	 * @param number
+	 * @return
+	 */
+	List<FileStats> getFileStatsBefore(long number) {
+		List<FileStats> list = Lists.newArrayList();
+		for (FileStats stats : getFileStats())
+			if (stats.getFileNumber() < number)
+				list.add(stats);
+		return list;
+	}
+
+	/**
+	 * Reads the live and total bytes of each file written by
+	 * {@link #writeFileStats()} if present.
+	 */
+	private void readFileStats() {
+		File f = getStatsFile();
+		synchronized (statsMonitor) {
+			if (!f.exists()) {
+				// storage written before stats were kept cannot be trusted
+				fileStatsKnown = getFileNumbers(directory, name).isEmpty();
+				return;
+			}
+			try {
+				DataInputStream dis = new DataInputStream(
+						new BufferedInputStream(new FileInputStream(f)));
+				try {
+					int version = dis.readInt();
+					Preconditions.checkArgument(version == STATS_VERSION,
+							"unsupported stats file version " + version);
+					int count = dis.readInt();
+					for (int i = 0; i < count; i++) {
+						long number = dis.readLong();
+						long live = dis.readLong();
+						long total = dis.readLong();
+						fileStats.put(number, new FileStats(number, live,
+								total));
+					}
+				} finally {
+					dis.close();
+				}
+				fileStatsKnown = true;
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Writes the live and total bytes of each file to the stats file
+	 * alongside the storage files, replacing the previous stats file
+	 * atomically.
+	 */
+	private void writeFileStats() {
+		List<FileStats> list;
+		synchronized (statsMonitor) {
+			if (!fileStatsKnown)
+				return;
+			list = Lists.newArrayList(fileStats.values());
+		}
+		File f = getStatsFile();
+		File temp = new File(directory, name + ".stats.tmp");
+		try {
+			FileOutputStream fos = new FileOutputStream(temp);
+			DataOutputStream dos = new DataOutputStream(
+					new BufferedOutputStream(fos));
+			dos.writeInt(STATS_VERSION);
+			dos.writeInt(list.size());
+			for (FileStats stats : list) {
+				dos.writeLong(stats.getFileNumber());
+				dos.writeLong(stats.getLiveBytes());
+				dos.writeLong(stats.getTotalBytes());
+			}
+			dos.flush();
+			if (durability != Durability.NONE)
+				fos.getFD().sync();
+			dos.close();
+			if (!temp.renameTo(f)) {
+				// renameTo does not replace an existing file on some platforms
+				f.delete();
+				if (!temp.renameTo(f))
+					throw new RuntimeException("could not rename " + temp
+							+ " to " + f);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
+	private File getStatsFile() {
+		return new File(directory, name + ".stats");
 	}
 
 	public static void main(String[] args) throws IOException {
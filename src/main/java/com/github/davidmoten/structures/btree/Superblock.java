@@ -0,0 +1,328 @@
+package com.github.davidmoten.structures.btree;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+import com.google.common.base.Optional;
+
+/**
+ * The metadata file of a {@link BTree}. It has two fixed size slots and each
+ * write of the metadata goes to the slot not holding the latest metadata
+ * with a single positional write, so that a write torn by a crash leaves the
+ * previous metadata intact. The slot with a valid checksum and the highest
+ * sequence number is read. The format of a slot is:
+ *
+ * <pre>
+ * int    magic
+ * int    version
+ * long   sequence number
+ * long   root file number
+ * long   root position
+ * int    degree
+ * short  length of storage directory
+ * byte[] storage directory (UTF-8)
+ * short  length of storage name
+ * byte[] storage name (UTF-8)
+ * short  length of key serializer id
+ * byte[] key serializer id (UTF-8)
+ * ...    zero padding
+ * int    CRC32 of the slot up to here
+ * </pre>
+ *
+ * Version 1 slots have no key serializer id. A metadata file written by an
+ * earlier version with an {@link java.io.ObjectOutputStream} is read if
+ * neither slot is valid.
+ *
+ * @author dxm
+ *
+ */
+final class Superblock {
+
+	/**
+	 * The size in bytes of each slot.
+	 */
+	static final int SLOT_SIZE = 4096;
+
+	private static final int MAGIC = 0x5B7EEB10;
+	private static final int VERSION = 2;
+	private static final int HEADER_BYTES = 36;
+	private static final short STREAM_MAGIC = (short) 0xACED;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+
+	private final RandomAccessFile raf;
+
+	private final FileChannel channel;
+
+	/**
+	 * The two slots mapped into memory if present.
+	 */
+	private final Optional<MappedByteBuffer> map;
+
+	/**
+	 * The sequence number of the latest metadata. Guarded by this.
+	 */
+	private long sequence;
+
+	/**
+	 * Constructor. Opens (creating if necessary) the file.
+	 *
+	 * @param file
+	 * @param memoryMapped
+	 *            if true then the slots are written through a memory mapping
+	 */
+	Superblock(File file, boolean memoryMapped) {
+		this.file = file;
+		try {
+			raf = new RandomAccessFile(file, "rw");
+			channel = raf.getChannel();
+			if (memoryMapped) {
+				if (raf.length() < 2 * SLOT_SIZE)
+					raf.setLength(2 * SLOT_SIZE);
+				map = Optional.of(channel.map(MapMode.READ_WRITE, 0,
+						2 * SLOT_SIZE));
+			} else
+				map = Optional.absent();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Metadata for the btree.
+	 *
+	 */
+	static class Metadata {
+
+		/**
+		 * The location of the root node in persistent storage.
+		 */
+		final Position rootPosition;
+		/**
+		 * The degree of the b-tree.
+		 */
+		final int degree;
+		/**
+		 * The directory of the storage files.
+		 */
+		final String storageDirectory;
+
+		final String storageName;
+
+		/**
+		 * The id of the serializer of key values (see
+		 * {@link KeySerializers#id(KeySerializer)}). Absent if written by an
+		 * earlier version.
+		 */
+		final Optional<String> keySerializer;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param rootPosition
+		 * @param degree
+		 * @param storageDirectory
+		 * @param storageName
+		 * @param keySerializer
+		 */
+		Metadata(Position rootPosition, int degree, String storageDirectory,
+				String storageName, Optional<String> keySerializer) {
+			this.rootPosition = rootPosition;
+			this.degree = degree;
+			this.storageDirectory = storageDirectory;
+			this.storageName = storageName;
+			this.keySerializer = keySerializer;
+		}
+	}
+
+	/**
+	 * Returns the latest metadata written or absent if none has been.
+	 *
+	 * @return
+	 */
+	synchronized Optional<Metadata> read() {
+		Optional<Metadata> latest = Optional.absent();
+		long latestSequence = -1;
+		for (int slot = 0; slot < 2; slot++) {
+			ByteBuffer bb = readSlot(slot);
+			if (isValid(bb) && bb.getLong(8) > latestSequence) {
+				latestSequence = bb.getLong(8);
+				latest = Optional.of(decode(bb));
+			}
+		}
+		if (latest.isPresent())
+			sequence = latestSequence;
+		else {
+			sequence = 0;
+			latest = readLegacy();
+		}
+		return latest;
+	}
+
+	/**
+	 * Writes the metadata to the slot not holding the latest metadata and
+	 * forces it to disk if <code>force</code> is true.
+	 *
+	 * @param metadata
+	 * @param force
+	 */
+	synchronized void write(Metadata metadata, boolean force) {
+		long next = sequence + 1;
+		ByteBuffer bb = encode(metadata, next);
+		int offset = slotOffset(next);
+		try {
+			if (map.isPresent()) {
+				ByteBuffer dup = map.get().duplicate();
+				dup.position(offset);
+				dup.put(bb);
+				if (force)
+					map.get().force();
+			} else {
+				while (bb.hasRemaining())
+					channel.write(bb, offset + bb.position());
+				if (force)
+					channel.force(false);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		sequence = next;
+	}
+
+	/**
+	 * Releases the file.
+	 */
+	synchronized void close() {
+		try {
+			raf.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static int slotOffset(long sequence) {
+		return (int) (sequence % 2) * SLOT_SIZE;
+	}
+
+	private ByteBuffer readSlot(int slot) {
+		ByteBuffer bb = ByteBuffer.allocate(SLOT_SIZE);
+		try {
+			while (bb.hasRemaining()) {
+				int n = channel.read(bb, slot * SLOT_SIZE + bb.position());
+				if (n < 0)
+					break;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		bb.flip();
+		return bb;
+	}
+
+	private static boolean isValid(ByteBuffer bb) {
+		return bb.limit() == SLOT_SIZE && bb.getInt(0) == MAGIC
+				&& (bb.getInt(4) == VERSION || bb.getInt(4) == 1)
+				&& bb.getInt(SLOT_SIZE - 4) == checksum(bb);
+	}
+
+	private static int checksum(ByteBuffer bb) {
+		CRC32 crc = new CRC32();
+		crc.update(bb.array(), bb.arrayOffset(), SLOT_SIZE - 4);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Returns a slot holding the metadata with the given sequence number.
+	 *
+	 * @param metadata
+	 * @param sequence
+	 * @return
+	 */
+	private static ByteBuffer encode(Metadata metadata, long sequence) {
+		byte[] directory = metadata.storageDirectory.getBytes(UTF8);
+		byte[] name = metadata.storageName.getBytes(UTF8);
+		byte[] keySerializer = metadata.keySerializer.or("").getBytes(UTF8);
+		if (HEADER_BYTES + 6 + directory.length + name.length
+				+ keySerializer.length > SLOT_SIZE - 4)
+			throw new IllegalArgumentException("storage directory, name and "
+					+ "key serializer id too long for metadata slot");
+		ByteBuffer bb = ByteBuffer.allocate(SLOT_SIZE);
+		bb.putInt(MAGIC);
+		bb.putInt(VERSION);
+		bb.putLong(sequence);
+		bb.putLong(metadata.rootPosition.getFileNumber());
+		bb.putLong(metadata.rootPosition.getPosition());
+		bb.putInt(metadata.degree);
+		bb.putShort((short) directory.length);
+		bb.put(directory);
+		bb.putShort((short) name.length);
+		bb.put(name);
+		bb.putShort((short) keySerializer.length);
+		bb.put(keySerializer);
+		bb.putInt(SLOT_SIZE - 4, checksum(bb));
+		bb.clear();
+		return bb;
+	}
+
+	private static Metadata decode(ByteBuffer bb) {
+		bb.position(16);
+		Position root = new Position(bb.getLong(), bb.getLong());
+		int degree = bb.getInt();
+		String directory = getString(bb);
+		String name = getString(bb);
+		Optional<String> keySerializer;
+		if (bb.getInt(4) == 1)
+			keySerializer = Optional.absent();
+		else
+			keySerializer = Optional.of(getString(bb));
+		return new Metadata(root, degree, directory, name, keySerializer);
+	}
+
+	private static String getString(ByteBuffer bb) {
+		byte[] bytes = new byte[bb.getShort() & 0xFFFF];
+		bb.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Reads the metadata written with an {@link java.io.ObjectOutputStream}
+	 * by an earlier version if the file starts with one.
+	 *
+	 * @return
+	 */
+	private Optional<Metadata> readLegacy() {
+		ByteBuffer bb = readSlot(0);
+		if (bb.limit() < 2 || bb.getShort(0) != STREAM_MAGIC)
+			return Optional.absent();
+		try {
+			ObjectInputStream ois = new ObjectInputStream(new FileInputStream(
+					file));
+			try {
+				String storageDirectory = (String) ois.readObject();
+				String storageName = (String) ois.readObject();
+				long rootFileNumber = ois.readLong();
+				long rootPosition = ois.readLong();
+				int degree = ois.readInt();
+				return Optional.of(new Metadata(new Position(rootFileNumber,
+						rootPosition), degree, storageDirectory, storageName,
+						Optional.<String> absent()));
+			} finally {
+				ois.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} catch (ClassNotFoundException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
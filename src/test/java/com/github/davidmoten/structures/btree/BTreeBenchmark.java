@@ -0,0 +1,222 @@
+package com.github.davidmoten.structures.btree;
+
+import static com.github.davidmoten.structures.btree.BTree.builder;
+import static java.lang.Runtime.getRuntime;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+/**
+ * Measurements of {@link BTree} performance that print their results. Not
+ * run by the unit test build (the class name does not match the surefire
+ * test patterns); run with
+ * 
+ * <pre>
+ * mvn test -Dtest=BTreeBenchmark
+ * </pre>
+ * 
+ * @author dxm
+ * 
+ */
+public class BTreeBenchmark {
+
+	/**
+	 * Measures the adds per second to several trees, each persisted to its
+	 * own storage, first from one thread and then from one thread per tree.
+	 * Because trees do not share a write lock the parallel run should scale
+	 * close to linearly with the number of trees on a machine with that many
+	 * cores. Set the system property trees to change the number of trees.
+	 * Fails if any add fails or a tree does not hold its values.
+	 */
+	@Test
+	public void benchmarkIndependentTreesWriteInParallel()
+			throws InterruptedException {
+		final int trees = Integer.getInteger("trees", 4);
+		final int valuesPerTree = 2000;
+		Integer[] values = new Integer[valuesPerTree];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+		long[] addsPerSecond = new long[2];
+		// the first two runs warm up the JIT
+		for (int run = 0; run < 4; run++) {
+			boolean parallel = run % 2 == 1;
+			final List<BTree<Integer>> list = Lists.newArrayList();
+			final List<File> files = Lists.newArrayList();
+			for (int i = 0; i < trees; i++) {
+				File f = new File("target/benchmarkParallel" + i + ".index");
+				BTreeTest.clear(f);
+				files.add(f);
+				list.add(builder(Integer.class).degree(20).metadata(f)
+						.durability(Durability.NONE).build());
+			}
+			final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+			long t = System.nanoTime();
+			if (parallel) {
+				List<Thread> threads = Lists.newArrayList();
+				for (final BTree<Integer> tree : list)
+					threads.add(new Thread(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								for (int j = 1; j <= valuesPerTree; j++)
+									tree.add(j);
+							} catch (Throwable e) {
+								errors.add(e);
+							}
+						}
+					}));
+				for (Thread thread : threads)
+					thread.start();
+				for (Thread thread : threads)
+					thread.join();
+			} else {
+				for (BTree<Integer> tree : list)
+					for (int j = 1; j <= valuesPerTree; j++)
+						tree.add(j);
+			}
+			long nanos = Math.max(1, System.nanoTime() - t);
+			addsPerSecond[parallel ? 1 : 0] = (long) (trees
+					* (double) valuesPerTree / nanos * 1e9);
+			assertTrue("errors: " + errors, errors.isEmpty());
+			for (int i = 0; i < trees; i++) {
+				list.get(i).close();
+				BTree<Integer> tree = builder(Integer.class).metadata(
+						files.get(i)).build();
+				assertEquals(Arrays.asList(values), Lists.newArrayList(tree));
+				tree.close();
+			}
+		}
+		System.out.println("trees=" + trees + ",cores="
+				+ getRuntime().availableProcessors() + ",sequential="
+				+ addsPerSecond[0] + " adds/s,parallel=" + addsPerSecond[1]
+				+ " adds/s,speedup="
+				+ String.format("%.2f", addsPerSecond[1]
+						/ (double) addsPerSecond[0]));
+	}
+
+	/**
+	 * Reports the bytes allocated per add with batches encoded into pooled
+	 * buffers and with a new buffer allocated for every batch: heap bytes
+	 * allocated by the adding thread (if the JVM can measure them) and bytes
+	 * of buffers allocated. Set the system property n to change the number
+	 * of adds measured.
+	 */
+	@Test
+	public void benchmarkBytesAllocatedPerAdd() {
+		int n = Integer.getInteger("n", 20000);
+		for (int free : new int[] { 4, 0 }) {
+			File f = new File("target/benchmark2.index");
+			BTreeTest.clear(f);
+			Storage storage = Storage
+					.builder(f.getParentFile(), f.getName() + ".storage")
+					.durability(Durability.NONE).freeBuffersPerCapacity(free)
+					.build();
+			BTree<Integer> t = builder(Integer.class).degree(20).metadata(f)
+					.storage(storage).build();
+			// warm up
+			for (int i = 1; i <= n; i++)
+				t.add(i);
+			BufferPool pool = storage.getBufferPool();
+			long bufferBytes = pool.allocatedBytes();
+			long heapBytes = allocatedBytes();
+			for (int i = n + 1; i <= 2 * n; i++)
+				t.add(i);
+			boolean measurable = heapBytes >= 0;
+			heapBytes = allocatedBytes() - heapBytes;
+			bufferBytes = pool.allocatedBytes() - bufferBytes;
+			System.out.println((free > 0 ? "pooled" : "unpooled")
+					+ ": heap bytes per add="
+					+ (measurable ? String.valueOf(heapBytes / n) : "unknown")
+					+ ", buffer bytes per add=" + bufferBytes / n);
+			t.close();
+			t = builder(Integer.class).metadata(f).build();
+			assertEquals(2 * n, Lists.newArrayList(t).size());
+			t.close();
+		}
+	}
+
+	/**
+	 * Returns the bytes allocated on the heap by this thread or a negative
+	 * number if the JVM cannot measure them.
+	 * 
+	 * @return
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) bean)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		else
+			return -1;
+	}
+
+	/**
+	 * Measures the finds per second of loaded nodes by increasing numbers of
+	 * threads (up to at least 32) so that readers can be seen to scale with
+	 * the number of cores. Set the system property n to change the number of
+	 * finds. Fails if any find does not return the value looked for.
+	 */
+	@Test
+	public void benchmarkConcurrentFinds() throws InterruptedException {
+		File f = new File("target/benchmark1.index");
+		BTreeTest.clear(f);
+		final int size = 10000;
+		final BTree<Integer> tree = builder(Integer.class).degree(100)
+				.metadata(f).build();
+		for (int i = 0; i < size; i++)
+			tree.add(i);
+		int n = Integer.getInteger("n", 100000);
+		int maxThreads = Math.max(32, getRuntime().availableProcessors());
+		final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+		final AtomicLong found = new AtomicLong();
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			final int findsPerThread = n / threads;
+			found.set(0);
+			List<Thread> list = Lists.newArrayList();
+			for (int i = 0; i < threads; i++) {
+				final Random random = new Random(i);
+				list.add(new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							for (int j = 0; j < findsPerThread; j++) {
+								int value = random.nextInt(size);
+								Optional<Integer> result = tree.find(value);
+								if (result.isPresent()
+										&& result.get() == value)
+									found.incrementAndGet();
+							}
+						} catch (Throwable e) {
+							errors.add(e);
+						}
+					}
+				}));
+			}
+			long t = System.nanoTime();
+			for (Thread thread : list)
+				thread.start();
+			for (Thread thread : list)
+				thread.join();
+			long nanos = System.nanoTime() - t;
+			System.out.println("threads=" + threads + ",findsPerSecond="
+					+ (findsPerThread * threads / (double) nanos * 1e9)
+					+ " finds/s");
+			assertTrue("errors: " + errors, errors.isEmpty());
+			assertEquals(findsPerThread * threads, found.get());
+		}
+		tree.close();
+	}
+}
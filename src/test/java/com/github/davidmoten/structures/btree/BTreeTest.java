@@ -5,18 +5,35 @@ import static java.lang.Runtime.getRuntime;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 public class BTreeTest {
 
@@ -594,6 +611,26 @@ public class BTreeTest {
 		}
 	}
 
+	/**
+	 * Given a btree with numbers from 1..N added in a shuffled order
+	 * 
+	 * Then the iterator returns 1,2,..,N
+	 */
+	@Test
+	public void testIteratorOnBTreeWithNValuesAddedInShuffledOrder() {
+		for (int degree = 3; degree <= 10; degree++) {
+			List<Integer> list = Lists.newArrayList();
+			for (int i = 1; i <= MANY_VALUES; i++)
+				list.add(i);
+			Collections.shuffle(list, new Random(degree));
+			BTree<Integer> t = builder(Integer.class).degree(degree).build();
+			for (Integer i : list)
+				t.add(i);
+			Collections.sort(list);
+			checkEquals(t, list.toArray(new Integer[0]));
+		}
+	}
+
 	@Test
 	public void testSaveOneItem() {
 		File f = new File("target/test1.index");
@@ -711,6 +748,42 @@ public class BTreeTest {
 		checkEquals(t2, values);
 	}
 
+	@Test
+	public void testSaveManyItemsMemoryMapped() {
+		File f = new File("target/test9.index");
+		clear(f);
+		// enough values to roll over to a second file so that the first is
+		// sealed and memory mapped
+		Integer[] values = new Integer[MANY_VALUES * 8];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+
+		builder(Integer.class).degree(100).metadata(f).memoryMapped(true)
+				.cacheSize(10).build().add(values).flush();
+		BTree<Integer> t2 = builder(Integer.class).degree(3).metadata(f)
+				.memoryMapped(true).build();
+		checkEquals(t2, values);
+	}
+
+	@Test
+	public void testSaveManyItemsWithOneOpenFile() {
+		File f = new File("target/test10.index");
+		clear(f);
+		Integer[] values = new Integer[MANY_VALUES * 2];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+		Storage storage = Storage.builder(f.getParentFile(),
+				f.getName() + ".storage").maxOpenFiles(1).build();
+		BTree<Integer> t = builder(Integer.class).degree(100).metadata(f)
+				.storage(storage).cacheSize(10).build().add(values);
+		checkEquals(t, values);
+		t.close();
+		BTree<Integer> t2 = builder(Integer.class).degree(3).metadata(f)
+				.build();
+		checkEquals(t2, values);
+		t2.close();
+	}
+
 	@Test
 	public void testSaveManyItemsWithoutCache() {
 
@@ -736,9 +809,408 @@ public class BTreeTest {
 				+ ",maxMemory=" + getRuntime().maxMemory());
 	}
 
-	private static void clear(File f) {
+	/**
+	 * Given a persisted BTree whose storage has rolled over to a new file
+	 * 
+	 * When the BTree is compacted twice
+	 * 
+	 * Then the mostly obsolete first file is deleted and all values can still
+	 * be read after reopening
+	 */
+	@Test
+	public void testCompactionDeletesMostlyObsoleteFiles() {
+		File f = new File("target/test11.index");
+		clear(f);
+		Integer[] values = new Integer[MANY_VALUES * 8];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+		BTree<Integer> t = builder(Integer.class).degree(100).metadata(f)
+				.build().add(values);
+		File first = new File("target/test11.index.storage.0");
+		assertTrue(new File("target/test11.index.storage.1").exists());
+		assertTrue(t.compact() >= 1);
+		checkEquals(t, values);
+		// compacted files are deleted by the next compaction
+		assertTrue(first.exists());
+		t.compact();
+		assertFalse(first.exists());
+		checkEquals(t, values);
+		t.close();
+		BTree<Integer> t2 = builder(Integer.class).metadata(f).build();
+		checkEquals(t2, values);
+		t2.close();
+	}
+
+	/**
+	 * Given a persisted BTree compacted periodically by a policy that always
+	 * fails
+	 * 
+	 * When it is flushed after a compaction has run and then closed
+	 * 
+	 * Then the failure is counted and rethrown by the flush, and the values
+	 * can be read after reopening
+	 */
+	@Test
+	public void testPeriodicCompactionFailureIsRethrownByFlush()
+			throws InterruptedException {
+		File f = new File("target/test37.index");
+		clear(f);
+		final RuntimeException error = new RuntimeException("boom");
+		BTree<Integer> t = builder(Integer.class).degree(10).metadata(f)
+				.compactionPolicy(new CompactionPolicy() {
+					@Override
+					public Set<Long> choose(List<FileStats> sealedFiles) {
+						throw error;
+					}
+				}).compactionInterval(1, TimeUnit.MILLISECONDS).build()
+				.add(1, 2, 3);
+		long start = System.currentTimeMillis();
+		while (t.getCompactionFailures() == 0
+				&& System.currentTimeMillis() - start < 10000)
+			Thread.sleep(1);
+		assertTrue(t.getCompactionFailures() > 0);
+		try {
+			t.flush();
+			fail();
+		} catch (RuntimeException e) {
+			assertTrue(e == error);
+		}
+		// compactions may fail again before the close stops them
+		try {
+			t.close();
+		} catch (RuntimeException e) {
+			assertTrue(e == error);
+		}
+		BTree<Integer> t2 = builder(Integer.class).metadata(f).build();
+		checkEquals(t2, 1, 2, 3);
+		t2.close();
+	}
+
+	/**
+	 * Given a reopened persisted BTree over several storage files with an
+	 * iterator that has returned its first value
+	 * 
+	 * When the BTree is compacted twice
+	 * 
+	 * Then the compacted files are kept until the iterator has returned all
+	 * the values and are deleted by the next compaction after that
+	 */
+	@Test
+	public void testCompactionKeepsFilesReachedByIterator() {
+		File f = new File("target/test43.index");
+		clear(f);
+		Integer[] values = new Integer[MANY_VALUES * 4];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+		builder(Integer.class).degree(10).metadata(f).segmentSize(20000)
+				.build().add(values).close();
+		BTree<Integer> t = builder(Integer.class).metadata(f)
+				.segmentSize(20000).compactionPolicy(ALL_SEALED_FILES).build();
+		File first = new File("target/test43.index.storage.0");
+		Iterator<Integer> it = t.iterator();
+		assertEquals(1, (int) it.next());
+		assertTrue(t.compact() > 0);
+		t.compact();
+		assertTrue(first.exists());
+		int count = 1;
+		while (it.hasNext()) {
+			count++;
+			assertEquals(count, (int) it.next());
+		}
+		assertEquals(values.length, count);
+		t.compact();
+		assertFalse(first.exists());
+		checkEquals(t, values);
+		t.close();
+	}
+
+	/**
+	 * Given a reopened persisted BTree over several storage files with a
+	 * small node cache
+	 * 
+	 * When it is scanned from several threads while it is compacted
+	 * repeatedly
+	 * 
+	 * Then every scan returns all the values and no scan fails
+	 */
+	@Test
+	public void testScansDuringCompaction() throws InterruptedException {
+		File f = new File("target/test44.index");
+		clear(f);
+		final int n = MANY_VALUES * 4;
+		Integer[] values = new Integer[n];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+		builder(Integer.class).degree(10).metadata(f).segmentSize(20000)
+				.build().add(values).close();
+		final BTree<Integer> t = builder(Integer.class).metadata(f)
+				.segmentSize(20000).cacheSize(50)
+				.compactionPolicy(ALL_SEALED_FILES).build();
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicInteger scans = new AtomicInteger();
+		final List<Throwable> errors = Collections
+				.synchronizedList(Lists.<Throwable> newArrayList());
+		List<Thread> threads = Lists.newArrayList();
+		for (int i = 0; i < 3; i++)
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (!stop.get()) {
+							int count = 0;
+							for (Integer value : t) {
+								count++;
+								assertEquals(count, (int) value);
+							}
+							assertEquals(n, count);
+							scans.incrementAndGet();
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			}));
+		for (Thread thread : threads)
+			thread.start();
+		int compacted = 0;
+		for (int i = 0; i < 20; i++)
+			compacted += t.compact();
+		stop.set(true);
+		for (Thread thread : threads)
+			thread.join();
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertTrue(compacted > 0);
+		assertTrue(scans.get() > 0);
+		t.close();
+		BTree<Integer> t2 = builder(Integer.class).metadata(f).build();
+		checkEquals(t2, values);
+		t2.close();
+	}
+
+	/**
+	 * Chooses every sealed file for compaction.
+	 */
+	private static final CompactionPolicy ALL_SEALED_FILES = new CompactionPolicy() {
+		@Override
+		public Set<Long> choose(List<FileStats> sealedFiles) {
+			Set<Long> numbers = Sets.newHashSet();
+			for (FileStats stats : sealedFiles)
+				numbers.add(stats.getFileNumber());
+			return numbers;
+		}
+	};
+
+	/**
+	 * Given a persisted BTree saved with the integer key serializer
+	 * 
+	 * When it is reopened with the Java serialization key serializer
+	 * 
+	 * Then an exception naming both serializers is thrown and it can still
+	 * be reopened with the integer serializer
+	 */
+	@Test
+	public void testReopenWithDifferentKeySerializerThrowsException() {
+		File f = new File("target/test38.index");
+		clear(f);
+		builder(Integer.class).degree(3).metadata(f).build().add(1, 2, 3)
+				.close();
+		try {
+			builder(Integer.class).metadata(f)
+					.keySerializer(KeySerializers.<Integer> java()).build();
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("integers"));
+			assertTrue(e.getMessage().contains("java"));
+		}
+		BTree<Integer> t = builder(Integer.class).metadata(f).build();
+		checkEquals(t, 1, 2, 3);
+		t.close();
+	}
+
+	/**
+	 * Given a persisted BTree whose storage has rolled over to a new file
+	 * 
+	 * When a node record in the sealed first file is marked for deletion
+	 * 
+	 * Then the can delete flag of the record is set
+	 */
+	@Test
+	public void testMarkForDeletionInSealedFile() throws IOException {
+		File f = new File("target/test41.index");
+		clear(f);
+		Storage storage = Storage
+				.builder(f.getParentFile(), f.getName() + ".storage")
+				.segmentSize(20000).build();
+		BTree<Integer> t = builder(Integer.class).degree(10).metadata(f)
+				.storage(storage).build();
+		for (int i = 1; i <= MANY_VALUES; i++)
+			t.add(i);
+		assertTrue(new File("target/test41.index.storage.1").exists());
+		long pos = storage.findNodePositions(0).get(0);
+		storage.markForDeletion(new Position(0, pos));
+		t.close();
+		RandomAccessFile raf = new RandomAccessFile(
+				"target/test41.index.storage.0", "r");
+		raf.seek(pos + Node.FLAGS_OFFSET);
+		int flags = raf.read();
+		raf.close();
+		assertTrue((flags & Node.FLAG_CAN_DELETE) != 0);
+	}
+
+	/**
+	 * Given a persisted BTree with values added in shuffled order
+	 * 
+	 * When the file stats of its storage are read before and after reopening
+	 * 
+	 * Then the live bytes of each file match those of the nodes reachable
+	 * from the root and the total bytes match the bytes of records in the
+	 * file
+	 */
+	@Test
+	public void testFileStatsTrackLiveBytes() {
+		File f = new File("target/test12.index");
+		clear(f);
+		List<Integer> list = Lists.newArrayList();
+		for (int i = 1; i <= MANY_VALUES * 2; i++)
+			list.add(i);
+		Collections.shuffle(list, new Random(12));
+		Storage storage = Storage.builder(f.getParentFile(),
+				f.getName() + ".storage").build();
+		BTree<Integer> t = builder(Integer.class).degree(10).metadata(f)
+				.storage(storage).build();
+		for (Integer value : list)
+			t.add(value);
+		Map<Long, Long> liveBytes = t.liveBytes();
+		List<FileStats> stats = storage.getFileStats();
+		assertFalse(stats.isEmpty());
+		for (FileStats s : stats) {
+			Long live = liveBytes.get(s.getFileNumber());
+			assertEquals(live == null ? 0 : (long) live, s.getLiveBytes());
+			assertEquals(storage.findEndOfRecords(s.getFileNumber()),
+					s.getTotalBytes());
+			assertTrue(s.getLiveBytes() < s.getTotalBytes());
+		}
+		t.close();
+		List<FileStats> reopened = Storage.builder(f.getParentFile(),
+				f.getName() + ".storage").build().getFileStats();
+		assertEquals(stats.toString(), reopened.toString());
+	}
+
+	/**
+	 * Given a persisted BTree that has been closed
+	 * 
+	 * When it is reopened, more values added and reopened again
+	 * 
+	 * Then the new nodes are appended after the existing ones (the tail is
+	 * recovered at open) and all values can be read
+	 */
+	@Test
+	public void testReopenAppendsAtTail() {
+		File f = new File("target/test13.index");
+		clear(f);
+		Integer[] values = new Integer[MANY_VALUES];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+		Integer[] first = new Integer[MANY_VALUES / 2];
+		System.arraycopy(values, 0, first, 0, first.length);
+		Integer[] second = new Integer[MANY_VALUES - first.length];
+		System.arraycopy(values, first.length, second, 0, second.length);
+		BTree<Integer> t = builder(Integer.class).degree(10).metadata(f)
+				.build().add(first);
+		t.close();
+		long length = storage(f).findEndOfRecords(0);
+		t = builder(Integer.class).metadata(f).build().add(second);
+		t.close();
+		assertTrue(storage(f).findEndOfRecords(0) > length);
+		t = builder(Integer.class).metadata(f).build();
+		checkEquals(t, values);
+		t.close();
+	}
+
+	/**
+	 * Deletes the metadata file and every file of its storage (all segments
+	 * however many a previous run created, the stats and the spare).
+	 * 
+	 * @param f
+	 */
+	static void clear(File f) {
 		f.delete();
-		new File(f.getAbsolutePath() + ".storage").delete();
+		File[] files = f.getAbsoluteFile().getParentFile().listFiles();
+		if (files != null)
+			for (File file : files)
+				if (file.getName().startsWith(f.getName() + ".storage"))
+					file.delete();
+	}
+
+	private static Storage storage(File f) {
+		return Storage.builder(f.getParentFile(), f.getName() + ".storage")
+				.build();
+	}
+
+	/**
+	 * Given a persisted BTree with a small segment size
+	 * 
+	 * When enough values are added to fill several segments and the tree is
+	 * reopened
+	 * 
+	 * Then every segment has the segment size, a spare segment is ready for
+	 * the next rollover and all values can be read
+	 */
+	@Test
+	public void testSegmentsArePreallocated() {
+		File f = new File("target/test14.index");
+		clear(f);
+		long segmentSize = 20000;
+		Integer[] values = new Integer[MANY_VALUES];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+		BTree<Integer> t = builder(Integer.class).degree(10).metadata(f)
+				.segmentSize(segmentSize).build().add(values);
+		t.close();
+		File storageFile = new File("target/test14.index.storage.3");
+		assertTrue(storageFile.exists());
+		for (int i = 0; i <= 3; i++)
+			assertEquals(segmentSize, new File("target/test14.index.storage."
+					+ i).length());
+		assertEquals(segmentSize,
+				new File("target/test14.index.storage.spare").length());
+		t = builder(Integer.class).metadata(f).segmentSize(segmentSize)
+				.build();
+		checkEquals(t, values);
+		t.close();
+	}
+
+	/**
+	 * Given a persisted BTree spread over several segments
+	 * 
+	 * When the first segment is deleted and the BTree is opened
+	 * 
+	 * Then reading the nodes in the first segment fails naming the missing
+	 * file and the file is not created
+	 */
+	@Test
+	public void testReadFromMissingSegmentThrowsException() {
+		File f = new File("target/test34.index");
+		clear(f);
+		long segmentSize = 20000;
+		Integer[] values = new Integer[MANY_VALUES];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+		BTree<Integer> t = builder(Integer.class).degree(10).metadata(f)
+				.segmentSize(segmentSize).build().add(values);
+		t.close();
+		File first = new File("target/test34.index.storage.0");
+		assertTrue(first.delete());
+		try {
+			// the leftmost path is loaded on open
+			builder(Integer.class).metadata(f).segmentSize(segmentSize)
+					.build();
+			fail();
+		} catch (RuntimeException e) {
+			assertTrue(Throwables.getStackTraceAsString(e).contains(
+					first.getName() + " does not exist"));
+		}
+		assertFalse(first.exists());
 	}
 
 	@Test
@@ -793,6 +1265,970 @@ public class BTreeTest {
 
 	}
 
+	/**
+	 * Given an empty BTree with FSYNC durability
+	 * 
+	 * When several threads add distinct values concurrently
+	 * 
+	 * Then fewer group commits (and forces) than adds are made and the
+	 * reopened BTree contains all the values in order
+	 */
+	@Test
+	public void testConcurrentAddsWithFsyncAreGroupCommitted()
+			throws InterruptedException {
+		File f = createFile("target/testGroupCommit.index");
+		Storage storage = Storage
+				.builder(f.getParentFile(), f.getName() + ".storage")
+				.durability(Durability.FSYNC).build();
+		final BTree<Integer> tree = builder(Integer.class).degree(10)
+				.metadata(f).storage(storage).build();
+		final int threads = 4;
+		final int valuesPerThread = 250;
+		List<Thread> list = Lists.newArrayList();
+		for (int i = 0; i < threads; i++) {
+			final int offset = i;
+			list.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < valuesPerThread; j++)
+						tree.add(j * threads + offset + 1);
+				}
+			}));
+		}
+		for (Thread t : list)
+			t.start();
+		for (Thread t : list)
+			t.join();
+		int adds = threads * valuesPerThread;
+		System.out.println("group commits = " + storage.getGroupCommits()
+				+ ", forces = " + storage.getForces() + " for " + adds
+				+ " adds");
+		assertTrue(storage.getGroupCommits() < adds);
+		assertTrue(storage.getForces() < adds);
+		tree.close();
+		Integer[] values = new Integer[threads * valuesPerThread];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+		BTree<Integer> t2 = builder(Integer.class).metadata(f).build();
+		checkEquals(t2, values);
+	}
+
+	/**
+	 * Given several trees each persisted to its own storage
+	 *
+	 * When values are added to all of them first from one thread and then
+	 * from one thread per tree
+	 *
+	 * Then every tree holds its values
+	 */
+	@Test
+	public void testIndependentTreesWriteInParallel()
+			throws InterruptedException {
+		final int trees = 4;
+		final int valuesPerTree = 2000;
+		for (boolean parallel : new boolean[] { false, true }) {
+			final List<BTree<Integer>> list = Lists.newArrayList();
+			final List<File> files = Lists.newArrayList();
+			for (int i = 0; i < trees; i++) {
+				File f = createFile("target/testParallel" + i + ".index");
+				files.add(f);
+				list.add(builder(Integer.class).degree(20).metadata(f)
+						.durability(Durability.NONE).build());
+			}
+			if (parallel) {
+				List<Thread> threads = Lists.newArrayList();
+				for (final BTree<Integer> tree : list)
+					threads.add(new Thread(new Runnable() {
+						@Override
+						public void run() {
+							for (int j = 1; j <= valuesPerTree; j++)
+								tree.add(j);
+						}
+					}));
+				for (Thread thread : threads)
+					thread.start();
+				for (Thread thread : threads)
+					thread.join();
+			} else {
+				for (BTree<Integer> tree : list)
+					for (int j = 1; j <= valuesPerTree; j++)
+						tree.add(j);
+			}
+			Integer[] values = new Integer[valuesPerTree];
+			for (int i = 0; i < values.length; i++)
+				values[i] = i + 1;
+			for (int i = 0; i < trees; i++) {
+				list.get(i).close();
+				checkEquals(builder(Integer.class).metadata(files.get(i))
+						.build(), values);
+			}
+		}
+	}
+
+	/**
+	 * Given two trees each persisted to its own storage
+	 * 
+	 * When the write lock of the storage of the first is held
+	 * 
+	 * Then values can still be added to the second from another thread, and
+	 * a lock is shared only by storages of the same files
+	 */
+	@Test
+	public void testIndependentTreesDoNotShareWriteLock()
+			throws InterruptedException {
+		File f1 = createFile("target/test39.index");
+		File f2 = createFile("target/test40.index");
+		BTree<Integer> t1 = builder(Integer.class).degree(10).metadata(f1)
+				.build();
+		final BTree<Integer> t2 = builder(Integer.class).degree(10)
+				.metadata(f2).build();
+		Object monitor = Storage.getWriteMonitor(f1.getParentFile(),
+				f1.getName() + ".storage");
+		assertTrue(monitor == Storage.getWriteMonitor(new File(f1
+				.getParentFile().getAbsolutePath()), f1.getName()
+				+ ".storage"));
+		assertTrue(monitor != Storage.getWriteMonitor(f2.getParentFile(),
+				f2.getName() + ".storage"));
+		final CountDownLatch added = new CountDownLatch(1);
+		synchronized (monitor) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					t2.add(1, 2, 3);
+					added.countDown();
+				}
+			}).start();
+			assertTrue(added.await(10, TimeUnit.SECONDS));
+		}
+		t1.add(4);
+		t1.close();
+		t2.close();
+		checkEquals(builder(Integer.class).metadata(f2).build(), 1, 2, 3);
+	}
+
+	/**
+	 * Given a persisted BTree with write-behind and a small write-behind
+	 * queue
+	 * 
+	 * When values are added from several threads and the tree is closed and
+	 * reopened
+	 * 
+	 * Then all values can be read
+	 */
+	@Test
+	public void testWriteBehind() throws InterruptedException {
+		File f = new File("target/test15.index");
+		clear(f);
+		final BTree<Integer> tree = builder(Integer.class).degree(10)
+				.metadata(f).writeBehind(2).build();
+		final int threads = 4;
+		final int valuesPerThread = MANY_VALUES / threads;
+		List<Thread> list = Lists.newArrayList();
+		for (int i = 0; i < threads; i++) {
+			final int offset = i;
+			list.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < valuesPerThread; j++)
+						tree.add(j * threads + offset + 1);
+				}
+			}));
+		}
+		for (Thread t : list)
+			t.start();
+		for (Thread t : list)
+			t.join();
+		tree.close();
+		Integer[] values = new Integer[threads * valuesPerThread];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+		BTree<Integer> t2 = builder(Integer.class).metadata(f).build();
+		checkEquals(t2, values);
+		t2.close();
+	}
+
+	/**
+	 * Given a persisted BTree that has had many values added
+	 * 
+	 * When as many values again are added
+	 * 
+	 * Then the batches are encoded into buffers reused from the pool rather
+	 * than newly allocated, the bytes allocated on the heap per add are
+	 * printed (if the JVM can measure them) and all values can be read
+	 */
+	@Test
+	public void testBytesAllocatedPerAdd() {
+		File f = new File("target/test16.index");
+		clear(f);
+		Storage storage = Storage
+				.builder(f.getParentFile(), f.getName() + ".storage")
+				.durability(Durability.NONE).build();
+		BTree<Integer> t = builder(Integer.class).degree(20).metadata(f)
+				.storage(storage).build();
+		int n = MANY_VALUES * 10;
+		// warm up
+		for (int i = 1; i <= n; i++)
+			t.add(i);
+		BufferPool pool = storage.getBufferPool();
+		long acquisitions = pool.acquisitions();
+		long allocations = pool.allocations();
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean b = (com.sun.management.ThreadMXBean) bean;
+			long id = Thread.currentThread().getId();
+			long before = b.getThreadAllocatedBytes(id);
+			for (int i = n + 1; i <= 2 * n; i++)
+				t.add(i);
+			long after = b.getThreadAllocatedBytes(id);
+			System.out.println("bytes allocated per add = " + (after - before)
+					/ n);
+		} else
+			for (int i = n + 1; i <= 2 * n; i++)
+				t.add(i);
+		assertTrue(pool.acquisitions() - acquisitions >= n);
+		// only a batch longer than any before needs a new buffer
+		assertTrue(pool.allocations() - allocations <= 1);
+		t.close();
+		Integer[] values = new Integer[2 * n];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+		t = builder(Integer.class).metadata(f).build();
+		checkEquals(t, values);
+		t.close();
+	}
+
+	/**
+	 * Given a persisted BTree that has been closed
+	 * 
+	 * When it is reopened with prefetching and a small node cache and
+	 * iterated
+	 * 
+	 * Then all values are returned in order
+	 */
+	@Test
+	public void testIterateWithPrefetch() {
+		File f = new File("target/test17.index");
+		clear(f);
+		Integer[] values = new Integer[MANY_VALUES * 10];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+		List<Integer> list = Lists.newArrayList(values);
+		Collections.shuffle(list, new Random(17));
+		BTree<Integer> t = builder(Integer.class).degree(5).metadata(f)
+				.build();
+		for (Integer value : list)
+			t.add(value);
+		t.close();
+		t = builder(Integer.class).metadata(f).cacheSize(100).prefetch(4, 2)
+				.build();
+		checkEquals(t, values);
+		t.close();
+	}
+
+	/**
+	 * Given a persisted BTree that was flushed part way through adding values
+	 * and then not closed (as if the process crashed)
+	 * 
+	 * When it is reopened
+	 * 
+	 * Then the root is recovered from the last commit record in storage and
+	 * all values can be read
+	 */
+	@Test
+	public void testRecoverRootAfterCrash() {
+		File f = new File("target/test19.index");
+		clear(f);
+		Integer[] values = new Integer[MANY_VALUES];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+		BTree<Integer> t = builder(Integer.class).degree(10).metadata(f)
+				.build();
+		for (int i = 0; i < values.length; i++) {
+			t.add(values[i]);
+			if (i == values.length / 2)
+				t.flush();
+		}
+		BTree<Integer> t2 = builder(Integer.class).metadata(f).build();
+		checkEquals(t2, values);
+		t2.close();
+	}
+
+	/**
+	 * Given a persisted BTree that was never flushed or closed and whose last
+	 * saved batch was only partly written
+	 * 
+	 * When it is reopened
+	 * 
+	 * Then the root of the batch before is recovered, the partly written
+	 * batch is overwritten by later adds and all values but the last can be
+	 * read
+	 */
+	@Test
+	public void testRecoverRootAfterPartlyWrittenBatch() {
+		File f = new File("target/test20.index");
+		clear(f);
+		int n = 100;
+		Storage storage = storage(f);
+		BTree<Integer> t = builder(Integer.class).degree(10).metadata(f)
+				.storage(storage).build();
+		for (int i = 1; i <= n; i++)
+			t.add(i);
+		// corrupt the last node record of the last batch
+		Position end = storage.getEndPosition();
+		corrupt(new File("target/test20.index.storage." + end.getFileNumber()),
+				end.getPosition() - CommitRecord.LENGTH - 1);
+		BTree<Integer> t2 = builder(Integer.class).degree(10).metadata(f)
+				.build();
+		Integer[] values = new Integer[n];
+		for (int i = 0; i < n - 1; i++)
+			values[i] = i + 1;
+		checkEquals(t2, Arrays.copyOf(values, n - 1));
+		t2.add(n);
+		t2.close();
+		values[n - 1] = n;
+		BTree<Integer> t3 = builder(Integer.class).metadata(f).build();
+		checkEquals(t3, values);
+		t3.close();
+	}
+
+	/**
+	 * Given a persisted BTree that was flushed, had more values added and was
+	 * then left with a partly written batch longer than the chunks recovery
+	 * zeroes at a time after its last batch
+	 * 
+	 * When it is reopened
+	 * 
+	 * Then all the values are read and the partly written bytes are zeroed
+	 */
+	@Test
+	public void testRecoverZeroesPartlyWrittenBatch() {
+		File f = new File("target/test36.index");
+		clear(f);
+		int n = 100;
+		Storage storage = storage(f);
+		BTree<Integer> t = builder(Integer.class).degree(10).metadata(f)
+				.storage(storage).build();
+		for (int i = 1; i <= n / 2; i++)
+			t.add(i);
+		t.flush();
+		for (int i = n / 2 + 1; i <= n; i++)
+			t.add(i);
+		Position end = storage.getEndPosition();
+		File file = new File("target/test36.index.storage."
+				+ end.getFileNumber());
+		byte[] garbage = new byte[200000];
+		Arrays.fill(garbage, (byte) 0x55);
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.seek(end.getPosition());
+			raf.write(garbage);
+			raf.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		BTree<Integer> t2 = builder(Integer.class).degree(10).metadata(f)
+				.build();
+		Integer[] values = new Integer[n];
+		for (int i = 0; i < n; i++)
+			values[i] = i + 1;
+		checkEquals(t2, values);
+		t2.close();
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			raf.seek(end.getPosition());
+			raf.readFully(garbage);
+			raf.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		for (byte b : garbage)
+			assertEquals(0, b);
+	}
+
+	/**
+	 * Given a persisted BTree that was never flushed or closed and whose
+	 * storage rolled over to a new empty segment just before a crash
+	 * 
+	 * When it is reopened
+	 * 
+	 * Then the root is recovered from the last commit record of the segment
+	 * before and all values can be read
+	 */
+	@Test
+	public void testRecoverRootAfterCrashOnRollover() {
+		File f = new File("target/test42.index");
+		clear(f);
+		int n = 2000;
+		long segmentSize = 20000;
+		Storage storage = Storage.builder(new File("target"),
+				"test42.index.storage").segmentSize(segmentSize).build();
+		BTree<Integer> t = builder(Integer.class).degree(10).metadata(f)
+				.storage(storage).build();
+		for (int i = 1; i <= n; i++)
+			t.add(i);
+		long last = storage.getEndPosition().getFileNumber();
+		assertTrue(last > 0);
+		// the segment a rollover creates is preallocated with zeroes
+		try {
+			RandomAccessFile raf = new RandomAccessFile(new File(
+					"target/test42.index.storage." + (last + 1)), "rw");
+			raf.setLength(segmentSize);
+			raf.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		Integer[] values = new Integer[n + 1];
+		for (int i = 0; i <= n; i++)
+			values[i] = i + 1;
+		BTree<Integer> t2 = builder(Integer.class).degree(10).metadata(f)
+				.segmentSize(segmentSize).build();
+		checkEquals(t2, Arrays.copyOf(values, n));
+		t2.add(n + 1);
+		t2.close();
+		BTree<Integer> t3 = builder(Integer.class).metadata(f).build();
+		checkEquals(t3, values);
+		t3.close();
+	}
+
+	/**
+	 * Given a persisted BTree that checkpoints after every commit and one
+	 * that only checkpoints on flush
+	 * 
+	 * When values are added without flushing
+	 * 
+	 * Then the metadata file of the first holds the current root and the
+	 * metadata file of the second holds nothing
+	 */
+	@Test
+	public void testCheckpointEvery() {
+		File f = new File("target/test21.index");
+		clear(f);
+		BTree<Integer> t = builder(Integer.class).degree(3).metadata(f)
+				.checkpointEvery(1).build();
+		for (int i = 1; i <= 20; i++)
+			t.add(i);
+		assertEquals(t.getRoot().getPosition().get(), readMetadata(f).get()
+				.rootPosition);
+		t.close();
+
+		File f2 = new File("target/test22.index");
+		clear(f2);
+		BTree<Integer> t2 = builder(Integer.class).degree(3).metadata(f2)
+				.build();
+		for (int i = 1; i <= 20; i++)
+			t2.add(i);
+		assertFalse(readMetadata(f2).isPresent());
+		t2.close();
+		assertEquals(t2.getRoot().getPosition().get(), readMetadata(f2).get()
+				.rootPosition);
+	}
+
+	/**
+	 * Given a BTree flushed twice with different roots
+	 * 
+	 * When the metadata slot written by the second flush is corrupted
+	 * 
+	 * Then the metadata written by the first flush is read
+	 */
+	@Test
+	public void testTornMetadataWriteFallsBackToOtherSlot() {
+		File f = new File("target/test23.index");
+		clear(f);
+		BTree<Integer> t = builder(Integer.class).degree(3).metadata(f)
+				.build();
+		t.add(1).flush();
+		Position first = t.getRoot().getPosition().get();
+		t.add(2).flush();
+		Position second = t.getRoot().getPosition().get();
+		assertEquals(2 * Superblock.SLOT_SIZE, f.length());
+		assertEquals(second, readMetadata(f).get().rootPosition);
+		// the second flush wrote the first slot
+		corrupt(f, 20);
+		assertEquals(first, readMetadata(f).get().rootPosition);
+		t.close();
+	}
+
+	/**
+	 * Given a BTree whose metadata file was written with an
+	 * ObjectOutputStream by an earlier version
+	 * 
+	 * When it is reopened
+	 * 
+	 * Then the storage named in the metadata file is used
+	 */
+	@Test
+	public void testReadsLegacyMetadata() throws IOException {
+		File f = new File("target/test24.index");
+		clear(f);
+		BTree<Integer> t = builder(Integer.class).degree(3).metadata(f)
+				.build();
+		t.add(1, 2, 3).close();
+		Superblock.Metadata metadata = readMetadata(f).get();
+		f.delete();
+		ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(
+				f));
+		oos.writeObject(metadata.storageDirectory);
+		oos.writeObject(metadata.storageName);
+		oos.writeLong(metadata.rootPosition.getFileNumber());
+		oos.writeLong(metadata.rootPosition.getPosition());
+		oos.writeInt(metadata.degree);
+		oos.close();
+		BTree<Integer> t2 = builder(Integer.class).metadata(f).build();
+		checkEquals(t2, 1, 2, 3);
+		t2.add(4).close();
+		checkEquals(builder(Integer.class).metadata(f).build(), 1, 2, 3, 4);
+	}
+
+	/**
+	 * Given sorted values of every count up to a few levels of nodes
+	 * 
+	 * When they are bulk loaded into an empty in-memory BTree of various
+	 * degrees and fill factors
+	 * 
+	 * Then every leaf is at the same depth, no node holds more keys than
+	 * the degree allows, the values iterate in order and later adds work
+	 */
+	@Test
+	public void testBulkLoad() {
+		for (int degree : new int[] { 3, 4, 5, 10 })
+			for (double fillFactor : new double[] { 0.5, 1.0 })
+				for (int n = 0; n <= 200; n++) {
+					List<Integer> values = Lists.newArrayList();
+					for (int i = 1; i <= n; i++)
+						values.add(i);
+					BTree<Integer> t = builder(Integer.class).degree(degree)
+							.build()
+							.bulkLoad(values.iterator(), fillFactor);
+					assertEquals(values, Lists.newArrayList(t));
+					checkStructure(t.getRoot(), degree);
+					t.add(0);
+					values.add(0, 0);
+					assertEquals(values, Lists.newArrayList(t));
+					checkStructure(t.getRoot(), degree);
+				}
+	}
+
+	/**
+	 * Given a persisted BTree
+	 * 
+	 * When many sorted values are bulk loaded and the tree is reopened
+	 * 
+	 * Then every node was saved once in one pass (the storage holds no
+	 * obsolete nodes) and all values can be read
+	 */
+	@Test
+	public void testBulkLoadPersisted() {
+		File f = new File("target/test25.index");
+		clear(f);
+		int n = 10 * MANY_VALUES;
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 1; i <= n; i++)
+			values.add(i);
+		BTree<Integer> t = builder(Integer.class).degree(10).metadata(f)
+				.cacheSize(100).build().bulkLoad(values.iterator());
+		Map<Long, Long> liveBytes = t.liveBytes();
+		int nodes = countNodes(t.getRoot());
+		t.close();
+		Storage storage = storage(f);
+		long live = 0;
+		for (long bytes : liveBytes.values())
+			live += bytes;
+		assertEquals(nodes, storage.findNodePositions(0).size());
+		assertTrue(live <= storage.findEndOfRecords(0));
+		storage.close();
+		BTree<Integer> t2 = builder(Integer.class).metadata(f).build();
+		assertEquals(values, Lists.newArrayList(t2));
+		assertEquals(Optional.of(n / 2), t2.find(n / 2));
+		t2.close();
+	}
+
+	/**
+	 * Given a persisted BTree without a node cache
+	 * 
+	 * When many sorted values are bulk loaded
+	 * 
+	 * Then at most about one batch of nodes is left loaded and all values
+	 * can be read
+	 */
+	@Test
+	public void testBulkLoadUnloadsSavedNodes() {
+		File f = new File("target/test35.index");
+		clear(f);
+		int n = 20 * MANY_VALUES;
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 1; i <= n; i++)
+			values.add(i);
+		BTree<Integer> t = builder(Integer.class).degree(10).metadata(f)
+				.build().bulkLoad(values.iterator());
+		int loaded = countLoadedNodes(t.getRoot());
+		assertTrue(loaded <= 300);
+		assertTrue(countNodes(t.getRoot()) > 10 * loaded);
+		assertEquals(values, Lists.newArrayList(t));
+		t.close();
+	}
+
+	/**
+	 * Returns the number of loaded nodes reachable from <code>node</code>
+	 * through loaded nodes, without loading any.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	private static int countLoadedNodes(NodeRef<Integer> node) {
+		if (!node.isLoaded())
+			return 0;
+		int count = 1;
+		for (Optional<NodeRef<Integer>> child : node.children())
+			if (child.isPresent())
+				count += countLoadedNodes(child.get());
+		return count;
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBulkLoadUnsortedThrowsException() {
+		builder(Integer.class).degree(3).build()
+				.bulkLoad(Arrays.asList(1, 3, 2).iterator());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testBulkLoadNonEmptyTreeThrowsException() {
+		builder(Integer.class).degree(3).build().add(1)
+				.bulkLoad(Arrays.asList(2, 3).iterator());
+	}
+
+	/**
+	 * Given unsorted values with duplicates spanning too many runs to merge
+	 * in one pass
+	 * 
+	 * When they are bulk imported into a persisted BTree
+	 * 
+	 * Then the values iterate in order, can be read after reopening and no
+	 * temporary run files are left in the storage directory
+	 */
+	@Test
+	public void testBulkImport() {
+		File f = new File("target/test26.index");
+		clear(f);
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 0; i < 3000; i++)
+			values.add(i % 1000);
+		Collections.shuffle(values, new Random(1));
+		BTree<Integer> t = builder(Integer.class).degree(10).metadata(f)
+				.externalSort(10, 2).build().bulkImport(values.iterator());
+		Collections.sort(values);
+		assertEquals(values, Lists.newArrayList(t));
+		checkStructure(t.getRoot(), 10);
+		t.close();
+		assertEquals(values,
+				Lists.newArrayList(builder(Integer.class).metadata(f).build()));
+		for (String name : f.getAbsoluteFile().getParentFile().list())
+			assertFalse(name, name.endsWith(".run"));
+	}
+
+	/**
+	 * Given unsorted values that fit in one run
+	 * 
+	 * When they are bulk imported into an in-memory BTree
+	 * 
+	 * Then the values iterate in order
+	 */
+	@Test
+	public void testBulkImportInMemory() {
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 0; i < MANY_VALUES; i++)
+			values.add(i);
+		Collections.shuffle(values, new Random(2));
+		BTree<Integer> t = builder(Integer.class).degree(5).build()
+				.bulkImport(values.iterator(), 0.5);
+		Collections.sort(values);
+		assertEquals(values, Lists.newArrayList(t));
+	}
+
+	/**
+	 * Given a persisted BTree built by many adds so that most of its storage
+	 * is obsolete nodes
+	 * 
+	 * When it is exported to another directory and more values are added
+	 * afterwards
+	 * 
+	 * Then the export opens with only the values present when exported and
+	 * its storage is much smaller
+	 */
+	@Test
+	public void testExportTo() {
+		File f = new File("target/test27.index");
+		clear(f);
+		File directory = new File("target/test27-export");
+		File exported = new File(directory, f.getName());
+		clear(exported);
+		Integer[] values = new Integer[MANY_VALUES];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+		BTree<Integer> t = builder(Integer.class).degree(10).metadata(f)
+				.cacheSize(50).build().add(values);
+		assertEquals(exported, t.exportTo(directory));
+		t.add(MANY_VALUES + 1).close();
+		BTree<Integer> t2 = builder(Integer.class).metadata(exported).build();
+		checkEquals(t2, values);
+		int nodes = countNodes(t2.getRoot());
+		t2.close();
+		Storage original = storage(f);
+		Storage export = storage(exported);
+		// only reachable nodes were exported
+		assertEquals(nodes, export.findNodePositions(0).size());
+		assertTrue(export.findEndOfRecords(0) * 5 < original
+				.findEndOfRecords(0));
+		original.close();
+		export.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testExportToExistingFileThrowsException() {
+		File f = new File("target/test28.index");
+		clear(f);
+		BTree<Integer> t = builder(Integer.class).degree(3).metadata(f)
+				.build().add(1);
+		try {
+			t.exportTo(f.getParentFile());
+		} finally {
+			t.close();
+		}
+	}
+
+	/**
+	 * Given a persisted BTree of strings of very different lengths with a
+	 * node cache bounded by bytes
+	 * 
+	 * When many values are added and read back
+	 * 
+	 * Then the estimated bytes retained by the cached nodes stay within the
+	 * budget and all values can be read
+	 */
+	@Test
+	public void testCacheBytes() {
+		File f = new File("target/test29.index");
+		clear(f);
+		long budget = 100000;
+		BTree<String> t = builder(String.class).degree(20).metadata(f)
+				.cacheBytes(budget).build();
+		Random random = new Random(3);
+		List<String> values = Lists.newArrayList();
+		for (int i = 0; i < 2000; i++) {
+			StringBuilder s = new StringBuilder(String.format("%05d", i));
+			int padding = random.nextInt(10) == 0 ? 500 : 5;
+			for (int j = 0; j < padding; j++)
+				s.append('x');
+			values.add(s.toString());
+			t.add(s.toString());
+			assertTrue(t.getNodeCache().get().retainedBytes() <= budget);
+		}
+		assertEquals(values, Lists.newArrayList(t));
+		assertTrue(t.getNodeCache().get().retainedBytes() <= budget);
+		t.close();
+	}
+
+	/**
+	 * Given a persisted BTree with a small node cache that pins the top two
+	 * levels
+	 * 
+	 * When one key is looked up often between scans of the whole tree
+	 * 
+	 * Then the pinned nodes and the leaf of the hot key stay loaded
+	 */
+	@Test
+	public void testCachePinsUpperLevelsAndResistsScans() {
+		File f = new File("target/test30.index");
+		clear(f);
+		BTree<Integer> t = builder(Integer.class).degree(10).metadata(f)
+				.cacheSize(200).pinnedLevels(2).build();
+		for (int i = 0; i < 5000; i++)
+			t.add(i);
+		NodeRef<Integer> root = t.getRoot();
+		NodeRef<Integer> leaf = leafOf(root, 1000);
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 10; i++)
+				assertEquals(1000, (int) t.find(1000).get());
+			int count = 0;
+			for (Integer value : t) {
+				assertEquals(count, (int) value);
+				count++;
+			}
+			assertEquals(5000, count);
+		}
+		NodeCache<Integer> cache = t.getNodeCache().get();
+		assertTrue(cache.isPinned(root.getPosition().get()));
+		for (Optional<NodeRef<Integer>> child : root.children()) {
+			assertTrue(child.get().isLoaded());
+			assertTrue(cache.isPinned(child.get().getPosition().get()));
+		}
+		assertTrue(leaf.isLoaded());
+		assertFalse(cache.isPinned(leaf.getPosition().get()));
+		t.close();
+	}
+
+	/**
+	 * Given a persisted BTree with a small node cache and an off heap cache
+	 * of node records
+	 * 
+	 * When all values are read twice
+	 * 
+	 * Then the second read loads almost all unloaded nodes from the off heap
+	 * cache and the values are unchanged
+	 */
+	@Test
+	public void testOffHeapCache() {
+		File f = new File("target/test31.index");
+		clear(f);
+		Storage storage = Storage.builder(f.getParentFile(),
+				f.getName() + ".storage").offHeapCacheBytes(2 << 20).build();
+		BTree<Integer> t = builder(Integer.class).degree(10).metadata(f)
+				.storage(storage).cacheSize(20).build();
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 0; i < 2000; i++) {
+			values.add(i);
+			t.add(i);
+		}
+		OffHeapCache cache = storage.getOffHeapCache().get();
+		assertEquals(values, Lists.newArrayList(t));
+		long hits = cache.hits();
+		long misses = cache.misses();
+		assertTrue(misses > 0);
+		assertEquals(values, Lists.newArrayList(t));
+		// nodes kept in the heap since they were saved may be read from disk
+		// for the first time during the second read
+		assertTrue(cache.hits() - hits > 10 * (cache.misses() - misses));
+		assertTrue(cache.allocatedBytes() <= 2 << 20);
+		t.close();
+	}
+
+	/**
+	 * Given a persisted BTree just opened so that its nodes are not loaded
+	 * 
+	 * When many threads find the same value at once
+	 * 
+	 * Then each node on the path to the value is read from storage once
+	 */
+	@Test
+	public void testConcurrentFindsReadEachNodeOnce()
+			throws InterruptedException {
+		File f = new File("target/test32.index");
+		clear(f);
+		BTree<Integer> t = builder(Integer.class).degree(10).metadata(f)
+				.build();
+		for (int i = 0; i < 2000; i++)
+			t.add(i);
+		t.close();
+		Storage storage = storage(f);
+		t = builder(Integer.class).metadata(f).storage(storage).build();
+		long before = storage.getRecordReads();
+		assertEquals(1999, (int) t.find(1999).get());
+		long expected = storage.getRecordReads() - before;
+		assertTrue(expected > 0);
+		t.close();
+
+		storage = storage(f);
+		final BTree<Integer> tree = builder(Integer.class).metadata(f)
+				.storage(storage).build();
+		before = storage.getRecordReads();
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger found = new AtomicInteger();
+		List<Thread> threads = Lists.newArrayList();
+		for (int i = 0; i < 16; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+					if (tree.find(1999).isPresent())
+						found.incrementAndGet();
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(16, found.get());
+		assertEquals(expected, storage.getRecordReads() - before);
+		tree.close();
+	}
+
+	/**
+	 * Returns the leaf below <code>node</code> holding <code>value</code>.
+	 * 
+	 * @param node
+	 * @param value
+	 * @return
+	 */
+	private static NodeRef<Integer> leafOf(NodeRef<Integer> node, int value) {
+		for (Key<Integer> key : node.getKeys()) {
+			if (key.value() == value)
+				return node;
+			else if (value < key.value())
+				return key.getLeft().isPresent() ? leafOf(key.getLeft().get(),
+						value) : node;
+		}
+		List<? extends Key<Integer>> keys = node.getKeys();
+		Optional<NodeRef<Integer>> right = keys.get(keys.size() - 1)
+				.getRight();
+		return right.isPresent() ? leafOf(right.get(), value) : node;
+	}
+
+	/**
+	 * Checks that every leaf below <code>node</code> is at the same depth and
+	 * that every node has fewer keys than the degree. Returns the height.
+	 * 
+	 * @param node
+	 * @param degree
+	 * @return
+	 */
+	private static int checkStructure(NodeRef<Integer> node, int degree) {
+		assertTrue(node.countKeys() < degree);
+		int height = -1;
+		for (Optional<NodeRef<Integer>> child : node.children()) {
+			assertTrue(child.isPresent());
+			int h = checkStructure(child.get(), degree);
+			if (height == -1)
+				height = h;
+			else
+				assertEquals(height, h);
+		}
+		return height + 1;
+	}
+
+	private static int countNodes(NodeRef<Integer> node) {
+		int count = 1;
+		for (Optional<NodeRef<Integer>> child : node.children())
+			count += countNodes(child.get());
+		return count;
+	}
+
+	private static Optional<Superblock.Metadata> readMetadata(File f) {
+		Superblock superblock = new Superblock(f, false);
+		try {
+			return superblock.read();
+		} finally {
+			superblock.close();
+		}
+	}
+
+	private static void corrupt(File file, long position) {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.seek(position);
+			int b = raf.read();
+			raf.seek(position);
+			raf.write(b ^ 0xFF);
+			raf.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	private static void assertKeyValuesAre(List<? extends Key<Integer>> keys,
 			Integer... expected) {
 		String msg = "expected " + expected + " but was " + keys;
@@ -0,0 +1,36 @@
+package com.github.davidmoten.structures.btree;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+
+public class CompactionPoliciesTest {
+
+	private static final List<FileStats> FILES = Arrays.asList(
+			new FileStats(0, 10, 100), new FileStats(1, 90, 100),
+			new FileStats(2, 40, 100), new FileStats(3, 0, 0));
+
+	@Test
+	public void testLiveFractionBelow() {
+		assertEquals(Sets.newHashSet(0L, 2L), CompactionPolicies
+				.liveFractionBelow(0.5).choose(FILES));
+	}
+
+	@Test
+	public void testCostBenefitChoosesBestFilesFirst() {
+		assertEquals(Sets.newHashSet(0L), CompactionPolicies
+				.costBenefit(0.1, 1).choose(FILES));
+		assertEquals(Sets.newHashSet(0L, 2L), CompactionPolicies
+				.costBenefit(0.1, 3).choose(FILES));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testThresholdOutOfRange() {
+		CompactionPolicies.liveFractionBelow(1.5);
+	}
+}
@@ -0,0 +1,108 @@
+package com.github.davidmoten.structures.btree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+public class KeySerializersTest {
+
+	@Test
+	public void testLongs() {
+		checkRoundTrip(KeySerializers.longs(), Long.MIN_VALUE, 8);
+		checkRoundTrip(KeySerializers.longs(), 123L, 8);
+	}
+
+	@Test
+	public void testIntegers() {
+		checkRoundTrip(KeySerializers.integers(), Integer.MAX_VALUE, 4);
+		checkRoundTrip(KeySerializers.integers(), -1, 4);
+	}
+
+	@Test
+	public void testStrings() {
+		checkRoundTrip(KeySerializers.strings(), "", 4);
+		checkRoundTrip(KeySerializers.strings(), "abc", 7);
+		// two byte, three byte and four byte (surrogate pair) characters
+		checkRoundTrip(KeySerializers.strings(), "\u00e9\u20ac\ud83d\ude00",
+				4 + 2 + 3 + 4);
+	}
+
+	@Test
+	public void testStringSizeMatchesEncodingForUnpairedSurrogate() {
+		String s = "a\ud83db";
+		assertEquals(s.getBytes(Charsets.UTF_8).length,
+				KeySerializers.utf8Length(s));
+	}
+
+	@Test
+	public void testBytes() {
+		KeySerializer<byte[]> serializer = KeySerializers.bytes();
+		byte[] value = { 1, 2, 3 };
+		ByteBuffer bb = ByteBuffer.allocate(serializer.size(value));
+		serializer.write(bb, value);
+		assertEquals(7, bb.position());
+		bb.flip();
+		assertArrayEquals(value, serializer.read(bb));
+	}
+
+	@Test
+	public void testJava() {
+		checkRoundTrip(KeySerializers.<Date> java(), new Date(1000),
+				KeySerializers.<Date> java().size(new Date(1000)));
+	}
+
+	@Test
+	public void testIds() {
+		assertEquals("longs", KeySerializers.id(KeySerializers.longs()));
+		assertEquals("java", KeySerializers.id(KeySerializers.java()));
+		assertEquals(Custom.class.getName(), KeySerializers.id(new Custom()));
+	}
+
+	@Test
+	public void testForClass() {
+		assertEquals(KeySerializers.longs(),
+				KeySerializers.forClass(Long.class));
+		assertEquals(KeySerializers.integers(),
+				KeySerializers.forClass(Integer.class));
+		assertEquals(KeySerializers.strings(),
+				KeySerializers.forClass(String.class));
+		assertEquals(KeySerializers.java(),
+				KeySerializers.forClass(Double.class));
+	}
+
+	private static class Custom implements KeySerializer<Integer> {
+
+		@Override
+		public int size(Integer t) {
+			return 4;
+		}
+
+		@Override
+		public void write(ByteBuffer bb, Integer t) {
+			bb.putInt(t);
+		}
+
+		@Override
+		public Integer read(ByteBuffer bb) {
+			return bb.getInt();
+		}
+	}
+
+	private static <T extends Serializable> void checkRoundTrip(
+			KeySerializer<T> serializer, T value, int expectedSize) {
+		assertEquals(expectedSize, serializer.size(value));
+		ByteBuffer bb = ByteBuffer.allocate(expectedSize);
+		serializer.write(bb, value);
+		assertEquals(expectedSize, bb.position());
+		bb.flip();
+		assertEquals(value, serializer.read(bb));
+		assertEquals(expectedSize, bb.position());
+	}
+}
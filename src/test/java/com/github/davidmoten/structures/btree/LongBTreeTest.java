@@ -0,0 +1,103 @@
+package com.github.davidmoten.structures.btree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class LongBTreeTest {
+
+	/**
+	 * Given an empty LongBTree
+	 *
+	 * When iterate
+	 *
+	 * Then no values returned
+	 */
+	@Test(expected = NoSuchElementException.class)
+	public void testEmptyTree() {
+		LongBTree t = new LongBTree(3);
+		assertFalse(t.contains(1));
+		LongIterator it = t.iterator();
+		assertFalse(it.hasNext());
+		it.next();
+	}
+
+	/**
+	 * Given a LongBTree with values added in shuffled order
+	 *
+	 * When iterate
+	 *
+	 * Then values returned in ascending order and contains finds every value
+	 */
+	@Test
+	public void testValuesAddedInShuffledOrder() {
+		for (int degree = 3; degree <= 10; degree++) {
+			List<Long> values = Lists.newArrayList();
+			for (long i = 0; i < 1000; i++)
+				values.add(i * 2);
+			Collections.shuffle(values, new Random(degree));
+			LongBTree t = new LongBTree(degree);
+			for (long value : values)
+				t.add(value);
+			LongIterator it = t.iterator();
+			for (long i = 0; i < 1000; i++) {
+				assertTrue(it.hasNext());
+				assertEquals(i * 2, it.next());
+				assertTrue(t.contains(i * 2));
+				assertFalse(t.contains(i * 2 + 1));
+			}
+			assertFalse(it.hasNext());
+		}
+	}
+
+	/**
+	 * Given a LongBTree with duplicate values
+	 *
+	 * When iterate
+	 *
+	 * Then every copy is returned
+	 */
+	@Test
+	public void testDuplicates() {
+		LongBTree t = new LongBTree(3);
+		for (int i = 0; i < 20; i++)
+			t.add(5, 3);
+		LongIterator it = t.iterator();
+		for (int i = 0; i < 40; i++)
+			assertEquals(i < 20 ? 3 : 5, it.next());
+		assertFalse(it.hasNext());
+	}
+
+	/**
+	 * Given an iterator created from a LongBTree
+	 *
+	 * When more values are added to the tree
+	 *
+	 * Then the iterator only returns the values present when it was created
+	 */
+	@Test
+	public void testIteratorIsSnapshot() {
+		LongBTree t = new LongBTree(4);
+		t.add(1, 2, 3, 4, 5);
+		LongIterator it = t.iterator();
+		t.add(0, 6, 7, 8, 9, 10);
+		for (long i = 1; i <= 5; i++)
+			assertEquals(i, it.next());
+		assertFalse(it.hasNext());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDegreeTooSmall() {
+		new LongBTree(2);
+	}
+
+}
@@ -2,8 +2,15 @@ package com.github.davidmoten.structures.btree;
 
 import static com.github.davidmoten.structures.btree.Node.getMedianNumber;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
@@ -14,6 +21,21 @@ import com.google.common.base.Optional;
 
 public class NodeTest {
 
+	/**
+	 * Given nodes with the same number of keys
+	 * 
+	 * When the retained bytes are estimated
+	 * 
+	 * Then a node with a longer record is estimated to retain more
+	 */
+	@Test
+	public void testEstimateRetainedBytesGrowsWithRecordLength() {
+		assertTrue(Node.estimateRetainedBytes(10, 1000) > Node
+				.estimateRetainedBytes(10, 100));
+		assertTrue(Node.estimateRetainedBytes(20, 100) > Node
+				.estimateRetainedBytes(10, 100));
+	}
+
 	/**
 	 * Given an empty node, degree 3
 	 * 
@@ -150,6 +172,194 @@ public class NodeTest {
 
 	}
 
+	/**
+	 * Given a node with keys 1,2,3 and children
+	 * 
+	 * When the node is saved and loaded
+	 * 
+	 * Then the loaded node has the same keys and child positions
+	 */
+	@Test
+	public void testSaveAndLoadRoundTrip() {
+		NodeRef<Integer> node = createNode();
+		insert(node, 1, 2, 3);
+		node.key(1).setDeleted(true);
+		NodeRef<Integer> left = createNode();
+		left.setPosition(Optional.of(new Position(1, 100)));
+		NodeRef<Integer> middle = createNode();
+		middle.setPosition(Optional.of(new Position(2, 200)));
+		node.key(0).setLeft(Optional.of(left));
+		node.key(0).setRight(Optional.of(middle));
+		node.key(1).setLeft(Optional.of(middle));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		node.save(bytes, KeySerializers.integers());
+		assertEquals(bytes.size(),
+				Node.recordLength(ByteBuffer.wrap(bytes.toByteArray())));
+
+		NodeRef<Integer> loaded = createNode();
+		loaded.node().load(ByteBuffer.wrap(bytes.toByteArray()),
+				KeySerializers.integers());
+		checkEquals(loaded, 1, 2, 3);
+		assertFalse(loaded.key(0).isDeleted());
+		assertTrue(loaded.key(1).isDeleted());
+		assertEquals(new Position(1, 100), loaded.key(0).getLeft().get()
+				.getPosition().get());
+		assertEquals(new Position(2, 200), loaded.key(0).getRight().get()
+				.getPosition().get());
+		assertEquals(new Position(2, 200), loaded.key(1).getLeft().get()
+				.getPosition().get());
+		assertFalse(loaded.key(2).getRight().isPresent());
+	}
+
+	/**
+	 * Given a node with keys written by Java serialization
+	 * 
+	 * When the node is encoded
+	 * 
+	 * Then each key value is serialized once
+	 */
+	@Test
+	public void testEncodeSerializesJavaValuesOnce() {
+		NodeRef<Counted> node = new NodeRef<Counted>(
+				new NodeLoader<Counted>() {
+					@Override
+					public void load(NodeRef<Counted> node) {
+					}
+				}, Optional.<Position> absent(), 3, false);
+		Counted a = new Counted(1);
+		Counted b = new Counted(2);
+		insert(node, a, b);
+		ByteBuffer bb = node.encode(KeySerializers.<Counted> java());
+		assertEquals(1, a.writes);
+		assertEquals(1, b.writes);
+		assertEquals(bb.limit(), Node.recordLength(bb));
+	}
+
+	/**
+	 * Given a node loaded from a record and then unloaded
+	 * 
+	 * When the length of its record is read
+	 * 
+	 * Then the length is that of the record and the node is not loaded again
+	 */
+	@Test
+	public void testRecordLengthKeptWhenUnloaded() {
+		NodeRef<Integer> node = createNode();
+		insert(node, 1, 2, 3);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		node.save(bytes, KeySerializers.integers());
+
+		NodeLoader<Integer> loader = new NodeLoader<Integer>() {
+			@Override
+			public void load(NodeRef<Integer> node) {
+				Assert.fail("should not load");
+			}
+		};
+		NodeRef<Integer> loaded = new NodeRef<Integer>(loader,
+				Optional.of(new Position(0, 0)), 3, false);
+		new Node<Integer>(loader, loaded, false).load(
+				ByteBuffer.wrap(bytes.toByteArray()),
+				KeySerializers.integers());
+		loaded.unload();
+		assertEquals(bytes.size(), loaded.getRecordLength());
+	}
+
+	/**
+	 * Given a node record written in the legacy object stream format
+	 * 
+	 * When the node is loaded
+	 * 
+	 * Then the loaded node has the keys and child positions of the record
+	 */
+	@Test
+	public void testLoadLegacyFormat() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		// length (not checked on load)
+		oos.writeLong(0L);
+		oos.flush();
+		// canDelete
+		oos.writeBoolean(false);
+		oos.flush();
+		// isRoot
+		oos.writeBoolean(true);
+		oos.writeInt(2);
+		oos.writeObject(5);
+		oos.writeLong(1);
+		oos.writeLong(100);
+		oos.writeLong(2);
+		oos.writeLong(200);
+		oos.writeBoolean(false);
+		oos.writeObject(7);
+		oos.writeLong(2);
+		oos.writeLong(200);
+		oos.writeLong(3);
+		oos.writeLong(300);
+		oos.writeBoolean(true);
+		oos.close();
+
+		NodeRef<Integer> loaded = createNode();
+		long size = loaded.node().load(
+				new ByteArrayInputStream(bytes.toByteArray()),
+				KeySerializers.integers());
+		assertEquals(bytes.size(), size);
+		checkEquals(loaded, 5, 7);
+		assertTrue(loaded.node().isRoot());
+		assertTrue(loaded.key(1).isDeleted());
+		assertEquals(new Position(3, 300), loaded.key(1).getRight().get()
+				.getPosition().get());
+	}
+
+	/**
+	 * Given a version 1 binary node record with a Java serialized key value
+	 * 
+	 * When the node is loaded with a different key serializer
+	 * 
+	 * Then the key value is read with Java serialization
+	 */
+	@Test
+	public void testLoadVersion1Format() throws IOException {
+		ByteArrayOutputStream value = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(value);
+		oos.writeObject(5);
+		oos.close();
+		int length = 12 + 1 + 4 + value.size();
+		ByteBuffer bb = ByteBuffer.allocate(length);
+		// magic, version, flags (leaf), length, key count
+		bb.putShort((short) 0xB7EE).put((byte) 1).put((byte) 4)
+				.putInt(length).putInt(1);
+		// deleted, value length, value
+		bb.put((byte) 0).putInt(value.size()).put(value.toByteArray());
+		bb.flip();
+
+		NodeRef<Integer> loaded = createNode();
+		loaded.node().load(bb, KeySerializers.integers());
+		checkEquals(loaded, 5);
+		assertEquals(length, bb.position());
+	}
+
+	/**
+	 * Given a leaf node with duplicate keys
+	 * 
+	 * When a duplicate value is deleted
+	 * 
+	 * Then every copy is marked deleted and the count of copies returned
+	 */
+	@Test
+	public void testDeleteDuplicatesInLeaf() {
+		NodeRef<Integer> node = createNode();
+		insert(node, 3, 1, 2, 2, 4);
+		checkEquals(node, 1, 2, 2, 3, 4);
+		assertEquals(5, node.countKeys());
+		assertEquals(Optional.of(2), node.find(2));
+		assertEquals(2, node.delete(2));
+		assertEquals(Optional.absent(), node.find(2));
+		assertEquals(Optional.of(3), node.find(3));
+		assertEquals(0, node.delete(2));
+		assertEquals(0, node.delete(5));
+	}
+
 	private void checkEquals(NodeRef<Integer> node, Integer... values) {
 		List<? extends Key<Integer>> keys = node.getKeys();
 		for (int i = 0; i < values.length; i++) {
@@ -159,6 +369,30 @@ public class NodeTest {
 		assertEquals(keys.size(), values.length);
 	}
 
+	private static class Counted implements Serializable,
+			Comparable<Counted> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int value;
+
+		transient int writes;
+
+		Counted(int value) {
+			this.value = value;
+		}
+
+		@Override
+		public int compareTo(Counted o) {
+			return value < o.value ? -1 : (value == o.value ? 0 : 1);
+		}
+
+		private void writeObject(ObjectOutputStream out) throws IOException {
+			writes++;
+			out.defaultWriteObject();
+		}
+	}
+
 	private NodeRef<Integer> createNode() {
 		NodeLoader<Integer> listener = new NodeLoader<Integer>() {
 
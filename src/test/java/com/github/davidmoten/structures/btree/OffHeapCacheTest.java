@@ -0,0 +1,92 @@
+package com.github.davidmoten.structures.btree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class OffHeapCacheTest {
+
+	private static final int SMALL = 100;
+
+	private static final int LARGE = 1000;
+
+	/**
+	 * Given an off heap cache of one slab filled by small records
+	 *
+	 * When only large records are read
+	 *
+	 * Then the slab is moved to the size class of the large records and they
+	 * are cached
+	 */
+	@Test
+	public void testLateSizeClassGetsSlab() {
+		OffHeapCache cache = new OffHeapCache(OffHeapCache.SLAB_BYTES);
+		for (int i = 0; i < OffHeapCache.SLAB_BYTES / 128; i++)
+			read(cache, new Position(0, i), SMALL);
+		assertEquals(0, cache.slabMoves());
+		for (int round = 0; round < 10; round++)
+			for (int i = 0; i < 500; i++)
+				read(cache, new Position(1, i), LARGE);
+		assertEquals(1, cache.slabMoves());
+		for (int i = 0; i < 500; i++)
+			assertTrue(read(cache, new Position(1, i), LARGE));
+		assertFalse(read(cache, new Position(0, 0), SMALL));
+		assertEquals(OffHeapCache.SLAB_BYTES, cache.allocatedBytes());
+	}
+
+	/**
+	 * Given an off heap cache of two slabs filled by small records
+	 *
+	 * When small and large records are read in turn
+	 *
+	 * Then one slab is moved to the size class of the large records and both
+	 * sizes are then cached without moving slabs back and forth
+	 */
+	@Test
+	public void testMixedRecordSizesShareSlabs() {
+		OffHeapCache cache = new OffHeapCache(2 * OffHeapCache.SLAB_BYTES);
+		for (int i = 0; i < 2 * OffHeapCache.SLAB_BYTES / 128; i++)
+			read(cache, new Position(0, i), SMALL);
+		for (int round = 0; round < 10; round++)
+			for (int i = 0; i < 4000; i++) {
+				read(cache, new Position(0, i), SMALL);
+				if (i % 8 == 0)
+					read(cache, new Position(1, i / 8), LARGE);
+			}
+		assertEquals(1, cache.slabMoves());
+		long hits = cache.hits();
+		long misses = cache.misses();
+		for (int i = 0; i < 4000; i++) {
+			assertTrue(read(cache, new Position(0, i), SMALL));
+			if (i % 8 == 0)
+				assertTrue(read(cache, new Position(1, i / 8), LARGE));
+		}
+		assertEquals(4500, cache.hits() - hits);
+		assertEquals(misses, cache.misses());
+		assertEquals(1, cache.slabMoves());
+	}
+
+	/**
+	 * Reads the record at the position from the cache, putting a record of
+	 * the given length if not cached (as storage does after reading it from
+	 * disk). Returns true if it was cached.
+	 *
+	 * @param cache
+	 * @param position
+	 * @param length
+	 * @return
+	 */
+	private static boolean read(OffHeapCache cache, Position position,
+			int length) {
+		if (cache.get(position).isPresent())
+			return true;
+		ByteBuffer record = ByteBuffer.allocate(length);
+		record.putLong(0, position.getPosition());
+		cache.put(position, record);
+		return false;
+	}
+}